@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the fileloader benchmarks with JMH, writing results as JSON so they can be compared between releases.
+ * <p/>
+ * Usage: java -jar benchmarks.jar [regexp] [JMH options]
+ * <p/>
+ * Results are written to jmh-result.json in the working directory unless a result format or file is given with the
+ * -rf or -rff options. Every other option is passed to JMH unchanged, for example "-prof gc" to report allocation
+ * rates or "-p batchThreshold=1000" to run a single parameter value.
+ */
+public class BenchmarkMain {
+    public static final String RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add(0, "-rf");
+            options.add(1, "json");
+            if (!options.contains("-rff")) {
+                options.add(2, "-rff");
+                options.add(3, RESULT_FILE);
+            }
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import com.osrdata.etltoolbox.fileloader.PatternIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how the cost of choosing the specifications of a batch of file names scales with the number of mappings,
+ * comparing a linear scan that runs every mapping's pattern against each name with a {@link PatternIndex} lookup. Most
+ * mappings have a literal prefix, as in "FEED7_([0-9]{8})_(Initial|New|Deleted|Update)\.txt"; one in ten has only a
+ * literal suffix and is a candidate for every name, as the index holds it at its root.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final String[] TYPES = {"Initial", "New", "Deleted", "Update"};
+
+    @Param({"10", "100", "1000"})
+    private int mappings;
+
+    @Param({"1000"})
+    private int files;
+
+    private List<Pattern> patterns;
+    private PatternIndex<Pattern> index;
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42l);
+        patterns = new ArrayList<Pattern>();
+        index = new PatternIndex<Pattern>();
+        for (int i = 0; i < mappings; i++) {
+            String regex = i % 10 == 9 ? ".*_EXTRACT" + i + "\\.csv"
+                    : "FEED" + i + "_([0-9]{8})_(Initial|New|Deleted|Update)\\.txt";
+            Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            patterns.add(pattern);
+            index.add(pattern, pattern);
+        }
+        names = new String[files];
+        for (int i = 0; i < files; i++) {
+            int mapping = random.nextInt(mappings);
+            String date = String.format("%02d%02d2015", 1 + random.nextInt(12), 1 + random.nextInt(28));
+            if (i % 20 == 19) {
+                // Some files match no mapping.
+                names[i] = "UNKNOWN_" + date + ".txt";
+            } else if (mapping % 10 == 9) {
+                names[i] = "REGION" + random.nextInt(5) + "_" + date + "_EXTRACT" + mapping + ".csv";
+            } else {
+                names[i] = "FEED" + mapping + "_" + date + "_" + TYPES[random.nextInt(TYPES.length)] + ".txt";
+            }
+        }
+    }
+
+    /**
+     * Runs every pattern against every name, as the loader did before the index.
+     */
+    @Benchmark
+    public int linear() {
+        int matched = 0;
+        for (String name : names) {
+            for (Pattern pattern : patterns) {
+                Matcher matcher = pattern.matcher(name);
+                if (matcher.matches()) {
+                    matched += matcher.groupCount();
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Runs only the patterns of the index's candidates for each name.
+     */
+    @Benchmark
+    public int indexed() {
+        int matched = 0;
+        for (String name : names) {
+            for (Pattern pattern : index.candidates(name)) {
+                Matcher matcher = pattern.matcher(name);
+                if (matcher.matches()) {
+                    matched += matcher.groupCount();
+                }
+            }
+        }
+        return matched;
+    }
+}
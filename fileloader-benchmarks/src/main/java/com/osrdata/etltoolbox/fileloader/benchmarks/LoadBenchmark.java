@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import com.osrdata.etltoolbox.fileloader.AuditCache;
+import com.osrdata.etltoolbox.fileloader.DatabaseType;
+import com.osrdata.etltoolbox.fileloader.FileSpecification;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an end-to-end load of a synthetic file into an embedded in-memory H2 database, from reading the file to
+ * committing the load's transaction, for varying batch thresholds and with and without the parsing pipeline. The
+ * target table is emptied before every load, so every invocation inserts the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.json")
+public class LoadBenchmark {
+    private static final String TARGET_TABLE = "bench_target";
+
+    @Param({"100000"})
+    private int rows;
+
+    @Param({"8", "32"})
+    private int columns;
+
+    @Param({"0.2"})
+    private double quoteDensity;
+
+    @Param({"100", "1000", "10000"})
+    private int batchThreshold;
+
+    @Param({"0", "4"})
+    private int parserThreads;
+
+    private File file;
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate template;
+    private AuditCache auditCache;
+    private FileSpecification spec;
+
+    @Setup
+    public void setup() throws IOException {
+        file = SyntheticFiles.createTempFile("LOAD_01042015_Update.txt");
+        SyntheticFiles.write(file, rows, columns, quoteDensity);
+
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1", "sa", "", true);
+        template = new JdbcTemplate(dataSource);
+        template.execute("create table audit_file (file_id bigint auto_increment primary key, "
+                + "source_id bigint not null, file_name varchar(50) not null, table_name varchar(50) not null, "
+                + "etl_type char(1) not null, etl_date timestamp not null, processed_flag char(1) not null)");
+        List<String> targetColumns = SyntheticFiles.targetColumns(columns);
+        StringBuilder sql = new StringBuilder();
+        sql.append("create table ").append(TARGET_TABLE).append(" (");
+        for (String column : targetColumns) {
+            sql.append(column).append(" varchar(64), ");
+        }
+        sql.append("source_id bigint, file_id bigint, record_id numeric(28,0))");
+        template.execute(sql.toString());
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("sourcePattern", "LOAD_(\\d{8})_(\\w+)\\.txt");
+        map.put("dateGroup", 1);
+        map.put("dateFormat", "MMddyyyy");
+        map.put("typeGroup", 2);
+        map.put("sourceId", 1);
+        map.put("targetTable", TARGET_TABLE);
+        map.put("targetColumns", targetColumns);
+        map.put("parserLine", 1);
+        map.put("parserCharset", SyntheticFiles.CHARSET.name());
+        map.put("parserThreads", parserThreads);
+        auditCache = new AuditCache(dataSource);
+        spec = new FileSpecification(map, dataSource, auditCache, dataSource, batchThreshold, false,
+                false, 0l, null, null, DatabaseType.forUrl(dataSource.getUrl()));
+    }
+
+    @Setup(Level.Invocation)
+    public void truncate() {
+        template.execute("truncate table " + TARGET_TABLE);
+        template.execute("delete from audit_file");
+        auditCache.clear();
+    }
+
+    @Benchmark
+    public void load() throws IOException, ParseException {
+        spec.load(file);
+    }
+
+    /**
+     * Verifies that the load inserted every record, as failed loads are logged and rolled back rather than thrown.
+     */
+    @TearDown(Level.Invocation)
+    public void verify() {
+        int count = template.queryForObject("select count(*) from " + TARGET_TABLE, Integer.class);
+        if (count != rows) {
+            throw new IllegalStateException("Loaded " + count + " of " + rows + " records");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        template.execute("drop all objects");
+        dataSource.destroy();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import au.com.bytecode.opencsv.CSVParser;
+import au.com.bytecode.opencsv.CSVReader;
+import com.osrdata.etltoolbox.fileloader.CsvRecordReader;
+import com.osrdata.etltoolbox.fileloader.DelimitedLineParser;
+import com.osrdata.etltoolbox.fileloader.FixedWidthReader;
+import com.osrdata.etltoolbox.fileloader.MappedDelimitedReader;
+import com.osrdata.etltoolbox.fileloader.RecordReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures raw parse throughput of a synthetic file with each of the loader's parsers: opencsv, the memory-mapped
+ * reader, with all or half of the columns mapped, the line parser used by the parsing pipeline's parser threads, and
+ * the fixed-width reader. The fixed-width file has the same values as the delimited file, unquoted, so quoteDensity
+ * does not change it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.json")
+public class ParseBenchmark {
+    @Param({"100000"})
+    private int rows;
+
+    @Param({"8", "32"})
+    private int columns;
+
+    @Param({"0.0", "0.2", "1.0"})
+    private double quoteDensity;
+
+    @Param({"opencsv", "mapped", "mappedHalf", "lineParser", "fixedWidth"})
+    private String parser;
+
+    private File file;
+    private boolean[] mapped;
+    private FixedWidthReader.Layout layout;
+
+    @Setup
+    public void setup() throws IOException {
+        file = SyntheticFiles.createTempFile("PARSE_01042015_Update.txt");
+        if (parser.equals("fixedWidth")) {
+            SyntheticFiles.writeFixedWidth(file, rows, columns);
+            layout = newLayout();
+        } else {
+            SyntheticFiles.write(file, rows, columns, quoteDensity);
+        }
+        mapped = new boolean[columns];
+        for (int j = 0; j < columns; j++) {
+            mapped[j] = !parser.equals("mappedHalf") || j % 2 == 0;
+        }
+    }
+
+    @Benchmark
+    public long parse(Blackhole blackhole) throws IOException {
+        if (parser.equals("lineParser")) {
+            return parseLines(blackhole);
+        }
+        RecordReader reader;
+        if (parser.equals("opencsv")) {
+            reader = new CsvRecordReader(new CSVReader(new InputStreamReader(new FileInputStream(file),
+                    SyntheticFiles.CHARSET), CSVParser.DEFAULT_SEPARATOR, CSVParser.DEFAULT_QUOTE_CHARACTER,
+                    CSVParser.DEFAULT_ESCAPE_CHARACTER, 1));
+        } else if (parser.equals("fixedWidth")) {
+            reader = new FixedWidthReader(file, SyntheticFiles.CHARSET, new FixedWidthReader.Layout[] {layout}, 0, 0,
+                    0, 1);
+        } else {
+            reader = new MappedDelimitedReader(file, SyntheticFiles.CHARSET, mapped, CSVParser.DEFAULT_SEPARATOR,
+                    CSVParser.DEFAULT_QUOTE_CHARACTER, CSVParser.DEFAULT_ESCAPE_CHARACTER, 1,
+                    CSVParser.DEFAULT_STRICT_QUOTES, CSVParser.DEFAULT_IGNORE_LEADING_WHITESPACE);
+        }
+        long count = 0l;
+        try {
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                blackhole.consume(values);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    /**
+     * Splits lines into records and parses them the way the parsing pipeline's reader and parser threads do, on a
+     * single thread.
+     */
+    private long parseLines(Blackhole blackhole) throws IOException {
+        DelimitedLineParser scanner = newLineParser();
+        DelimitedLineParser parser = newLineParser();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                SyntheticFiles.CHARSET));
+        long count = 0l;
+        try {
+            reader.readLine();
+            List<String> lines = new ArrayList<String>();
+            boolean continued = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                continued = scanner.scan(line, continued);
+                lines.add(line);
+                if (!continued) {
+                    blackhole.consume(parser.parseRecord(lines, 0, lines.size()));
+                    lines.clear();
+                    count++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return count;
+    }
+
+    /**
+     * Creates the layout of the fixed-width file, trimming the padding of every column.
+     */
+    private FixedWidthReader.Layout newLayout() {
+        int[] lengths = SyntheticFiles.fixedWidths(columns);
+        int[] offsets = new int[columns];
+        boolean[] trimLeft = new boolean[columns];
+        boolean[] trimRight = new boolean[columns];
+        int offset = 0;
+        for (int j = 0; j < columns; j++) {
+            offsets[j] = offset;
+            offset += lengths[j];
+            trimLeft[j] = true;
+            trimRight[j] = true;
+        }
+        return new FixedWidthReader.Layout(new byte[0], offsets, lengths, trimLeft, trimRight);
+    }
+
+    private DelimitedLineParser newLineParser() {
+        return new DelimitedLineParser(CSVParser.DEFAULT_SEPARATOR, CSVParser.DEFAULT_QUOTE_CHARACTER,
+                CSVParser.DEFAULT_ESCAPE_CHARACTER, CSVParser.DEFAULT_STRICT_QUOTES,
+                CSVParser.DEFAULT_IGNORE_LEADING_WHITESPACE);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import com.osrdata.etltoolbox.fileloader.RecordBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of mapping a batch of parsed records into a per-record Object[] list, as the loader did before
+ * record buffers, against mapping them into a reusable {@link RecordBuffer}. Run with "-prof gc" to compare the
+ * allocation rate of each path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBufferBenchmark {
+    private static final Integer SOURCE_ID = 1;
+    private static final Integer FILE_ID = 42;
+
+    @Param({"1000", "10000"})
+    private int batchThreshold;
+
+    @Param({"8", "32"})
+    private int sourceColumns;
+
+    private String[][] values;
+    private int[] sourceIndexes;
+    private int numColumns;
+    private BigDecimal recordIdBase;
+    private long longRecordIdBase;
+    private ArrayList<Object[]> list;
+    private RecordBuffer buffer;
+
+    @Setup
+    public void setup() {
+        values = new String[batchThreshold][];
+        for (int i = 0; i < batchThreshold; i++) {
+            // Every fourth record is short, so missing values are filled with empty strings.
+            int length = i % 4 == 0 ? sourceColumns - 2 : sourceColumns;
+            values[i] = new String[length];
+            for (int j = 0; j < length; j++) {
+                values[i][j] = "value " + i + "." + j;
+            }
+        }
+        sourceIndexes = new int[sourceColumns];
+        for (int j = 0; j < sourceColumns; j++) {
+            sourceIndexes[j] = j;
+        }
+        numColumns = sourceColumns + 3;
+        recordIdBase = new BigDecimal("201501040000000000");
+        longRecordIdBase = 201501040000000000l;
+        list = new ArrayList<Object[]>();
+        buffer = new RecordBuffer(sourceColumns, batchThreshold, SOURCE_ID);
+        buffer.setFileId(FILE_ID);
+    }
+
+    /**
+     * Maps the batch the way the loader did before record buffers: a new Object[] per record, a new empty String per
+     * missing value and a new BigDecimal per record ID.
+     */
+    @Benchmark
+    public void objectArrayList(Blackhole blackhole) {
+        for (int i = 0; i < batchThreshold; i++) {
+            String[] record = values[i];
+            Object[] row = new Object[numColumns];
+            for (int j = 0; j < sourceColumns; j++) {
+                if (j < record.length) {
+                    row[j] = record[j];
+                } else {
+                    row[j] = new String();
+                }
+            }
+            row[numColumns - 3] = SOURCE_ID;
+            row[numColumns - 2] = FILE_ID;
+            row[numColumns - 1] = recordIdBase.add(BigDecimal.valueOf(i + 1));
+            list.add(row);
+        }
+        blackhole.consume(list.get(list.size() - 1));
+        list.clear();
+    }
+
+    /**
+     * Maps the batch into a reusable record buffer with long record IDs.
+     */
+    @Benchmark
+    public void recordBuffer(Blackhole blackhole) {
+        for (int i = 0; i < batchThreshold; i++) {
+            buffer.add(values[i], sourceIndexes, longRecordIdBase + i + 1);
+        }
+        blackhole.consume(buffer.getRecordId(buffer.size() - 1));
+        buffer.clear();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class generates synthetic delimited and fixed-width source files for benchmarks. Files are generated from a fixed seed, so a
+ * given shape always produces the same content and results are comparable between runs and releases.
+ */
+public class SyntheticFiles {
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final long SEED = 20150104l;
+    private static final String CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789 .-_/";
+    private static final int NUMBER_WIDTH = 12;
+    private static final int TEXT_WIDTH = 32;
+
+    /**
+     * Writes a comma separated file with a header line. Values are a mix of integers, decimals, dates and text of
+     * varying length. The given fraction of text values are quoted, with quoted values containing separators, escaped
+     * quotes and, occasionally, line breaks.
+     *
+     * @param file file to write
+     * @param rows number of records
+     * @param columns number of columns in each record
+     * @param quoteDensity fraction of text values that are quoted, from 0 to 1
+     * @throws IOException on error writing file
+     */
+    public static void write(File file, int rows, int columns, double quoteDensity) throws IOException {
+        Random random = new Random(SEED);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET), 65536);
+        try {
+            for (int j = 0; j < columns; j++) {
+                writer.write(j == 0 ? "" : ",");
+                writer.write("column_" + j);
+            }
+            writer.write("\n");
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < rows; i++) {
+                sb.setLength(0);
+                for (int j = 0; j < columns; j++) {
+                    if (j > 0) {
+                        sb.append(',');
+                    }
+                    appendValue(sb, random, i, j, quoteDensity);
+                }
+                sb.append('\n');
+                writer.write(sb.toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a fixed-width file with a header line, with the same mix of values as a delimited file without quoted
+     * values. Integers, decimals and dates are padded on the left and text on the right to the widths returned by
+     * {@link #fixedWidths}, and records are terminated by line breaks.
+     *
+     * @param file file to write
+     * @param rows number of records
+     * @param columns number of columns in each record
+     * @throws IOException on error writing file
+     */
+    public static void writeFixedWidth(File file, int rows, int columns) throws IOException {
+        Random random = new Random(SEED);
+        int[] widths = fixedWidths(columns);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET), 65536);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < columns; j++) {
+                pad(sb, "column_" + j, widths[j], false);
+            }
+            sb.append('\n');
+            writer.write(sb.toString());
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < rows; i++) {
+                sb.setLength(0);
+                for (int j = 0; j < columns; j++) {
+                    value.setLength(0);
+                    appendValue(value, random, i, j, 0.0);
+                    pad(sb, value, widths[j], j % 4 != 3);
+                }
+                sb.append('\n');
+                writer.write(sb.toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Gets the width of each column of a fixed-width file.
+     * @param columns number of columns
+     * @return widths
+     */
+    public static int[] fixedWidths(int columns) {
+        int[] widths = new int[columns];
+        for (int j = 0; j < columns; j++) {
+            widths[j] = j % 4 == 3 ? TEXT_WIDTH : NUMBER_WIDTH;
+        }
+        return widths;
+    }
+
+    private static void pad(StringBuilder sb, CharSequence value, int width, boolean left) {
+        if (!left) {
+            sb.append(value);
+        }
+        for (int i = value.length(); i < width; i++) {
+            sb.append(' ');
+        }
+        if (left) {
+            sb.append(value);
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Random random, int row, int column, double quoteDensity) {
+        switch (column % 4) {
+            case 0:
+                sb.append(row + 1);
+                break;
+            case 1:
+                sb.append(random.nextInt(1000000)).append('.').append(random.nextInt(100));
+                break;
+            case 2:
+                sb.append(2015).append('-').append(1 + random.nextInt(9)).append('-').append(10 + random.nextInt(18));
+                break;
+            default:
+                int length = 4 + random.nextInt(28);
+                if (random.nextDouble() < quoteDensity) {
+                    sb.append('"');
+                    appendText(sb, random, length / 2);
+                    int special = random.nextInt(20);
+                    if (special == 0) {
+                        sb.append('\n');
+                    } else if (special < 5) {
+                        sb.append("\"\"");
+                    } else {
+                        sb.append(',');
+                    }
+                    appendText(sb, random, length - length / 2);
+                    sb.append('"');
+                } else {
+                    appendText(sb, random, length);
+                }
+                break;
+        }
+    }
+
+    private static void appendText(StringBuilder sb, Random random, int length) {
+        for (int i = 0; i < length; i++) {
+            sb.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        }
+    }
+
+    /**
+     * Creates target column names for a synthetic file, mapping every column.
+     * @param columns number of columns
+     * @return target column names
+     */
+    public static List<String> targetColumns(int columns) {
+        List<String> targetColumns = new ArrayList<String>();
+        for (int j = 0; j < columns; j++) {
+            targetColumns.add("column_" + j);
+        }
+        return targetColumns;
+    }
+
+    /**
+     * Creates a file for a benchmark trial in a new temporary directory. The file and directory are deleted when the
+     * JVM exits.
+     *
+     * @param name name of the file, which should match the source pattern of the benchmark specification
+     * @return file
+     * @throws IOException on error creating directory
+     */
+    public static File createTempFile(String name) throws IOException {
+        File directory = Files.createTempDirectory("fileloader-benchmarks").toFile();
+        directory.deleteOnExit();
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        return file;
+    }
+}
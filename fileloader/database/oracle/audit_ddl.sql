@@ -11,5 +11,17 @@ create table osr_audit.audit_file (
 	etl_type char(1) not null,
 	etl_date date not null,
 	processed_flag char(1) not null,
-	constraint audit_file_pk primary key (file_id)
+	constraint audit_file_pk primary key (file_id),
+	constraint audit_file_uk unique (source_id, file_name, table_name, etl_type, etl_date)
+);
+
+drop table osr_audit.audit_checkpoint;
+create table osr_audit.audit_checkpoint (
+  file_id number not null,
+	record_number number not null,
+	record_id number(28, 0) not null,
+	byte_offset number not null,
+	in_field char(1) not null,
+	checkpoint_date date not null,
+	constraint audit_checkpoint_pk primary key (file_id)
 );
@@ -12,6 +12,20 @@ create table audit.audit_file
   etl_type character(1) not null,
   etl_date timestamp without time zone not null,
   processed_flag character(1) not null,
-  constraint audit_file_pk primary key (file_id)
+  constraint audit_file_pk primary key (file_id),
+  constraint audit_file_uk unique (source_id, file_name, table_name, etl_type, etl_date)
 );
-alter table audit.audit_file owner to audit;
\ No newline at end of file
+alter table audit.audit_file owner to audit;
+
+drop table if exists audit.audit_checkpoint;
+create table audit.audit_checkpoint
+(
+  file_id bigint not null,
+  record_number bigint not null,
+  record_id numeric(28,0) not null,
+  byte_offset bigint not null,
+  in_field character(1) not null,
+  checkpoint_date timestamp without time zone not null,
+  constraint audit_checkpoint_pk primary key (file_id)
+);
+alter table audit.audit_checkpoint owner to audit;
@@ -18,5 +18,19 @@ create table audit_file (
 	etl_type char(1) not null,
 	etl_date datetime not null,
 	processed_flag char(1) not null
-	constraint audit_file_pk primary key clustered (file_id asc)
+	constraint audit_file_pk primary key clustered (file_id asc),
+	constraint audit_file_uk unique (source_id, file_name, table_name, etl_type, etl_date)
+);
+
+if object_id('audit_checkpoint', 'u') is not null
+	drop table audit_checkpoint;
+
+create table audit_checkpoint (
+  file_id bigint not null,
+	record_number bigint not null,
+	record_id numeric(28, 0) not null,
+	byte_offset bigint not null,
+	in_field char(1) not null,
+	checkpoint_date datetime not null
+	constraint audit_checkpoint_pk primary key clustered (file_id asc)
 );
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class caches the file IDs of the audit_file table, so that files are registered without querying the audit
+ * database for each file. The rows of each source ID and target table are fetched once in a single query; afterwards
+ * a file missing from the cache is known to be new. New file IDs are allocated from the audit sequence in blocks, and
+ * inserts requested by concurrent loads while an insert is in progress are written together as a single batch.
+ * <p/>
+ * Another loader may register a file after its rows were fetched. The unique key of audit_file rejects the second
+ * insert of a file, in which case the row of the other loader is read and cached, so the file is never loaded twice.
+ * For databases of unknown type, without a known sequence, file IDs are returned as generated keys of single inserts.
+ * Rows deleted from audit_file while the cache is in use, such as by a long running watch, are only seen once the
+ * cache is cleared.
+ */
+public class AuditCache {
+    private static final Logger log = LogManager.getLogger(AuditCache.class);
+    private static final String INSERT_SQL = "insert into audit_file (file_id, source_id, file_name, table_name, etl_type, etl_date, processed_flag) values (?, ?, ?, ?, ?, ?, ?)";
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private final DataSource auditDs;
+    private final JdbcTemplate template;
+    private final int blockSize;
+    private final Map<AuditKey, Integer> fileIds = new ConcurrentHashMap<AuditKey, Integer>();
+    private final Set<String> fetched = Collections.synchronizedSet(new HashSet<String>());
+    private final ArrayDeque<Integer> allocated = new ArrayDeque<Integer>();
+    private final List<Registration> queued = new ArrayList<Registration>();
+    private boolean writing = false;
+    private volatile DatabaseType auditType;
+
+    public AuditCache(DataSource auditDs) {
+        this(auditDs, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param auditDs audit data source
+     * @param blockSize number of file IDs allocated from the audit sequence at a time
+     */
+    public AuditCache(DataSource auditDs, int blockSize) {
+        this.auditDs = auditDs;
+        this.blockSize = Math.max(blockSize, 1);
+        template = new JdbcTemplate(auditDs);
+    }
+
+    /**
+     * Fetches the audit_file rows of a source ID and target table into the cache, unless already fetched.
+     *
+     * @param sourceId source ID
+     * @param tableName target table
+     */
+    public void prefetch(final Integer sourceId, final String tableName) {
+        if (sourceId == null || !fetched.add(scope(sourceId, tableName))) {
+            return;
+        }
+        final int[] count = new int[1];
+        template.query("select file_id, file_name, etl_type, etl_date from audit_file where source_id = ? and table_name = ?",
+                new Object[]{sourceId, tableName},
+                new RowCallbackHandler() {
+                    public void processRow(ResultSet rs) throws SQLException {
+                        fileIds.put(new AuditKey(sourceId, rs.getString(2), tableName, rs.getString(3).trim(),
+                                new Date(rs.getTimestamp(4).getTime())), rs.getInt(1));
+                        count[0]++;
+                    }
+                });
+        log.info("Cached " + LoadContext.getCount(count[0]) + " audit_file rows of source " + sourceId + " for " + tableName);
+    }
+
+    /**
+     * Discards the cached rows, so that rows are read again from the audit database, as when audit_file rows have been
+     * deleted to load files again.
+     */
+    public void clear() {
+        fileIds.clear();
+        fetched.clear();
+    }
+
+    /**
+     * Gets the file ID of a file, querying the audit database only if the rows of its source ID and target table were
+     * not fetched.
+     *
+     * @param key audit key of the file
+     * @return file ID, or null if the file has not been registered
+     */
+    public Integer lookup(AuditKey key) {
+        Integer fileId = fileIds.get(key);
+        if (fileId == null && !fetched.contains(scope(key.getSourceId(), key.getTableName()))) {
+            fileId = select(key);
+            if (fileId != null) {
+                fileIds.put(key, fileId);
+            }
+        }
+        return fileId;
+    }
+
+    /**
+     * Registers a new file, inserting its audit_file row.
+     *
+     * @param key audit key of the file
+     * @return file ID, or null if the file had already been registered by another load, whose file ID is then cached
+     * @throws MetaDataAccessException on error reading the type of the audit database
+     */
+    public Integer insert(AuditKey key) throws MetaDataAccessException {
+        Integer fileId;
+        if (getAuditType() == DatabaseType.OTHER) {
+            fileId = insertGenerated(key);
+        } else {
+            Registration registration = new Registration(key, allocate());
+            synchronized (this) {
+                queued.add(registration);
+            }
+            fileId = register(registration);
+        }
+        if (fileId != null) {
+            fileIds.put(key, fileId);
+        }
+        log.debug("\tInsert into audit_file returned fileId " + fileId);
+        return fileId;
+    }
+
+    /**
+     * Writes queued registrations until the given one is written. The first thread to find no batch being written
+     * writes every queued registration, while other threads wait for its batch to complete.
+     */
+    private Integer register(Registration registration) {
+        while (true) {
+            List<Registration> batch;
+            synchronized (this) {
+                while (writing && !registration.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while registering " + registration.key, e);
+                    }
+                }
+                if (!registration.done) {
+                    writing = true;
+                    batch = new ArrayList<Registration>(queued);
+                    queued.clear();
+                } else {
+                    batch = null;
+                }
+            }
+            if (batch == null) {
+                if (registration.error != null) {
+                    throw registration.error;
+                }
+                return registration.duplicate ? null : registration.fileId;
+            }
+            try {
+                write(batch);
+            } finally {
+                synchronized (this) {
+                    for (Registration written : batch) {
+                        written.done = true;
+                    }
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of registrations. If the batch fails, each row is inserted on its own to find the rows that were
+     * rejected, which may have been inserted by the batch before it failed.
+     */
+    private void write(List<Registration> batch) {
+        List<Object[]> args = new ArrayList<Object[]>(batch.size());
+        for (Registration registration : batch) {
+            args.add(registration.getArgs());
+        }
+        try {
+            template.batchUpdate(INSERT_SQL, args);
+            log.debug("\tInserted batch of " + batch.size() + " audit_file rows");
+            return;
+        } catch (DataAccessException e) {
+            log.debug("\tBatch insert into audit_file failed, inserting rows singly", e);
+        }
+        for (Registration registration : batch) {
+            try {
+                template.update(INSERT_SQL, registration.getArgs());
+            } catch (DataIntegrityViolationException e) {
+                Integer existing = select(registration.key);
+                if (existing == null) {
+                    registration.error = e;
+                } else if (!existing.equals(registration.fileId)) {
+                    registration.duplicate = true;
+                    fileIds.put(registration.key, existing);
+                }
+            } catch (RuntimeException e) {
+                registration.error = e;
+            }
+        }
+    }
+
+    /**
+     * Inserts a row letting the database set file_id with a trigger or identity value, which is returned as a
+     * generated key.
+     */
+    private Integer insertGenerated(final AuditKey key) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        try {
+            template.update(new PreparedStatementCreator() {
+                public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                    PreparedStatement ps = con.prepareStatement("insert into audit_file (source_id, file_name, table_name, etl_type, etl_date, processed_flag) values (?, ?, ?, ?, ?, ?)",
+                            new String[]{"file_id"});
+                    ps.setObject(1, key.getSourceId());
+                    ps.setString(2, key.getFileName());
+                    ps.setString(3, key.getTableName());
+                    ps.setString(4, key.getEtlType());
+                    ps.setTimestamp(5, new Timestamp(key.getEtlDate().getTime()));
+                    ps.setString(6, "N");
+                    return ps;
+                }
+            }, keyHolder);
+        } catch (DataIntegrityViolationException e) {
+            Integer existing = select(key);
+            if (existing == null) {
+                throw e;
+            }
+            fileIds.put(key, existing);
+            return null;
+        }
+        Number fileId = keyHolder.getKeys() != null && keyHolder.getKeys().size() == 1 ? keyHolder.getKey() : null;
+        // Drivers that do not return generated keys require the row to be selected.
+        return fileId != null ? Integer.valueOf(fileId.intValue()) : select(key);
+    }
+
+    /**
+     * Allocates a file ID, fetching a block of values from the audit sequence when all allocated values are used.
+     */
+    private synchronized Integer allocate() throws MetaDataAccessException {
+        if (allocated.isEmpty()) {
+            DatabaseType type = getAuditType();
+            List<Number> values;
+            if (type == DatabaseType.SQLSERVER) {
+                Number first = template.queryForObject("set nocount on; declare @first sql_variant; exec sp_sequence_get_range @sequence_name = N'seq_audit', @range_size = ?, @range_first_value = @first output; select cast(@first as bigint)",
+                        new Object[]{blockSize}, Number.class);
+                values = new ArrayList<Number>(blockSize);
+                for (int i = 0; i < blockSize; i++) {
+                    values.add(first.longValue() + i);
+                }
+            } else if (type == DatabaseType.ORACLE) {
+                values = template.query("select seq_audit.nextval from dual connect by level <= ?",
+                        new Object[]{blockSize}, new SingleColumnRowMapper<Number>(Number.class));
+            } else {
+                values = template.query("select nextval('seq_audit') from generate_series(1, ?)",
+                        new Object[]{blockSize}, new SingleColumnRowMapper<Number>(Number.class));
+            }
+            for (Number value : values) {
+                allocated.add(value.intValue());
+            }
+            log.debug("\tAllocated " + values.size() + " file IDs from seq_audit");
+        }
+        return allocated.poll();
+    }
+
+    /*
+     * Selects file_id of record from audit_file table that matches criteria of file to be loaded, if record exists.
+     */
+    private Integer select(AuditKey key) {
+        List<Integer> fileIds;
+        if (key.getSourceId() == null) {
+            // Files of mappings without a source ID, which replace all records of their target table
+            fileIds = template.query(
+                    "select file_id from audit_file where source_id is null and file_name = ? and table_name = ? and etl_type = ? and etl_date = ?",
+                    new Object[]{key.getFileName(), key.getTableName(), key.getEtlType(), key.getEtlDate()},
+                    new SingleColumnRowMapper<Integer>(Integer.class));
+        } else {
+            fileIds = template.query(
+                    "select file_id from audit_file where source_id = ? and file_name = ? and table_name = ? and etl_type = ? and etl_date = ?",
+                    new Object[]{key.getSourceId(), key.getFileName(), key.getTableName(), key.getEtlType(),
+                            key.getEtlDate()},
+                    new SingleColumnRowMapper<Integer>(Integer.class));
+        }
+        Integer fileId = fileIds.isEmpty() ? null : fileIds.get(0);
+        log.debug("\tSelect audit_file returned " + fileId);
+        return fileId;
+    }
+
+    /**
+     * Gets the type of the audit database, read from its metadata on first use.
+     * @return audit database type
+     * @throws MetaDataAccessException on error reading metadata
+     */
+    public DatabaseType getAuditType() throws MetaDataAccessException {
+        if (auditType == null) {
+            auditType = DatabaseType.forUrl((String) JdbcUtils.extractDatabaseMetaData(auditDs, "getURL"));
+        }
+        return auditType;
+    }
+
+    private String scope(Integer sourceId, String tableName) {
+        return sourceId + "\t" + tableName;
+    }
+
+    /**
+     * A file waiting for its audit_file row to be written.
+     */
+    private static class Registration {
+        private final AuditKey key;
+        private final Integer fileId;
+        private boolean done = false;
+        private boolean duplicate = false;
+        private RuntimeException error;
+
+        private Registration(AuditKey key, Integer fileId) {
+            this.key = key;
+            this.fileId = fileId;
+        }
+
+        private Object[] getArgs() {
+            return new Object[]{fileId, key.getSourceId(), key.getFileName(), key.getTableName(), key.getEtlType(),
+                    new Timestamp(key.getEtlDate().getTime()), "N"};
+        }
+    }
+}
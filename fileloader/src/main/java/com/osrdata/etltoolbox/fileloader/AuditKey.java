@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.Date;
+
+/**
+ * Identifies a load of a source file in the audit_file table, made up of the columns of its unique key.
+ */
+public class AuditKey {
+    private final Integer sourceId;
+    private final String fileName;
+    private final String tableName;
+    private final String etlType;
+    private final Date etlDate;
+
+    public AuditKey(Integer sourceId, String fileName, String tableName, String etlType, Date etlDate) {
+        this.sourceId = sourceId;
+        this.fileName = fileName;
+        this.tableName = tableName;
+        this.etlType = etlType;
+        this.etlDate = etlDate;
+    }
+
+    public Integer getSourceId() {
+        return sourceId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getEtlType() {
+        return etlType;
+    }
+
+    public Date getEtlDate() {
+        return etlDate;
+    }
+
+    /**
+     * Compares dates by their time, as dates read from the database are timestamps, which are never equal to dates.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof AuditKey)) {
+            return false;
+        }
+        AuditKey other = (AuditKey) o;
+        return (sourceId == null ? other.sourceId == null : sourceId.equals(other.sourceId))
+                && fileName.equals(other.fileName) && tableName.equals(other.tableName)
+                && etlType.equals(other.etlType) && etlDate.getTime() == other.etlDate.getTime();
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sourceId != null ? sourceId.hashCode() : 0;
+        result = 31 * result + fileName.hashCode();
+        result = 31 * result + tableName.hashCode();
+        result = 31 * result + etlType.hashCode();
+        result = 31 * result + (int) (etlDate.getTime() ^ (etlDate.getTime() >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + etlType + ", " + etlDate + ")";
+    }
+}
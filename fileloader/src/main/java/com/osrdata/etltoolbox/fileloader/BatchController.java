@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class sizes the batches that the loads of a specification write to its target table. A batch is limited both
+ * by a number of records and by an estimate of the heap its records take, the size of a record being estimated from a
+ * sample of the records of each batch, so wide records are written in smaller batches than narrow ones.
+ * <p/>
+ * When the minimum and maximum number of records differ, the number of records is tuned as records are written. The
+ * throughput of every few full batches is compared with that of the batches before them: the size keeps moving in the
+ * same direction while throughput improves and turns back once it falls, and a batch that takes longer than the
+ * latency limit shrinks the size at once. The controller is shared by the loads of its specification, so the size it
+ * settles on carries over from one file to the next.
+ */
+public class BatchController {
+    /** Number of records of a batch, unless defined by the specification file. */
+    public static final int DEFAULT_ROWS = 1000;
+    /** Maximum estimated bytes of a batch, unless defined by a mapping. */
+    public static final long DEFAULT_MAX_BYTES = 16l * 1024l * 1024l;
+    /** Milliseconds a batch may take to write before its number of records is reduced, unless defined by a mapping. */
+    public static final long DEFAULT_MAX_MILLIS = 5000l;
+    /** Number of records of a batch sampled to estimate the size of a record. */
+    public static final int SAMPLE_ROWS = 32;
+    private static final int WINDOW = 4;
+    private static final double STEP = 1.5;
+    private static final double TOLERANCE = 0.05;
+
+    private final int minRows;
+    private final int maxRows;
+    private final long maxBytes;
+    private final long maxNanos;
+    private int rows;
+    private double rowBytes = 0d;
+    private boolean growing = true;
+    private int windowBatches = 0;
+    private long windowRows = 0l;
+    private long windowNanos = 0l;
+    private double lastThroughput = 0d;
+
+    /**
+     * @param rows initial number of records of a batch
+     * @param minRows minimum number of records of a batch
+     * @param maxRows maximum number of records of a batch, which if equal to minRows fixes the number of records
+     * @param maxBytes maximum estimated bytes of a batch, or zero if unlimited
+     * @param maxMillis milliseconds a batch may take to write before the number of records is reduced, or zero if
+     *                  unlimited
+     */
+    public BatchController(int rows, int minRows, int maxRows, long maxBytes, long maxMillis) {
+        this.rows = rows;
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+        maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    /**
+     * Determines whether the number of records of a batch is tuned as records are written.
+     * @return true, if tuned; otherwise, false
+     */
+    public boolean isAdaptive() {
+        return minRows < maxRows;
+    }
+
+    /**
+     * Gets the number of records of the next batch, which is the current number of records limited by the batch's
+     * maximum estimated bytes, but at least one.
+     *
+     * @return number of records
+     */
+    public synchronized int getBatchRows() {
+        return Math.max(1, Math.min(rows, getByteLimit()));
+    }
+
+    private int getByteLimit() {
+        if (maxBytes <= 0l || rowBytes <= 0d) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (long) (maxBytes / rowBytes));
+    }
+
+    /**
+     * Gets the estimated size of a record.
+     * @return bytes, or zero if no records have been sampled
+     */
+    public synchronized long getRowBytes() {
+        return Math.round(rowBytes);
+    }
+
+    /**
+     * Determines whether the size of a record has been estimated.
+     * @return true, if records have been sampled; otherwise, false
+     */
+    public synchronized boolean isSampled() {
+        return rowBytes > 0d;
+    }
+
+    /**
+     * Updates the estimated size of a record from a sample of up to {@link #SAMPLE_ROWS} records of a batch.
+     *
+     * @param records records of a batch
+     */
+    public void sample(RecordBuffer records) {
+        int size = records.size();
+        if (size == 0) {
+            return;
+        }
+        int step = Math.max(1, size / SAMPLE_ROWS);
+        long bytes = 0l;
+        int count = 0;
+        for (int row = 0; row < size; row += step) {
+            bytes += records.estimateBytes(row);
+            count++;
+        }
+        double sampled = (double) bytes / count;
+        synchronized (this) {
+            rowBytes = rowBytes > 0d ? rowBytes * 0.75d + sampled * 0.25d : sampled;
+        }
+    }
+
+    /**
+     * Records the time taken to write a full batch, adjusting the number of records of later batches if the number
+     * of records is tuned.
+     *
+     * @param batchRows number of records written
+     * @param nanos nanoseconds taken to write them
+     */
+    public synchronized void record(int batchRows, long nanos) {
+        if (!isAdaptive() || batchRows <= 0) {
+            return;
+        }
+        if (maxNanos > 0l && nanos > maxNanos) {
+            growing = false;
+            resize(rows / STEP);
+            return;
+        }
+        windowBatches++;
+        windowRows += batchRows;
+        windowNanos += nanos;
+        if (windowBatches < WINDOW) {
+            return;
+        }
+        double throughput = windowRows / (double) Math.max(windowNanos, 1l);
+        if (lastThroughput > 0d && throughput < lastThroughput * (1d - TOLERANCE)) {
+            growing = !growing;
+        }
+        lastThroughput = throughput;
+        resize(growing ? rows * STEP : rows / STEP);
+    }
+
+    /**
+     * Sets the number of records of a batch, within the minimum and maximum number of records and the number of
+     * records that fit the maximum bytes, and starts measuring throughput at the new size.
+     */
+    private void resize(double newRows) {
+        int upper = Math.max(1, Math.min(maxRows, getByteLimit()));
+        int lower = Math.min(minRows, upper);
+        rows = (int) Math.max(lower, Math.min(upper, Math.round(newRows)));
+        windowBatches = 0;
+        windowRows = 0l;
+        windowNanos = 0l;
+    }
+}
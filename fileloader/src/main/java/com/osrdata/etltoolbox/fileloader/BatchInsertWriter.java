@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Writes records using a JDBC batch of parameterized insert statements. This works with any database and is used
+ * whenever a native bulk load path is not available. The insert statement is prepared once and reused for every batch
+ * written on the same connection, and values are bound directly from the record buffer.
+ */
+public class BatchInsertWriter implements BulkWriter {
+    private static final Logger log = LogManager.getLogger(BatchInsertWriter.class);
+    private final String sql;
+    private Connection connection;
+    private PreparedStatement statement;
+    private boolean supportsBatch;
+
+    /**
+     * @param sql insert statement with a parameter for each insert column
+     */
+    public BatchInsertWriter(String sql) {
+        this.sql = sql;
+    }
+
+    public void write(JdbcTemplate template, final RecordBuffer records) {
+        template.execute(new ConnectionCallback<Object>() {
+            public Object doInConnection(Connection con) throws SQLException, DataAccessException {
+                prepare(con instanceof ConnectionProxy ? ((ConnectionProxy) con).getTargetConnection() : con);
+                int numDataColumns = records.getNumDataColumns();
+                int size = records.size();
+                Integer sourceId = records.getSourceId();
+                try {
+                    for (int row = 0; row < size; row++) {
+                        for (int c = 0; c < numDataColumns; c++) {
+                            bind(c + 1, records.getColumn(c)[row], records.getSqlType(c));
+                        }
+                        if (sourceId != null) {
+                            statement.setInt(numDataColumns + 1, sourceId);
+                            statement.setInt(numDataColumns + 2, records.getFileId());
+                            statement.setLong(numDataColumns + 3, records.getRecordId(row));
+                        }
+                        if (supportsBatch) {
+                            statement.addBatch();
+                        } else {
+                            statement.executeUpdate();
+                        }
+                    }
+                    if (supportsBatch) {
+                        statement.executeBatch();
+                    }
+                } catch (SQLException e) {
+                    // Some drivers keep the statements of a failed batch, which would run again with the next batch
+                    if (supportsBatch) {
+                        statement.clearBatch();
+                    }
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Binds a value using the setter for its type, so drivers receive typed values rather than strings to convert.
+     */
+    private void bind(int index, Object value, int sqlType) throws SQLException {
+        if (value instanceof String) {
+            statement.setString(index, (String) value);
+        } else if (value == null) {
+            statement.setNull(index, sqlType);
+        } else if (value instanceof Integer) {
+            statement.setInt(index, (Integer) value);
+        } else if (value instanceof Long) {
+            statement.setLong(index, (Long) value);
+        } else if (value instanceof BigDecimal) {
+            statement.setBigDecimal(index, (BigDecimal) value);
+        } else if (value instanceof Timestamp) {
+            statement.setTimestamp(index, (Timestamp) value);
+        } else if (value instanceof Date) {
+            statement.setDate(index, (Date) value);
+        } else if (value instanceof Boolean) {
+            statement.setBoolean(index, (Boolean) value);
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+
+    /**
+     * Prepares the insert statement, unless it has already been prepared on the connection.
+     */
+    private void prepare(Connection con) throws SQLException {
+        if (statement == null || connection != con) {
+            close();
+            statement = con.prepareStatement(sql);
+            connection = con;
+            supportsBatch = JdbcUtils.supportsBatchUpdates(con);
+        }
+    }
+
+    public void close() {
+        if (statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                log.debug("\tError closing insert statement", e);
+            }
+            statement = null;
+            connection = null;
+        }
+    }
+
+    public String getSql() {
+        return sql;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * A strategy for writing batches of records to the sink of a mapping, which is its target table or, for a
+ * {@link FileSink}, files. A writer is created for each load and used only by the thread owning the load's
+ * transaction, so it may keep resources such as prepared statements between batches. Writers must use the connection
+ * bound to the current transaction, which JdbcTemplate does, so that the records are written in the same transaction
+ * as the rest of the load; writers to other sinks complete their writes when the transaction completes.
+ */
+public interface BulkWriter {
+    /**
+     * Writes records into the target table.
+     *
+     * @param template template for the target data source
+     * @param records records to write
+     */
+    void write(JdbcTemplate template, RecordBuffer records);
+
+    /**
+     * Releases any resources held by this writer. Called at the end of the load, before its transaction completes.
+     */
+    void close();
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+/**
+ * Progress of a load committed in chunks, as recorded in the audit_checkpoint table. A checkpoint exists while the
+ * load of a file is incomplete and is deleted once its last chunk has been committed.
+ */
+public class Checkpoint {
+    private final Integer fileId;
+    private final long recordNumber;
+    private final long recordId;
+    private final long byteOffset;
+    private final boolean inField;
+
+    /**
+     * @param fileId file ID of the load
+     * @param recordNumber number of records committed
+     * @param recordId record ID of the last record committed
+     * @param byteOffset byte offset of the next record in the source file, or -1 if not known
+     * @param inField field state of the delimited parser at the byte offset, which opencsv carries over between
+     *                records
+     */
+    public Checkpoint(Integer fileId, long recordNumber, long recordId, long byteOffset, boolean inField) {
+        this.fileId = fileId;
+        this.recordNumber = recordNumber;
+        this.recordId = recordId;
+        this.byteOffset = byteOffset;
+        this.inField = inField;
+    }
+
+    public Integer getFileId() {
+        return fileId;
+    }
+
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    public long getRecordId() {
+        return recordId;
+    }
+
+    public long getByteOffset() {
+        return byteOffset;
+    }
+
+    public boolean isInField() {
+        return inField;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+
+/**
+ * Converts values read from a source file into the type of their target column. Converters are created once, when a
+ * {@link FileSpecification} is constructed, and are immutable, so they may be used by any number of loads and parser
+ * threads at the same time.
+ * <p/>
+ * Empty values of typed columns are converted to null. Values that cannot be converted throw an
+ * IllegalArgumentException, which rolls back the load unless its specification skips records in error.
+ */
+public abstract class ColumnConverter {
+    /** Default format of date columns. */
+    public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd";
+    /** Default format of timestamp columns, which may be followed by up to nine digits of fractional seconds. */
+    public static final String DEFAULT_TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateTimeFormatter DEFAULT_TIMESTAMP_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern(DEFAULT_TIMESTAMP_FORMAT)
+            .optionalStart()
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .toFormatter();
+
+    private final String column;
+    private final String type;
+    private final int sqlType;
+
+    protected ColumnConverter(String column, String type, int sqlType) {
+        this.column = column;
+        this.type = type;
+        this.sqlType = sqlType;
+    }
+
+    /**
+     * Creates a converter for a target column.
+     *
+     * @param column name of the target column, used in error messages
+     * @param type one of string, int, long, decimal, date, timestamp or boolean
+     * @param format pattern of date and timestamp values, as defined by {@link DateTimeFormatter}, or null for the
+     *               default format; ignored for other types
+     * @return converter, or null for string columns, whose values are inserted as read
+     */
+    public static ColumnConverter forType(String column, String type, String format) {
+        type = type.toLowerCase();
+        if (type.equals("string")) {
+            return null;
+        } else if (type.equals("int") || type.equals("integer")) {
+            return new IntConverter(column);
+        } else if (type.equals("long") || type.equals("bigint")) {
+            return new LongConverter(column);
+        } else if (type.equals("decimal") || type.equals("numeric")) {
+            return new DecimalConverter(column);
+        } else if (type.equals("date")) {
+            return new DateConverter(column, format != null ? format : DEFAULT_DATE_FORMAT);
+        } else if (type.equals("timestamp")) {
+            return new TimestampConverter(column,
+                    format != null ? DateTimeFormatter.ofPattern(format) : DEFAULT_TIMESTAMP_FORMATTER);
+        } else if (type.equals("boolean")) {
+            return new BooleanConverter(column);
+        }
+        throw new IllegalArgumentException("Unknown type " + type + " for column " + column);
+    }
+
+    /**
+     * Converts a value read from the source file.
+     *
+     * @param value value read from the source file, never null
+     * @return converted value, or null if the value is empty
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    public abstract Object convert(String value);
+
+    /**
+     * Gets the type of the target column.
+     * @return SQL type, as defined by {@link Types}
+     */
+    public int getSqlType() {
+        return sqlType;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    protected IllegalArgumentException invalid(String value, Exception cause) {
+        return new IllegalArgumentException("Invalid " + type + " value '" + value + "' for column " + column, cause);
+    }
+
+    /**
+     * Parses a string of at most 18 digits with an optional sign, returning Long.MIN_VALUE if the string contains any
+     * other characters or is too long, in which case the caller falls back to the JDK's parsing.
+     */
+    private static long parseDigits(String value, int maxDigits) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i = 1;
+        }
+        if (i == length || length - i > maxDigits) {
+            return Long.MIN_VALUE;
+        }
+        long result = 0l;
+        for (; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    private static class IntConverter extends ColumnConverter {
+        private IntConverter(String column) {
+            super(column, "int", Types.INTEGER);
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            long result = parseDigits(value, 9);
+            if (result != Long.MIN_VALUE) {
+                return Integer.valueOf((int) result);
+            }
+            try {
+                return Integer.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                throw invalid(value, e);
+            }
+        }
+    }
+
+    private static class LongConverter extends ColumnConverter {
+        private LongConverter(String column) {
+            super(column, "long", Types.BIGINT);
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            long result = parseDigits(value, 18);
+            if (result != Long.MIN_VALUE) {
+                return Long.valueOf(result);
+            }
+            try {
+                return Long.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                throw invalid(value, e);
+            }
+        }
+    }
+
+    private static class DecimalConverter extends ColumnConverter {
+        private DecimalConverter(String column) {
+            super(column, "decimal", Types.DECIMAL);
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            // Plain values of at most 18 digits are built from a long unscaled value and scale
+            int point = value.indexOf('.');
+            if (point < 0) {
+                long unscaled = parseDigits(value, 18);
+                if (unscaled != Long.MIN_VALUE) {
+                    return BigDecimal.valueOf(unscaled);
+                }
+            } else if (point > 0 && point < value.length() - 1 && value.length() <= 19) {
+                long integer = parseDigits(value.substring(0, point), 18);
+                String fraction = value.substring(point + 1);
+                long digits = parseDigits(fraction, 18);
+                if (integer != Long.MIN_VALUE && digits >= 0 && fraction.charAt(0) != '-'
+                        && fraction.charAt(0) != '+') {
+                    long scale = 1l;
+                    for (int i = 0; i < fraction.length(); i++) {
+                        scale *= 10;
+                    }
+                    boolean negative = value.charAt(0) == '-';
+                    long unscaled = Math.abs(integer) * scale + digits;
+                    return BigDecimal.valueOf(negative ? -unscaled : unscaled, fraction.length());
+                }
+            }
+            try {
+                return new BigDecimal(value.trim());
+            } catch (NumberFormatException e) {
+                throw invalid(value, e);
+            }
+        }
+    }
+
+    private static class DateConverter extends ColumnConverter {
+        private final DateTimeFormatter formatter;
+
+        private DateConverter(String column, String format) {
+            super(column, "date", Types.DATE);
+            formatter = DateTimeFormatter.ofPattern(format);
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            try {
+                return java.sql.Date.valueOf(LocalDate.parse(value, formatter));
+            } catch (DateTimeException e) {
+                throw invalid(value, e);
+            }
+        }
+    }
+
+    private static class TimestampConverter extends ColumnConverter {
+        private final DateTimeFormatter formatter;
+
+        private TimestampConverter(String column, DateTimeFormatter formatter) {
+            super(column, "timestamp", Types.TIMESTAMP);
+            this.formatter = formatter;
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            try {
+                // A format without a time of day, such as a date only format, converts to midnight
+                TemporalAccessor parsed = formatter.parse(value);
+                LocalDate date = LocalDate.from(parsed);
+                LocalTime time = parsed.query(TemporalQueries.localTime());
+                return Timestamp.valueOf(time != null ? date.atTime(time) : date.atStartOfDay());
+            } catch (DateTimeException e) {
+                throw invalid(value, e);
+            }
+        }
+    }
+
+    private static class BooleanConverter extends ColumnConverter {
+        private BooleanConverter(String column) {
+            super(column, "boolean", Types.BOOLEAN);
+        }
+
+        public Object convert(String value) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            String lower = value.trim().toLowerCase();
+            if (lower.equals("true") || lower.equals("t") || lower.equals("y") || lower.equals("yes")
+                    || lower.equals("1")) {
+                return Boolean.TRUE;
+            } else if (lower.equals("false") || lower.equals("f") || lower.equals("n") || lower.equals("no")
+                    || lower.equals("0")) {
+                return Boolean.FALSE;
+            }
+            throw invalid(value, null);
+        }
+    }
+}
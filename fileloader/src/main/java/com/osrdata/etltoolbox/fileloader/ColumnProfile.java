@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.math.BigDecimal;
+import java.sql.DatabaseMetaData;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the values of one mapped column of a source, gathered by a {@link SourceValidator}, and the checks of
+ * those values against the column's definition in the target table's JDBC metadata: values of character columns must
+ * fit the column's length, numeric values must be numbers within the column's precision or range, and columns that
+ * are not nullable must have a value. Values of typed columns must also convert to their type.
+ * <p/>
+ * Empty values are counted as nulls, as typed columns insert them as null, but only violate a column that is not
+ * nullable when the column is typed or the value is missing from the record.
+ */
+public class ColumnProfile {
+    private final String name;
+    private final ColumnConverter converter;
+    private String typeName;
+    private int sqlType = Types.OTHER;
+    private int size = 0;
+    private int scale = 0;
+    private boolean nullable = true;
+    private long numValues = 0l;
+    private long numNulls = 0l;
+    private int maxLength = 0;
+    private long numTooLong = 0l;
+    private long numInvalid = 0l;
+    private long numNullViolations = 0l;
+    private final HyperLogLog distinct = new HyperLogLog();
+
+    /**
+     * @param name name of the target column
+     * @param converter converter of the column, or null if its values are inserted as read
+     */
+    public ColumnProfile(String name, ColumnConverter converter) {
+        this.name = name;
+        this.converter = converter;
+    }
+
+    /**
+     * Sets the definition of the column in the target table, which values are checked against.
+     *
+     * @param typeName database type name
+     * @param sqlType SQL type, as defined by {@link Types}
+     * @param size maximum length of character columns or precision of numeric columns
+     * @param scale scale of numeric columns
+     * @param nullable JDBC nullability of the column
+     */
+    public void setDefinition(String typeName, int sqlType, int size, int scale, int nullable) {
+        this.typeName = typeName;
+        this.sqlType = sqlType;
+        this.size = size;
+        this.scale = scale;
+        this.nullable = nullable != DatabaseMetaData.columnNoNulls;
+    }
+
+    /**
+     * Adds a value read from the source, checking it against the column's definition.
+     *
+     * @param value value read from the source, or null if missing from the record
+     * @return reason the value would fail to load, or null if it is valid
+     */
+    public String add(String value) {
+        numValues++;
+        if (value == null || value.isEmpty()) {
+            numNulls++;
+            if (!nullable && (value == null || converter != null)) {
+                numNullViolations++;
+                return "Null value for column " + name + ", which is not nullable";
+            }
+            return null;
+        }
+        maxLength = Math.max(maxLength, value.length());
+        distinct.add(value);
+
+        Object converted = value;
+        if (converter != null) {
+            try {
+                converted = converter.convert(value);
+            } catch (IllegalArgumentException e) {
+                numInvalid++;
+                return e.getMessage();
+            }
+        }
+        if (isCharacter() && size > 0 && value.length() > size) {
+            numTooLong++;
+            return "Value of length " + value.length() + " exceeds length " + size + " of column " + name;
+        }
+        if (isNumeric() && !(converted instanceof Boolean)) {
+            String reason = checkNumber(converted instanceof String ? ((String) converted).trim() : converted.toString());
+            if (reason != null) {
+                numInvalid++;
+                return reason;
+            }
+        }
+        return null;
+    }
+
+    private String checkNumber(String value) {
+        BigDecimal number;
+        try {
+            number = new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return "Invalid numeric value '" + value + "' for column " + name;
+        }
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                long min = sqlType == Types.TINYINT ? Byte.MIN_VALUE : sqlType == Types.SMALLINT ? Short.MIN_VALUE
+                        : sqlType == Types.INTEGER ? Integer.MIN_VALUE : Long.MIN_VALUE;
+                long max = sqlType == Types.TINYINT ? Byte.MAX_VALUE : sqlType == Types.SMALLINT ? Short.MAX_VALUE
+                        : sqlType == Types.INTEGER ? Integer.MAX_VALUE : Long.MAX_VALUE;
+                if (number.signum() != 0 && number.stripTrailingZeros().scale() > 0
+                        || number.compareTo(BigDecimal.valueOf(min)) < 0
+                        || number.compareTo(BigDecimal.valueOf(max)) > 0) {
+                    return "Value " + value + " is out of range of " + typeName + " column " + name;
+                }
+                return null;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                // Digits beyond the scale are rounded, but digits before the decimal point must fit the precision
+                if (size > 0 && number.precision() - number.scale() > size - scale) {
+                    return "Value " + value + " exceeds precision " + size + "," + scale + " of column " + name;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private boolean isCharacter() {
+        return sqlType == Types.CHAR || sqlType == Types.VARCHAR || sqlType == Types.NCHAR
+                || sqlType == Types.NVARCHAR;
+    }
+
+    private boolean isNumeric() {
+        return sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER
+                || sqlType == Types.BIGINT || sqlType == Types.DECIMAL || sqlType == Types.NUMERIC
+                || sqlType == Types.REAL || sqlType == Types.FLOAT || sqlType == Types.DOUBLE;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of values that would fail to load.
+     * @return number of values too long, invalid or null in a column that is not nullable
+     */
+    public long getNumViolations() {
+        return numTooLong + numInvalid + numNullViolations;
+    }
+
+    /**
+     * Gets a summary of the column's statistics, used in log messages.
+     * @return summary
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder(name);
+        if (typeName != null) {
+            sb.append(' ').append(typeName);
+            if (size > 0) {
+                sb.append('(').append(size).append(scale > 0 ? "," + scale : "").append(')');
+            }
+            sb.append(nullable ? "" : " not null");
+        }
+        sb.append(": max length ").append(maxLength);
+        sb.append(", ").append(LoadContext.getCount(numNulls)).append(" nulls");
+        sb.append(", ~").append(LoadContext.getCount(distinct.estimate())).append(" distinct");
+        if (getNumViolations() > 0) {
+            sb.append(", ").append(LoadContext.getCount(getNumViolations())).append(" violations");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the column's statistics, in the layout of the JSON profile.
+     * @return statistics by name
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("name", name);
+        map.put("type", converter != null ? converter.getType() : "string");
+        if (typeName != null) {
+            map.put("targetType", typeName);
+            map.put("targetSize", size);
+            map.put("targetScale", scale);
+            map.put("targetNullable", nullable);
+        }
+        map.put("values", numValues);
+        map.put("nulls", numNulls);
+        map.put("maxLength", maxLength);
+        map.put("distinct", distinct.estimate());
+        map.put("tooLong", numTooLong);
+        map.put("invalid", numInvalid);
+        map.put("nullViolations", numNullViolations);
+        return map;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes records in a columnar layout: each part is a directory holding a gzip compressed file per column, named after
+ * the column, with one value per line in record order. Consumers read only the columns they need, and values of a
+ * column, being alike, compress well. Values are written a column at a time straight from the record buffer's column
+ * arrays.
+ */
+public class ColumnarFileSink extends FileSink {
+    private Writer[] writers;
+
+    /**
+     * @param directory output directory
+     * @param table target table
+     * @param columns insert columns
+     * @param etlDate ETL date of the load
+     */
+    public ColumnarFileSink(File directory, String table, List<String> columns, Date etlDate) {
+        super(directory, table, columns, etlDate);
+    }
+
+    protected String getExtension() {
+        return "";
+    }
+
+    protected void openPart(File directory) throws IOException {
+        if (!directory.mkdir()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        List<String> columns = getColumns();
+        writers = new Writer[columns.size()];
+        for (int c = 0; c < writers.length; c++) {
+            writers[c] = openGzip(new File(directory, columns.get(c) + ".gz"));
+        }
+    }
+
+    protected void writeRecords(RecordBuffer records) throws IOException {
+        int numColumns = records.getNumColumns();
+        for (int c = 0; c < numColumns; c++) {
+            Writer writer = writers[c];
+            for (int row = 0; row < records.size(); row++) {
+                // Each value is on its own line, so only values with line breaks need quoting
+                writeValue(writer, records.getValue(c, row), '\n');
+                writer.write('\n');
+            }
+        }
+    }
+
+    protected void closePart() throws IOException {
+        if (writers != null) {
+            Writer[] closing = writers;
+            writers = null;
+            IOException failure = null;
+            for (Writer writer : closing) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    failure = failure != null ? failure : e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
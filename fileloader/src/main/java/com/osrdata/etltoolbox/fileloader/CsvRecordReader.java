@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.IOException;
+
+/**
+ * Reads records using opencsv's CSVReader.
+ */
+public class CsvRecordReader implements RecordReader {
+    private final CSVReader reader;
+
+    public CsvRecordReader(CSVReader reader) {
+        this.reader = reader;
+    }
+
+    public String[] readNext() throws IOException {
+        return reader.readNext();
+    }
+
+    public long getPosition() {
+        return -1l;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+/**
+ * Types of database recognized by the loader, which are identified by sniffing the JDBC URL.
+ */
+public enum DatabaseType {
+    SQLSERVER(":sqlserver:"),
+    ORACLE(":oracle:"),
+    POSTGRESQL(":postgresql:"),
+    OTHER(null);
+
+    private final String urlToken;
+
+    DatabaseType(String urlToken) {
+        this.urlToken = urlToken;
+    }
+
+    /**
+     * Determines the type of database from its JDBC URL.
+     * @param url JDBC URL
+     * @return database type, OTHER if the URL is not recognized
+     */
+    public static DatabaseType forUrl(String url) {
+        if (url != null) {
+            for (DatabaseType type : values()) {
+                if (type.urlToken != null && url.indexOf(type.urlToken) != -1) {
+                    return type;
+                }
+            }
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes records to gzip compressed delimited files, one line per record with a header line of column names.
+ */
+public class DelimitedFileSink extends FileSink {
+    private final char separator;
+    private Writer writer;
+
+    /**
+     * @param directory output directory
+     * @param table target table
+     * @param columns insert columns
+     * @param etlDate ETL date of the load
+     * @param separator field separator
+     */
+    public DelimitedFileSink(File directory, String table, List<String> columns, Date etlDate, char separator) {
+        super(directory, table, columns, etlDate);
+        this.separator = separator;
+    }
+
+    protected String getExtension() {
+        return ".csv.gz";
+    }
+
+    protected void openPart(File file) throws IOException {
+        writer = openGzip(file);
+        List<String> columns = getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                writer.write(separator);
+            }
+            writeValue(writer, columns.get(i), separator);
+        }
+        writer.write('\n');
+    }
+
+    protected void writeRecords(RecordBuffer records) throws IOException {
+        int numColumns = records.getNumColumns();
+        for (int row = 0; row < records.size(); row++) {
+            for (int c = 0; c < numColumns; c++) {
+                if (c > 0) {
+                    writer.write(separator);
+                }
+                writeValue(writer, records.getValue(c, row), separator);
+            }
+            writer.write('\n');
+        }
+    }
+
+    protected void closePart() throws IOException {
+        if (writer != null) {
+            Writer closing = writer;
+            writer = null;
+            closing.close();
+        }
+    }
+}
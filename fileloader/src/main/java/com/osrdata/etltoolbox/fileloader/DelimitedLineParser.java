@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class tokenizes delimited lines using exactly the same rules as opencsv's CSVParser, which the sequential load
+ * path uses, so that records parsed on other threads are identical to those read by CSVReader. Unlike CSVParser the
+ * in-field state, which CSVParser carries from one line to the next, can be read and restored, allowing a file to be
+ * split into chunks that are parsed independently. Instances are not thread safe.
+ */
+public class DelimitedLineParser {
+    private final char separator;
+    private final char quotechar;
+    private final char escape;
+    private final boolean strictQuotes;
+    private final boolean ignoreLeadingWhiteSpace;
+    private final StringBuilder sb = new StringBuilder(128);
+    private final List<String> tokens = new ArrayList<String>();
+    private String pending;
+    private boolean inField = false;
+
+    public DelimitedLineParser(char separator, char quotechar, char escape, boolean strictQuotes,
+                               boolean ignoreLeadingWhiteSpace) {
+        this.separator = separator;
+        this.quotechar = quotechar;
+        this.escape = escape;
+        this.strictQuotes = strictQuotes;
+        this.ignoreLeadingWhiteSpace = ignoreLeadingWhiteSpace;
+    }
+
+    public boolean isInField() {
+        return inField;
+    }
+
+    public void setInField(boolean inField) {
+        this.inField = inField;
+    }
+
+    /**
+     * Determines whether the last parsed line ended inside a quoted field that continues on the next line.
+     * @return true, if a field is pending; otherwise, false
+     */
+    public boolean isPending() {
+        return pending != null;
+    }
+
+    /**
+     * Scans a line, updating quote state without producing any tokens. This is considerably cheaper than parsing and is
+     * used to find record boundaries.
+     *
+     * @param line line to scan
+     * @param continued true, if the line continues a quoted field from the previous line
+     * @return true, if the line ends inside a quoted field; otherwise, false
+     */
+    public boolean scan(String line, boolean continued) {
+        boolean inQuotes = continued;
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c == escape) {
+                if ((inQuotes || inField) && length > i + 1
+                        && (line.charAt(i + 1) == quotechar || line.charAt(i + 1) == escape)) {
+                    i++;
+                }
+            } else if (c == quotechar) {
+                if ((inQuotes || inField) && length > i + 1 && line.charAt(i + 1) == quotechar) {
+                    i++;
+                } else {
+                    inQuotes = !inQuotes;
+                }
+                inField = !inField;
+            } else if (c == separator && !inQuotes) {
+                inField = false;
+            } else if (!strictQuotes || inQuotes) {
+                inField = true;
+            }
+        }
+        return inQuotes;
+    }
+
+    /**
+     * Parses a line that may be part of a multi-line record, see CSVParser.parseLineMulti.
+     *
+     * @param line line to parse
+     * @return tokens completed on this line
+     */
+    public String[] parseLineMulti(String line) {
+        tokens.clear();
+        sb.setLength(0);
+        boolean inQuotes = false;
+        if (pending != null) {
+            sb.append(pending);
+            pending = null;
+            inQuotes = true;
+        }
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c == escape) {
+                if ((inQuotes || inField) && length > i + 1
+                        && (line.charAt(i + 1) == quotechar || line.charAt(i + 1) == escape)) {
+                    sb.append(line.charAt(i + 1));
+                    i++;
+                }
+            } else if (c == quotechar) {
+                if ((inQuotes || inField) && length > i + 1 && line.charAt(i + 1) == quotechar) {
+                    sb.append(line.charAt(i + 1));
+                    i++;
+                } else {
+                    // The tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                    if (!strictQuotes && i > 2 && line.charAt(i - 1) != separator && length > i + 1
+                            && line.charAt(i + 1) != separator) {
+                        if (ignoreLeadingWhiteSpace && sb.length() > 0 && isAllWhiteSpace(sb)) {
+                            sb.setLength(0);
+                        } else {
+                            sb.append(c);
+                        }
+                    }
+                    inQuotes = !inQuotes;
+                }
+                inField = !inField;
+            } else if (c == separator && !inQuotes) {
+                tokens.add(sb.toString());
+                sb.setLength(0);
+                inField = false;
+            } else if (!strictQuotes || inQuotes) {
+                sb.append(c);
+                inField = true;
+            }
+        }
+        if (inQuotes) {
+            sb.append('\n');
+            pending = sb.toString();
+        } else {
+            tokens.add(sb.toString());
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Parses the physical lines of a single record, combining tokens from continuation lines the same way as
+     * CSVReader.readNext.
+     *
+     * @param lines lines containing records
+     * @param offset index of the first line of the record
+     * @param count number of lines in the record
+     * @return tokens of the record
+     */
+    public String[] parseRecord(List<String> lines, int offset, int count) {
+        String[] result = null;
+        for (int i = offset; i < offset + count; i++) {
+            String[] r = parseLineMulti(lines.get(i));
+            if (r.length > 0) {
+                if (result == null) {
+                    result = r;
+                } else {
+                    String[] t = new String[result.length + r.length];
+                    System.arraycopy(result, 0, t, 0, result.length);
+                    System.arraycopy(r, 0, t, result.length, r.length);
+                    result = t;
+                }
+            }
+        }
+        // A quoted field left open at end of file is dropped, as CSVReader does.
+        pending = null;
+        return result;
+    }
+
+    private boolean isAllWhiteSpace(CharSequence sequence) {
+        for (int i = 0; i < sequence.length(); i++) {
+            if (!Character.isWhitespace(sequence.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An index of the records previously loaded into a target table, mapping a 64 bit hash of each record's key columns to
+ * a 64 bit hash of all of its mapped columns, used to load only the records of a source that are new or have changed.
+ * The index is an open addressing hash table held in a memory-mapped file, 16 bytes per key at a load factor of at
+ * most three quarters, so it persists between runs and holds hundreds of millions of keys without any objects on the
+ * heap. When full, the table is rehashed into a file of twice the capacity, which replaces the original.
+ * <p/>
+ * Keys are identified by their hash alone. With 64 bit hashes, the chance of two keys of an index of a hundred
+ * million keys colliding, so that a changed record could be taken for an unchanged one, is about one in three
+ * thousand.
+ * <p/>
+ * A load changes the index in place between {@link #begin} and {@link #commit} or {@link #rollback}, recording the
+ * previous state of every key it changes in a memory-mapped undo file, so the changes of a failed load are undone.
+ * If the process stops during a load, the undo file is replayed when the index is next opened. Loads using the same
+ * index therefore run one at a time, while the partitions of a load may use it concurrently.
+ */
+public class DeltaIndex {
+    private static final Logger log = LogManager.getLogger(DeltaIndex.class);
+    private static final long MAGIC = 0x44454c5441494458l;
+    private static final long HEADER_SIZE = 64l;
+    private static final long INITIAL_CAPACITY = 1l << 16;
+    private static final long UNDO_ENTRY_SIZE = 24l;
+    private static final long UNDO_INITIAL_SIZE = UNDO_ENTRY_SIZE << 16;
+    private static final long PRESENT = 1l;
+    private static final long ABSENT = 2l;
+    private static final Map<String, DeltaIndex> indexes = new HashMap<String, DeltaIndex>();
+
+    private final File file;
+    private final File undoFile;
+    private final Semaphore loadPermit = new Semaphore(1, true);
+    private MappedLongs table;
+    private long capacity;
+    private long mask;
+    private long size;
+    private MappedLongs undo;
+    private long numUndo = 0l;
+
+    /**
+     * Opens an index, creating it if it does not exist. An index is opened once per run, so specifications loading the
+     * same target table share it.
+     *
+     * @param file file of the index
+     * @return index
+     * @throws IOException on error opening or creating the index
+     */
+    public static synchronized DeltaIndex open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        DeltaIndex index = indexes.get(path);
+        if (index == null) {
+            index = new DeltaIndex(file);
+            indexes.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * Closes all open indexes.
+     */
+    public static synchronized void closeAll() {
+        for (DeltaIndex index : indexes.values()) {
+            index.close();
+        }
+        indexes.clear();
+    }
+
+    private DeltaIndex(File file) throws IOException {
+        this.file = file;
+        undoFile = new File(file.getPath() + ".undo");
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            table = new MappedLongs(file, file.length());
+            if (table.get(0l) != MAGIC) {
+                table.close();
+                throw new IOException(file.getPath() + " is not a delta index");
+            }
+            capacity = table.get(8l);
+            size = table.get(16l);
+        } else {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory.getPath());
+            }
+            capacity = INITIAL_CAPACITY;
+            table = create(file, capacity);
+        }
+        mask = capacity - 1l;
+        if (undoFile.exists()) {
+            log.warn("\tUndoing changes to " + file.getPath() + " of a load that did not complete");
+            // The size in the header is that of the last commit or growth, not of the keys the load left in the table
+            size = countKeys();
+            undo = new MappedLongs(undoFile, undoFile.length());
+            while (numUndo * UNDO_ENTRY_SIZE < undo.getLength() && undo.get(numUndo * UNDO_ENTRY_SIZE) != 0l) {
+                numUndo++;
+            }
+            undoChanges();
+        }
+        log.info("Opened delta index " + file.getPath() + " of " + LoadContext.getCount(size) + " keys");
+    }
+
+    /**
+     * Begins the changes of a load, waiting until other loads using this index have completed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException on error creating the undo file
+     */
+    public void begin() throws InterruptedException, IOException {
+        loadPermit.acquire();
+        try {
+            synchronized (this) {
+                undo = new MappedLongs(undoFile, UNDO_INITIAL_SIZE);
+                numUndo = 0l;
+            }
+        } catch (IOException e) {
+            loadPermit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps the changes of a load, once its records have been committed.
+     * @throws IOException on error writing the index
+     */
+    public void commit() throws IOException {
+        try {
+            synchronized (this) {
+                table.put(16l, size);
+                table.force();
+                undo.close();
+                undo = null;
+                if (!undoFile.delete()) {
+                    throw new IOException("Unable to delete " + undoFile.getPath());
+                }
+            }
+        } finally {
+            loadPermit.release();
+        }
+    }
+
+    /**
+     * Undoes the changes of a load, once its records have been rolled back.
+     * @throws IOException on error writing the index
+     */
+    public void rollback() throws IOException {
+        try {
+            synchronized (this) {
+                undoChanges();
+            }
+        } finally {
+            loadPermit.release();
+        }
+    }
+
+    /**
+     * Adds or updates the hash of a key's record.
+     *
+     * @param key hash of the record's key columns
+     * @param record hash of the record's mapped columns
+     * @return true, if the key is new or its record has changed; false, if the record is unchanged
+     * @throws IOException on error growing the index
+     */
+    public synchronized boolean put(long key, long record) throws IOException {
+        key = key != 0l ? key : 1l;
+        long slot = find(key);
+        if (slot >= 0l) {
+            long previous = table.get(offset(slot) + 8l);
+            if (previous == record) {
+                return false;
+            }
+            journal(key, previous, PRESENT);
+            table.put(offset(slot) + 8l, record);
+            return true;
+        }
+        journal(key, 0l, ABSENT);
+        set(-slot - 1l, key, record);
+        size++;
+        if (size > capacity / 4l * 3l) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key hash of the record's key columns
+     * @return true, if the key was removed; false, if it was not in the index
+     */
+    public synchronized boolean remove(long key) {
+        key = key != 0l ? key : 1l;
+        long slot = find(key);
+        if (slot < 0l) {
+            return false;
+        }
+        journal(key, table.get(offset(slot) + 8l), PRESENT);
+        delete(slot);
+        size--;
+        return true;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private synchronized void close() {
+        table.close();
+        if (undo != null) {
+            undo.close();
+        }
+    }
+
+    /**
+     * Hashes values of a record.
+     *
+     * @param records buffer holding the record
+     * @param row zero based record
+     * @param columns mapped columns to hash
+     * @return hash
+     */
+    public static long hash(RecordBuffer records, int row, int[] columns) {
+        long h = 0x9e3779b97f4a7c15l;
+        for (int column : columns) {
+            Object value = records.getValue(column, row);
+            long v = value != null ? HyperLogLog.hash(value.toString()) : 0x2545f4914f6cdd1dl;
+            h = (Long.rotateLeft(h, 23) ^ v) * 0xbf58476d1ce4e5b9l;
+        }
+        return h ^ (h >>> 31);
+    }
+
+    private static long offset(long slot) {
+        return HEADER_SIZE + (slot << 4);
+    }
+
+    /**
+     * Finds the slot of a key.
+     * @return slot, or if the key is absent -1 minus the empty slot it would be placed in
+     */
+    private long find(long key) {
+        long slot = key & mask;
+        while (true) {
+            long k = table.get(offset(slot));
+            if (k == key) {
+                return slot;
+            } else if (k == 0l) {
+                return -slot - 1l;
+            }
+            slot = (slot + 1l) & mask;
+        }
+    }
+
+    private long countKeys() {
+        long count = 0l;
+        for (long slot = 0l; slot < capacity; slot++) {
+            if (table.get(offset(slot)) != 0l) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void set(long slot, long key, long record) {
+        table.put(offset(slot), key);
+        table.put(offset(slot) + 8l, record);
+    }
+
+    /**
+     * Empties a slot, shifting back the keys that follow it which would otherwise no longer be found.
+     */
+    private void delete(long slot) {
+        long next = slot;
+        while (true) {
+            next = (next + 1l) & mask;
+            long key = table.get(offset(next));
+            if (key == 0l) {
+                break;
+            }
+            long home = key & mask;
+            boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (!between) {
+                set(slot, key, table.get(offset(next) + 8l));
+                slot = next;
+            }
+        }
+        set(slot, 0l, 0l);
+    }
+
+    private void journal(long key, long record, long state) {
+        if (undo == null) {
+            return;
+        }
+        long position = numUndo * UNDO_ENTRY_SIZE;
+        try {
+            undo.ensure(position + UNDO_ENTRY_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow " + undoFile.getPath(), e);
+        }
+        undo.put(position, key);
+        undo.put(position + 8l, record);
+        undo.put(position + 16l, state);
+        numUndo++;
+    }
+
+    /**
+     * Restores the previous state of the keys recorded in the undo file, latest first, then deletes the undo file.
+     */
+    private void undoChanges() throws IOException {
+        MappedLongs changes = undo;
+        undo = null;
+        for (long i = numUndo - 1l; i >= 0l; i--) {
+            long position = i * UNDO_ENTRY_SIZE;
+            long key = changes.get(position);
+            long slot = find(key);
+            if (changes.get(position + 16l) == ABSENT) {
+                if (slot >= 0l) {
+                    delete(slot);
+                    size--;
+                }
+            } else if (slot >= 0l) {
+                table.put(offset(slot) + 8l, changes.get(position + 8l));
+            } else {
+                set(-slot - 1l, key, changes.get(position + 8l));
+                size++;
+            }
+        }
+        log.info("\tUndid " + LoadContext.getCount(numUndo) + " changes to " + file.getPath());
+        numUndo = 0l;
+        table.put(16l, size);
+        table.force();
+        changes.close();
+        if (!undoFile.delete()) {
+            throw new IOException("Unable to delete " + undoFile.getPath());
+        }
+    }
+
+    /**
+     * Rehashes the index into a file of twice its capacity, which then replaces the index file.
+     */
+    private void grow() throws IOException {
+        long grownCapacity = capacity * 2l;
+        long grownMask = grownCapacity - 1l;
+        File grownFile = new File(file.getPath() + ".tmp");
+        MappedLongs grown = create(grownFile, grownCapacity);
+        for (long slot = 0l; slot < capacity; slot++) {
+            long key = table.get(offset(slot));
+            if (key != 0l) {
+                long target = key & grownMask;
+                while (grown.get(offset(target)) != 0l) {
+                    target = (target + 1l) & grownMask;
+                }
+                grown.put(offset(target), key);
+                grown.put(offset(target) + 8l, table.get(offset(slot) + 8l));
+            }
+        }
+        grown.put(16l, size);
+        grown.force();
+        table.close();
+        Files.move(grownFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        table = grown;
+        capacity = grownCapacity;
+        mask = grownMask;
+        log.debug("\tGrew delta index " + file.getPath() + " to " + LoadContext.getCount(capacity) + " slots");
+    }
+
+    private static MappedLongs create(File file, long capacity) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file.getPath());
+        }
+        MappedLongs table = new MappedLongs(file, offset(capacity));
+        table.put(0l, MAGIC);
+        table.put(8l, capacity);
+        table.put(16l, 0l);
+        return table;
+    }
+
+    /**
+     * A file of longs mapped into memory in segments of at most a gigabyte, since a single mapping is limited to two
+     * gigabytes. Longs never straddle segments, as offsets are multiples of eight.
+     */
+    private static class MappedLongs {
+        private static final int SEGMENT_BITS = 30;
+        private static final long SEGMENT_MASK = (1l << SEGMENT_BITS) - 1l;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private MappedByteBuffer[] segments;
+        private long length;
+
+        private MappedLongs(File file, long length) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            channel = this.file.getChannel();
+            if (this.file.length() < length) {
+                this.file.setLength(length);
+            }
+            map(this.file.length());
+        }
+
+        private void map(long length) throws IOException {
+            int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                        Math.min(SEGMENT_MASK + 1l, length - start));
+            }
+            this.length = length;
+        }
+
+        /**
+         * Grows the file, doubling its length, if it is shorter than the specified length.
+         */
+        private void ensure(long minimum) throws IOException {
+            if (minimum > length) {
+                long grown = Math.max(minimum, length * 2l);
+                file.setLength(grown);
+                map(grown);
+            }
+        }
+
+        private long getLength() {
+            return length;
+        }
+
+        private long get(long offset) {
+            return segments[(int) (offset >>> SEGMENT_BITS)].getLong((int) (offset & SEGMENT_MASK));
+        }
+
+        private void put(long offset, long value) {
+            segments[(int) (offset >>> SEGMENT_BITS)].putLong((int) (offset & SEGMENT_MASK), value);
+        }
+
+        private void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        private void close() {
+            segments = new MappedByteBuffer[0];
+            try {
+                channel.close();
+                file.close();
+            } catch (IOException e) {
+                log.debug("Unable to close mapped file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches a directory for new files, loading each file once it is stable, that is once its size and
+ * modification time have not changed for the stable interval, so that files still being written are not loaded.
+ * Loaded files are moved to the done directory and files that failed to load to the error directory; files that match
+ * no specification are left in place.
+ * <p/>
+ * Files already in the directory when watching starts are loaded as if they had just arrived. The watcher runs until
+ * the process is stopped, when it stops picking up files and waits for loads in progress to complete.
+ */
+public class DirectoryWatcher {
+    private static final Logger log = LogManager.getLogger(DirectoryWatcher.class);
+
+    private final FileLoader loader;
+    private final File directory;
+    private final File doneDirectory;
+    private final File errorDirectory;
+    private final long stableMillis;
+    private final int threads;
+    private final Map<File, Pending> pending = new HashMap<File, Pending>();
+    private final Set<File> loading = Collections.synchronizedSet(new HashSet<File>());
+    private final Set<File> ignored = new HashSet<File>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = true;
+    private WatchService watchService;
+
+    public DirectoryWatcher(FileLoader loader, File directory, File doneDirectory, File errorDirectory,
+                            long stableMillis, int threads) {
+        this.loader = loader;
+        this.directory = directory;
+        this.doneDirectory = doneDirectory;
+        this.errorDirectory = errorDirectory;
+        this.stableMillis = stableMillis;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Watches the directory until the process is stopped.
+     *
+     * @throws IOException on error registering the directory with the watch service
+     */
+    public void run() throws IOException {
+        createDirectory(doneDirectory);
+        createDirectory(errorDirectory);
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                stop();
+            }
+        }, "watcher-shutdown"));
+
+        log.info("Watching " + directory.getAbsolutePath() + " for new files using " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            scan();
+            long pollMillis = Math.max(Math.min(stableMillis / 2, 1000l), 10l);
+            while (running) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            log.debug("\tWatch events overflowed, scanning " + directory.getName());
+                            scan();
+                        } else {
+                            add(new File(directory, ((Path) event.context()).toString()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        log.error(directory.getAbsolutePath() + " is no longer accessible, stopping watch");
+                        break;
+                    }
+                }
+                submitStable(executor);
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("\tWatch service closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            log.info("Stopping watch of " + directory.getAbsolutePath() + ", waiting for loads in progress");
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1l, TimeUnit.MINUTES)) {
+                    log.debug("Waiting for file loads to complete");
+                }
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for file loads to complete");
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.debug("\tError closing watch service", e);
+            }
+            // The process may exit as soon as the watch has stopped, so the loader is closed, writing its metrics and
+            // closing its delta indexes and connections, before stop returns.
+            loader.close();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops watching, blocking until loads in progress have completed and the loader has been closed so that the
+     * process exits cleanly.
+     */
+    public void stop() {
+        running = false;
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds every file in the directory to the pending files, used when starting and when watch events were lost.
+     */
+    private void scan() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                add(file);
+            }
+        }
+    }
+
+    /**
+     * Adds a new or changed file to the pending files, restarting its stable interval.
+     */
+    private void add(File file) {
+        if (!file.isFile() || loading.contains(file) || ignored.contains(file)) {
+            return;
+        }
+        Pending state = pending.get(file);
+        if (state == null) {
+            pending.put(file, new Pending(file));
+        } else {
+            state.check(file);
+        }
+    }
+
+    /**
+     * Submits the pending files whose size and modification time have not changed for the stable interval.
+     */
+    private void submitStable(ExecutorService executor) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<File, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, Pending> entry = iterator.next();
+            final File file = entry.getKey();
+            if (!file.isFile()) {
+                iterator.remove();
+            } else if (!entry.getValue().check(file) && now - entry.getValue().changed >= stableMillis) {
+                iterator.remove();
+                if (!loader.match(file)) {
+                    log.debug("\tIgnoring " + file.getName() + ", which matches no specification");
+                    ignored.add(file);
+                    continue;
+                }
+                loading.add(file);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            boolean loaded = loader.load(file);
+                            move(file, loaded ? doneDirectory : errorDirectory);
+                        } finally {
+                            loading.remove(file);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Moves a processed file to a directory, adding a timestamp to its name if a file of the same name is already
+     * there, such as when a file is delivered again.
+     */
+    private void move(File file, File targetDirectory) {
+        File target = new File(targetDirectory, file.getName());
+        if (target.exists()) {
+            target = new File(targetDirectory, file.getName() + "."
+                    + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(new Date()));
+        }
+        try {
+            Files.move(file.toPath(), target.toPath());
+            log.info("\tMoved " + file.getName() + " to " + targetDirectory.getPath());
+        } catch (IOException e) {
+            log.error("\tUnable to move " + file.getName() + " to " + targetDirectory.getPath(), e);
+        }
+    }
+
+    private void createDirectory(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * The size and modification time last seen of a file waiting to become stable.
+     */
+    private static class Pending {
+        private long size;
+        private long lastModified;
+        private long changed;
+
+        private Pending(File file) {
+            size = file.length();
+            lastModified = file.lastModified();
+            changed = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks whether the file has changed since last seen, restarting its stable interval if it has.
+         */
+        private boolean check(File file) {
+            long currentSize = file.length();
+            long currentModified = file.lastModified();
+            if (currentSize != size || currentModified != lastModified) {
+                size = currentSize;
+                lastModified = currentModified;
+                changed = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,818 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An expression evaluated against each record read from a source file, used by a mapping to filter records and to
+ * derive the values of columns that are not read from the source. Expressions are compiled once, when a
+ * {@link FileSpecification} is constructed, into a tree of nodes that is evaluated directly against the values read
+ * for a record; calls whose arguments are all constants are evaluated when compiled. Compiled expressions are
+ * immutable, so they may be evaluated by any number of loads and parser threads at the same time.
+ * <p/>
+ * Every value is a string. An expression is made up of:
+ * <ul>
+ * <li>string literals in single quotes, a quote being written as two quotes, and numbers, such as 'H' or 10;</li>
+ * <li>$n, the value of the nth column of the record, counting from 1, or the name of a column in targetColumns;</li>
+ * <li>group(n), the nth group of sourcePattern matched by the name of the source, and file(), the name itself;</li>
+ * <li>the functions substr(s, start[, length]), trim(s), ltrim(s), rtrim(s), upper(s), lower(s), length(s),
+ * concat(s, ...), coalesce(s, ...), replace(s, target, replacement), starts(s, prefix), ends(s, suffix),
+ * contains(s, part), matches(s, regex) and if(condition, then, else);</li>
+ * <li>the comparisons =, !=, &lt;, &lt;=, &gt; and &gt;=, which compare numbers if both values are numbers and
+ * strings otherwise, the operators and, or and not, and parentheses.</li>
+ * </ul>
+ * A value is true unless it is empty or "false". Values of columns missing from a record, and groups the name did
+ * not match, are empty.
+ */
+public abstract class Expression {
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+
+    /**
+     * Compiles an expression.
+     *
+     * @param text expression
+     * @param columns names of the columns of the source, as defined by targetColumns, which may be referred to by
+     *                name
+     * @return compiled expression
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static Expression compile(String text, List<String> columns) {
+        Parser parser = new Parser(text, columns);
+        Node root = parser.parseExpression();
+        parser.skipWhitespace();
+        if (parser.pos < text.length()) {
+            throw parser.error("Unexpected '" + text.charAt(parser.pos) + "'");
+        }
+        int[] referenced = new int[parser.columns.size()];
+        int i = 0;
+        for (Integer column : parser.columns) {
+            referenced[i++] = column;
+        }
+        return new Compiled(text, root, referenced);
+    }
+
+    /**
+     * Evaluates the expression against a record.
+     *
+     * @param values values read from the source file
+     * @param groups name of the source followed by the groups of sourcePattern it matched
+     * @return value, never null
+     */
+    public abstract String eval(String[] values, String[] groups);
+
+    /**
+     * Evaluates the expression against a record as a condition.
+     *
+     * @param values values read from the source file
+     * @param groups name of the source followed by the groups of sourcePattern it matched
+     * @return true, unless the value is empty or "false"
+     */
+    public abstract boolean test(String[] values, String[] groups);
+
+    /**
+     * Gets the columns of the source the expression refers to, which must be read for it to be evaluated.
+     * @return zero based index of each column, in ascending order
+     */
+    public abstract int[] getColumns();
+
+    /**
+     * Root of a compiled expression, holding its text for messages.
+     */
+    private static class Compiled extends Expression {
+        private final String text;
+        private final Node root;
+        private final int[] columns;
+
+        private Compiled(String text, Node root, int[] columns) {
+            this.text = text;
+            this.root = root;
+            this.columns = columns;
+        }
+
+        public String eval(String[] values, String[] groups) {
+            return root.eval(values, groups);
+        }
+
+        public boolean test(String[] values, String[] groups) {
+            return root.test(values, groups);
+        }
+
+        public int[] getColumns() {
+            return columns;
+        }
+
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Node of a compiled expression. Nodes that yield a condition override test, so conditions are evaluated without
+     * creating strings.
+     */
+    private abstract static class Node {
+        abstract String eval(String[] values, String[] groups);
+
+        boolean test(String[] values, String[] groups) {
+            return isTrue(eval(values, groups));
+        }
+
+        /**
+         * Determines whether the node's value is the same for every record, so it can be evaluated when compiled.
+         */
+        boolean isConstant() {
+            return false;
+        }
+    }
+
+    private static boolean isTrue(String value) {
+        return !value.isEmpty() && !value.equals(FALSE);
+    }
+
+    private static class Constant extends Node {
+        private final String value;
+        private final boolean condition;
+
+        private Constant(String value) {
+            this.value = value;
+            condition = isTrue(value);
+        }
+
+        String eval(String[] values, String[] groups) {
+            return value;
+        }
+
+        boolean test(String[] values, String[] groups) {
+            return condition;
+        }
+
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    private static class Column extends Node {
+        private final int index;
+
+        private Column(int index) {
+            this.index = index;
+        }
+
+        String eval(String[] values, String[] groups) {
+            if (index < values.length) {
+                String value = values[index];
+                return value != null ? value : RecordBuffer.EMPTY;
+            }
+            return RecordBuffer.EMPTY;
+        }
+    }
+
+    private static class Group extends Node {
+        private final int index;
+
+        private Group(int index) {
+            this.index = index;
+        }
+
+        String eval(String[] values, String[] groups) {
+            if (groups != null && index < groups.length && groups[index] != null) {
+                return groups[index];
+            }
+            return RecordBuffer.EMPTY;
+        }
+    }
+
+    private static class Comparison extends Node {
+        private static final String[] OPERATORS = {"!=", "<=", ">=", "=", "<", ">"};
+        private static final int NE = 0;
+        private static final int LE = 1;
+        private static final int GE = 2;
+        private static final int EQ = 3;
+        private static final int LT = 4;
+        private static final int GT = 5;
+
+        /** Index of the operator in OPERATORS. */
+        private final int operator;
+        private final Node left;
+        private final Node right;
+
+        private Comparison(int operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        String eval(String[] values, String[] groups) {
+            return test(values, groups) ? TRUE : FALSE;
+        }
+
+        boolean test(String[] values, String[] groups) {
+            String a = left.eval(values, groups);
+            String b = right.eval(values, groups);
+            int result;
+            if (isNumber(a) && isNumber(b)) {
+                result = compareNumbers(a, b);
+            } else {
+                result = a.compareTo(b);
+            }
+            switch (operator) {
+                case EQ:
+                    return result == 0;
+                case NE:
+                    return result != 0;
+                case LT:
+                    return result < 0;
+                case LE:
+                    return result <= 0;
+                case GT:
+                    return result > 0;
+                default:
+                    return result >= 0;
+            }
+        }
+
+        boolean isConstant() {
+            return left.isConstant() && right.isConstant();
+        }
+    }
+
+    /**
+     * Determines whether a value is a decimal number, an optional sign followed by digits with at most one decimal
+     * point, without parsing it.
+     */
+    private static boolean isNumber(String value) {
+        int length = value.length();
+        int i = 0;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            i = 1;
+        }
+        boolean digits = false;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * Compares two decimal numbers, as accepted by {@link #isNumber}, exactly rather than as doubles, so that long
+     * identifiers which differ only beyond a double's precision compare as different. Neither value is parsed: signs
+     * are compared, then the integer digits, ignoring leading zeros, by count and then in order, then the fraction
+     * digits, ignoring trailing zeros.
+     */
+    private static int compareNumbers(String a, String b) {
+        int signA = getSign(a);
+        int signB = getSign(b);
+        if (signA != signB || signA == 0) {
+            return signA < signB ? -1 : signA > signB ? 1 : 0;
+        }
+        int startA = getIntegerStart(a);
+        int startB = getIntegerStart(b);
+        int pointA = getPoint(a);
+        int pointB = getPoint(b);
+        int result = (pointA - startA) - (pointB - startB);
+        for (int i = 0; result == 0 && startA + i < pointA; i++) {
+            result = a.charAt(startA + i) - b.charAt(startB + i);
+        }
+        int endA = getFractionEnd(a, pointA);
+        int endB = getFractionEnd(b, pointB);
+        for (int i = 1; result == 0 && (pointA + i < endA || pointB + i < endB); i++) {
+            char digitA = pointA + i < endA ? a.charAt(pointA + i) : '0';
+            char digitB = pointB + i < endB ? b.charAt(pointB + i) : '0';
+            result = digitA - digitB;
+        }
+        return result == 0 ? 0 : (result < 0) == (signA > 0) ? -1 : 1;
+    }
+
+    /**
+     * Gets the sign of a decimal number: -1, 0 if all its digits are zero, or 1.
+     */
+    private static int getSign(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '1' && c <= '9') {
+                return value.charAt(0) == '-' ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the index of the first integer digit of a decimal number that is not a leading zero.
+     */
+    private static int getIntegerStart(String value) {
+        int i = value.length() > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+') ? 1 : 0;
+        while (i < value.length() && value.charAt(i) == '0') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Gets the index of the decimal point of a decimal number, or its length if it has none.
+     */
+    private static int getPoint(String value) {
+        int point = value.indexOf('.');
+        return point < 0 ? value.length() : point;
+    }
+
+    /**
+     * Gets the index following the last fraction digit of a decimal number that is not a trailing zero.
+     */
+    private static int getFractionEnd(String value, int point) {
+        int end = value.length();
+        while (end > point + 1 && value.charAt(end - 1) == '0') {
+            end--;
+        }
+        return end;
+    }
+
+    private static class Logical extends Node {
+        private final boolean and;
+        private final Node left;
+        private final Node right;
+
+        private Logical(boolean and, Node left, Node right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        String eval(String[] values, String[] groups) {
+            return test(values, groups) ? TRUE : FALSE;
+        }
+
+        boolean test(String[] values, String[] groups) {
+            if (and) {
+                return left.test(values, groups) && right.test(values, groups);
+            }
+            return left.test(values, groups) || right.test(values, groups);
+        }
+
+        boolean isConstant() {
+            return left.isConstant() && right.isConstant();
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node operand;
+
+        private Not(Node operand) {
+            this.operand = operand;
+        }
+
+        String eval(String[] values, String[] groups) {
+            return test(values, groups) ? TRUE : FALSE;
+        }
+
+        boolean test(String[] values, String[] groups) {
+            return !operand.test(values, groups);
+        }
+
+        boolean isConstant() {
+            return operand.isConstant();
+        }
+    }
+
+    private static class Function extends Node {
+        /** Names of the functions evaluated by this class, indexed by their opcode. */
+        private static final String[] NAMES = {"if", "coalesce", "concat", "substr", "trim", "ltrim", "rtrim", "upper",
+                "lower", "length", "replace", "starts", "ends", "contains", "matches"};
+        private static final int IF = 0;
+        private static final int COALESCE = 1;
+        private static final int CONCAT = 2;
+        private static final int SUBSTR = 3;
+        private static final int TRIM = 4;
+        private static final int LTRIM = 5;
+        private static final int RTRIM = 6;
+        private static final int UPPER = 7;
+        private static final int LOWER = 8;
+        private static final int LENGTH = 9;
+        private static final int REPLACE = 10;
+        private static final int STARTS = 11;
+        private static final int ENDS = 12;
+        private static final int CONTAINS = 13;
+        private static final int MATCHES = 14;
+
+        private final int function;
+        private final Node[] args;
+        private final int[] numbers;
+        private final Pattern pattern;
+
+        /**
+         * @param function opcode of the function, its index in NAMES
+         * @param numbers value of each constant numeric argument, so it is parsed once
+         * @param pattern compiled regex of matches
+         */
+        private Function(int function, Node[] args, int[] numbers, Pattern pattern) {
+            this.function = function;
+            this.args = args;
+            this.numbers = numbers;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Gets the opcode of a function.
+         * @return opcode, or -1 if the function is not evaluated by this class
+         */
+        private static int getFunction(String name) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        String eval(String[] values, String[] groups) {
+            switch (function) {
+                case IF:
+                    return args[0].test(values, groups) ? args[1].eval(values, groups) : args[2].eval(values, groups);
+                case COALESCE:
+                    for (Node arg : args) {
+                        String value = arg.eval(values, groups);
+                        if (!value.isEmpty()) {
+                            return value;
+                        }
+                    }
+                    return RecordBuffer.EMPTY;
+                case CONCAT:
+                    if (args.length == 1) {
+                        return args[0].eval(values, groups);
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    for (Node arg : args) {
+                        sb.append(arg.eval(values, groups));
+                    }
+                    return sb.toString();
+                case SUBSTR: {
+                    String value = args[0].eval(values, groups);
+                    int length = value.length();
+                    int start = Math.max(0, Math.min(length, getNumber(1, values, groups) - 1));
+                    int end = args.length > 2 ? Math.max(start, Math.min(length, start + getNumber(2, values, groups)))
+                            : length;
+                    return value.substring(start, end);
+                }
+                case TRIM:
+                    return args[0].eval(values, groups).trim();
+                case LTRIM: {
+                    String value = args[0].eval(values, groups);
+                    int start = 0;
+                    while (start < value.length() && value.charAt(start) <= ' ') {
+                        start++;
+                    }
+                    return value.substring(start);
+                }
+                case RTRIM: {
+                    String value = args[0].eval(values, groups);
+                    int end = value.length();
+                    while (end > 0 && value.charAt(end - 1) <= ' ') {
+                        end--;
+                    }
+                    return value.substring(0, end);
+                }
+                case UPPER:
+                    return args[0].eval(values, groups).toUpperCase();
+                case LOWER:
+                    return args[0].eval(values, groups).toLowerCase();
+                case LENGTH:
+                    return Integer.toString(args[0].eval(values, groups).length());
+                case REPLACE:
+                    return args[0].eval(values, groups).replace(args[1].eval(values, groups),
+                            args[2].eval(values, groups));
+                default:
+                    return test(values, groups) ? TRUE : FALSE;
+            }
+        }
+
+        boolean test(String[] values, String[] groups) {
+            switch (function) {
+                case STARTS:
+                    return args[0].eval(values, groups).startsWith(args[1].eval(values, groups));
+                case ENDS:
+                    return args[0].eval(values, groups).endsWith(args[1].eval(values, groups));
+                case CONTAINS:
+                    return args[0].eval(values, groups).contains(args[1].eval(values, groups));
+                case MATCHES:
+                    return pattern.matcher(args[0].eval(values, groups)).matches();
+                default:
+                    return isTrue(eval(values, groups));
+            }
+        }
+
+        private int getNumber(int arg, String[] values, String[] groups) {
+            if (numbers[arg] != Integer.MIN_VALUE) {
+                return numbers[arg];
+            }
+            String value = args[arg].eval(values, groups).trim();
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number '" + value + "' for argument " + (arg + 1)
+                        + " of " + NAMES[function]);
+            }
+        }
+
+        boolean isConstant() {
+            for (Node arg : args) {
+                if (!arg.isConstant()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Recursive descent parser of an expression, where or binds loosest, then and, not, and comparisons.
+     */
+    private static class Parser {
+        private final String text;
+        private final List<String> names;
+        private final TreeSet<Integer> columns = new TreeSet<Integer>();
+        private int pos = 0;
+
+        private Parser(String text, List<String> names) {
+            this.text = text;
+            this.names = names;
+        }
+
+        private Node parseExpression() {
+            Node node = parseAnd();
+            while (acceptWord("or")) {
+                node = fold(new Logical(false, node, parseAnd()));
+            }
+            return node;
+        }
+
+        private Node parseAnd() {
+            Node node = parseNot();
+            while (acceptWord("and")) {
+                node = fold(new Logical(true, node, parseNot()));
+            }
+            return node;
+        }
+
+        private Node parseNot() {
+            if (acceptWord("not")) {
+                return fold(new Not(parseNot()));
+            }
+            Node node = parseOperand();
+            skipWhitespace();
+            // Operators are tried longest first, so that <= is not read as <
+            for (int operator = 0; operator < Comparison.OPERATORS.length; operator++) {
+                if (text.startsWith(Comparison.OPERATORS[operator], pos)) {
+                    pos += Comparison.OPERATORS[operator].length();
+                    return fold(new Comparison(operator, node, parseOperand()));
+                }
+            }
+            return node;
+        }
+
+        private Node parseOperand() {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end");
+            }
+            char c = text.charAt(pos);
+            if (c == '(') {
+                pos++;
+                Node node = parseExpression();
+                expect(')');
+                return node;
+            } else if (c == '\'') {
+                return new Constant(parseString());
+            } else if (c == '$') {
+                pos++;
+                int start = pos;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                if (start == pos || Integer.parseInt(text.substring(start, pos)) < 1) {
+                    throw error("Column number expected after $");
+                }
+                return column(Integer.parseInt(text.substring(start, pos)) - 1);
+            } else if (Character.isDigit(c) || c == '-' || c == '.') {
+                int start = pos++;
+                while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                String number = text.substring(start, pos);
+                if (!isNumber(number)) {
+                    throw error("Invalid number " + number);
+                }
+                return new Constant(number);
+            } else if (Character.isLetter(c) || c == '_') {
+                String name = parseName();
+                skipWhitespace();
+                if (pos < text.length() && text.charAt(pos) == '(') {
+                    pos++;
+                    return parseCall(name.toLowerCase());
+                }
+                for (int i = 0; i < names.size(); i++) {
+                    if (names.get(i).equalsIgnoreCase(name)) {
+                        return column(i);
+                    }
+                }
+                throw error("Unknown column " + name);
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        private Node column(int index) {
+            columns.add(index);
+            return new Column(index);
+        }
+
+        private Node parseCall(String name) {
+            List<Node> args = new ArrayList<Node>();
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == ')') {
+                pos++;
+            } else {
+                do {
+                    args.add(parseExpression());
+                    skipWhitespace();
+                } while (accept(','));
+                expect(')');
+            }
+            int count = args.size();
+            if (name.equals("file")) {
+                checkArgs(name, count, 0, 0);
+                return new Group(0);
+            } else if (name.equals("group")) {
+                checkArgs(name, count, 1, 1);
+                int group = getConstantNumber(name, args.get(0));
+                if (group < 0) {
+                    throw error("Invalid group " + group);
+                }
+                return new Group(group);
+            }
+            int function = Function.getFunction(name);
+            switch (function) {
+                case Function.SUBSTR:
+                    checkArgs(name, count, 2, 3);
+                    break;
+                case Function.TRIM:
+                case Function.LTRIM:
+                case Function.RTRIM:
+                case Function.UPPER:
+                case Function.LOWER:
+                case Function.LENGTH:
+                    checkArgs(name, count, 1, 1);
+                    break;
+                case Function.CONCAT:
+                case Function.COALESCE:
+                    checkArgs(name, count, 1, Integer.MAX_VALUE);
+                    break;
+                case Function.REPLACE:
+                case Function.IF:
+                    checkArgs(name, count, 3, 3);
+                    break;
+                case Function.STARTS:
+                case Function.ENDS:
+                case Function.CONTAINS:
+                case Function.MATCHES:
+                    checkArgs(name, count, 2, 2);
+                    break;
+                default:
+                    throw error("Unknown function " + name);
+            }
+            Node[] nodes = args.toArray(new Node[count]);
+            int[] numbers = new int[count];
+            for (int i = 0; i < count; i++) {
+                numbers[i] = Integer.MIN_VALUE;
+                if (function == Function.SUBSTR && i > 0 && nodes[i].isConstant()) {
+                    numbers[i] = getConstantNumber(name, nodes[i]);
+                }
+            }
+            Pattern pattern = null;
+            if (function == Function.MATCHES) {
+                if (!nodes[1].isConstant()) {
+                    throw error("The regex of matches must be a constant");
+                }
+                try {
+                    pattern = Pattern.compile(nodes[1].eval(null, null));
+                } catch (PatternSyntaxException e) {
+                    throw error("Invalid regex of matches: " + e.getDescription());
+                }
+            }
+            return fold(new Function(function, nodes, numbers, pattern));
+        }
+
+        private void checkArgs(String name, int count, int min, int max) {
+            if (count < min || count > max) {
+                throw error("Wrong number of arguments of " + name);
+            }
+        }
+
+        private int getConstantNumber(String name, Node node) {
+            String value = node.isConstant() ? node.eval(null, null) : null;
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw error("Constant whole number expected as argument of " + name);
+            }
+        }
+
+        /**
+         * Evaluates a node whose value is the same for every record once, replacing it with its value.
+         */
+        private Node fold(Node node) {
+            return node.isConstant() ? new Constant(node.eval(null, null)) : node;
+        }
+
+        private String parseString() {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (true) {
+                if (pos >= text.length()) {
+                    throw error("Unterminated string");
+                }
+                char c = text.charAt(pos++);
+                if (c == '\'') {
+                    if (pos < text.length() && text.charAt(pos) == '\'') {
+                        pos++;
+                    } else {
+                        return sb.toString();
+                    }
+                }
+                sb.append(c);
+            }
+        }
+
+        private String parseName() {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         * Consumes a keyword, which must not be followed by a letter, digit or underscore.
+         */
+        private boolean acceptWord(String word) {
+            skipWhitespace();
+            int end = pos + word.length();
+            if (text.regionMatches(true, pos, word, 0, word.length())
+                    && (end == text.length() || !(Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_'))) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1) + " of expression " + text);
+        }
+    }
+}
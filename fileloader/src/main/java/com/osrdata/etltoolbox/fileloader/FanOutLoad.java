@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.MatchResult;
+
+/**
+ * This class loads a source matched by several specifications into each of their target tables in a single pass. The
+ * source is read and tokenized once, by the calling thread, and its records are handed in blocks to a load of each
+ * specification, run by its own thread on its own connection.
+ * <p/>
+ * Each load is audited and runs in its own transaction exactly as if the source had been loaded by its specification
+ * alone, so a load that fails, or that skips a source it loaded before, does not affect the others, though records it
+ * rejects are written to a reject file named after its target table as well as the source. The loads' queues
+ * are bounded, so the reader waits for the slowest load. Since the loads can only progress together, the load permits
+ * and delta indexes of their target tables are acquired in order of table name before any load starts. The
+ * specifications must have equal reader keys and distinct target tables.
+ */
+public class FanOutLoad {
+    private static final Logger log = LogManager.getLogger(FanOutLoad.class);
+    private static final int BLOCK_SIZE = 1000;
+    private static final int QUEUED_BLOCKS = 4;
+    private static final String[][] END = new String[0][];
+
+    private final SourceInput source;
+    private final List<FileSpecification> specs;
+    private final List<? extends MatchResult> matches;
+
+    public FanOutLoad(SourceInput source, List<FileSpecification> specs, List<? extends MatchResult> matches) {
+        this.source = source;
+        this.specs = specs;
+        this.matches = matches;
+    }
+
+    /**
+     * Runs the loads, returning once each has committed or rolled back.
+     *
+     * @return true, if the source was loaded, or had been loaded before, by every specification; otherwise, false
+     */
+    public boolean run() {
+        boolean loaded = true;
+        final List<FileSpecification> targets = new ArrayList<FileSpecification>();
+        final List<LoadContext> contexts = new ArrayList<LoadContext>();
+        TreeMap<String, Integer> tableOrder = new TreeMap<String, Integer>();
+        for (int i = 0; i < specs.size(); i++) {
+            FileSpecification spec = specs.get(i);
+            try {
+                contexts.add(spec.newLoadContext(source, matches.get(i), true));
+                targets.add(spec);
+                tableOrder.put(spec.getTargetTable().toLowerCase(), targets.size() - 1);
+            } catch (ParseException e) {
+                log.error("\tThe following parsing error occurred while attempting to load " + source.getName()
+                        + " into " + spec.getTargetTable(), e);
+                loaded = false;
+            }
+        }
+        if (targets.isEmpty()) {
+            return loaded;
+        }
+
+        List<Semaphore> acquired = new ArrayList<Semaphore>();
+        List<Integer> begun = new ArrayList<Integer>();
+        try {
+            for (int i : tableOrder.values()) {
+                Semaphore permits = targets.get(i).getLoadPermits();
+                if (permits != null) {
+                    long waitStart = System.nanoTime();
+                    permits.acquire();
+                    acquired.add(permits);
+                    targets.get(i).getMetrics().addWaitNanos(System.nanoTime() - waitStart);
+                }
+            }
+            for (int i : tableOrder.values()) {
+                targets.get(i).beginDelta(contexts.get(i));
+                begun.add(i);
+            }
+            begun.clear();
+            log.info("Reading " + source + " once for " + targets.size() + " target tables");
+            return loaded & load(targets, contexts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("\tInterrupted while waiting to load " + source.getName());
+        } catch (IOException e) {
+            log.error("\tThe following IO error occurred while attempting to load " + source.getName(), e);
+        } catch (RuntimeException e) {
+            log.error("\tThe following error occurred while attempting to load " + source.getName(), e);
+        } finally {
+            // Delta indexes are only left to roll back here if the loads did not start
+            for (int i : begun) {
+                targets.get(i).endDelta(contexts.get(i), false);
+            }
+            for (Semaphore permits : acquired) {
+                permits.release();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a thread loading each target, then reads the source, handing its records to each load.
+     */
+    private boolean load(List<FileSpecification> targets, List<LoadContext> contexts) {
+        final String name = Thread.currentThread().getName();
+        ExecutorService executor = Executors.newFixedThreadPool(targets.size(), new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-target-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<TargetReader> readers = new ArrayList<TargetReader>();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < targets.size(); i++) {
+                final FileSpecification spec = targets.get(i);
+                final LoadContext context = contexts.get(i);
+                final TargetReader reader = new TargetReader();
+                readers.add(reader);
+                context.setReader(reader);
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        try {
+                            return spec.load(context);
+                        } finally {
+                            reader.close();
+                        }
+                    }
+                }));
+            }
+            read(readers);
+
+            boolean loaded = true;
+            for (Future<Boolean> future : futures) {
+                try {
+                    loaded &= future.get();
+                } catch (ExecutionException e) {
+                    log.error("\tThe following error occurred while attempting to load " + source.getName(),
+                            e.getCause());
+                    loaded = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("\tInterrupted while waiting for loads of " + source.getName() + " to complete");
+                    return false;
+                }
+            }
+            return loaded;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads the source, queuing blocks of its records for each load that is still reading them. Reading stops early
+     * if every load has stopped, and a failure to read the source is passed on to each load, which rolls back.
+     */
+    private void read(List<TargetReader> readers) {
+        RecordReader reader = null;
+        IOException failure = null;
+        try {
+            reader = openReader();
+            String[][] records = new String[BLOCK_SIZE][];
+            int numRecords = 0;
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                // Readers may reuse their arrays, so each record is copied before it is shared
+                records[numRecords++] = values.clone();
+                if (numRecords == BLOCK_SIZE) {
+                    if (!put(readers, records)) {
+                        break;
+                    }
+                    records = new String[BLOCK_SIZE][];
+                    numRecords = 0;
+                }
+            }
+            if (numRecords > 0) {
+                put(readers, Arrays.copyOf(records, numRecords));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Interrupted while reading " + source);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.warn("\tError closing " + source, e);
+                }
+            }
+        }
+        for (TargetReader targetReader : readers) {
+            targetReader.end(failure);
+        }
+    }
+
+    /**
+     * Queues a block of records for each load still reading them.
+     *
+     * @return true, if any load is still reading; otherwise, false
+     */
+    private boolean put(List<TargetReader> readers, String[][] records) throws InterruptedException {
+        boolean reading = false;
+        for (TargetReader reader : readers) {
+            reading |= reader.put(records);
+        }
+        return reading;
+    }
+
+    /**
+     * Opens the reader of the source, which creates values for every column read by any of the specifications.
+     */
+    private RecordReader openReader() throws IOException {
+        FileSpecification first = specs.get(0);
+        if (!first.isMapped(source)) {
+            return first.openReader(source);
+        }
+        int numColumns = 0;
+        for (FileSpecification spec : specs) {
+            numColumns = Math.max(numColumns, spec.getReadColumns().length);
+        }
+        boolean[] mapped = new boolean[numColumns];
+        for (FileSpecification spec : specs) {
+            boolean[] readColumns = spec.getReadColumns();
+            for (int i = 0; i < readColumns.length; i++) {
+                mapped[i] |= readColumns[i];
+            }
+        }
+        return first.openMappedReader(source.getFile(), mapped);
+    }
+
+    /**
+     * Reader of the records queued for one load. Closing the reader, once the load completes or fails, discards any
+     * records still queued and tells the source's reader to stop queuing records for the load.
+     */
+    private class TargetReader implements RecordReader {
+        private final BlockingQueue<String[][]> queue = new ArrayBlockingQueue<String[][]>(QUEUED_BLOCKS);
+        private volatile boolean closed = false;
+        private volatile IOException failure;
+        private String[][] block = new String[0][];
+        private int next = 0;
+
+        /**
+         * Queues a block of records, waiting while the queue is full.
+         *
+         * @return true, if the load is still reading; otherwise, false
+         */
+        private boolean put(String[][] records) throws InterruptedException {
+            if (closed) {
+                return false;
+            }
+            // A load closing the reader clears the queue, so the put cannot wait on a load that has stopped
+            queue.put(records);
+            return true;
+        }
+
+        /**
+         * Marks the end of the records, failing the load if the source could not be read.
+         */
+        private void end(IOException failure) {
+            if (closed) {
+                return;
+            }
+            if (failure != null) {
+                this.failure = failure;
+                queue.clear();
+                queue.offer(END);
+                return;
+            }
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.failure = new InterruptedIOException("Interrupted while reading " + source);
+                queue.clear();
+                queue.offer(END);
+            }
+        }
+
+        public String[] readNext() throws IOException {
+            while (next == block.length) {
+                if (block == END) {
+                    return null;
+                }
+                try {
+                    block = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for records of " + source);
+                }
+                next = 0;
+                if (block == END && failure != null) {
+                    throw new IOException("Unable to read " + source, failure);
+                }
+            }
+            return block[next++];
+        }
+
+        public long getPosition() {
+            return -1l;
+        }
+
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
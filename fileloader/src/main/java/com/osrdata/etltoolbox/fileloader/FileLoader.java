@@ -17,19 +17,29 @@
 package com.osrdata.etltoolbox.fileloader;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import jodd.util.ClassLoaderUtil;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 import javax.sql.DataSource;
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 
 /**
  * This class is used to manage loading of delimited source files into target database tables as specified in
@@ -40,8 +50,17 @@ public class FileLoader {
 
     private CommandLine commandLine;
     private ArrayList<FileSpecification> specs = new ArrayList<FileSpecification>();
+    private PatternIndex<FileSpecification> index = new PatternIndex<FileSpecification>();
+    private ArrayList<BasicDataSource> pools = new ArrayList<BasicDataSource>();
+    private boolean closed = false;
     private boolean replaceExisting;
+    private boolean resume;
     private long trace = 0l;
+    private int threads = 1;
+    private int connections = 1;
+    private MetricsRegistry metrics = new MetricsRegistry(null);
+    private File profileFile;
+    private final List<Map<String, Object>> profiles = new ArrayList<Map<String, Object>>();
 
     public FileLoader(CommandLine commandLine) {
         this.commandLine = commandLine;
@@ -58,61 +77,465 @@ public class FileLoader {
             trace = Long.parseLong(commandLine.getOptionValue("trace"));
         }
         replaceExisting = commandLine.hasOption("replace");
+        resume = commandLine.hasOption("resume");
+        if (commandLine.hasOption("threads")) {
+            threads = Integer.parseInt(commandLine.getOptionValue("threads"));
+        }
+        if (commandLine.hasOption("metrics")) {
+            metrics = new MetricsRegistry(new File(commandLine.getOptionValue("metrics")));
+        }
+        if (commandLine.hasOption("validate")) {
+            profileFile = new File(commandLine.getOptionValue("validate"));
+        }
+
+        // Load database dribers from lib folder, before the specifications check which drivers are available.
+        File libDirectory = new File("lib");
+        if (libDirectory.isDirectory()) {
+            File[] jarFiles = libDirectory.listFiles();
+
+            for (File jarFile : jarFiles) {
+                if (jarFile.getName().endsWith(".jar")) {
+                    ClassLoaderUtil.addFileToClassPath(jarFile, this.getClass().getClassLoader());
+                    log.info("Added " + jarFile.getName() + " to classpath");
+                }
+            }
+        }
 
         ObjectMapper mapper = new ObjectMapper();
         Map<String, Object> root = mapper.readValue(new File(commandLine.getOptionValue("spec")), Map.class);
+        List<Object> mappings = (List<Object>) root.get("mappings");
+        List<List<Map<String, Object>>> mappingLayouts = new ArrayList<List<Map<String, Object>>>();
+        List<Map<String, Object>> layouts = new ArrayList<Map<String, Object>>();
+        for (Object mapping : mappings) {
+            mappingLayouts.add(getLayouts((Map<String, Object>) mapping));
+            layouts.addAll(mappingLayouts.get(mappingLayouts.size() - 1));
+        }
+
+        // Each thread needs a connection for every partition of the file it loads, as partitions commit together, and
+        // for every mapping a file it loads may match, as the file is loaded into each of their tables at once.
+        int partitions = 1;
+        for (Map<String, Object> mapping : layouts) {
+            Integer mappingPartitions = (Integer) mapping.get("partitions");
+            if (mappingPartitions != null && mappingPartitions > partitions) {
+                partitions = mappingPartitions;
+            }
+        }
+        connections = threads * Math.max(partitions, mappings.size());
+
+        // Pool properties apply to both data sources, unless overridden by auditPool or targetPool properties.
+        Map<String, Object> pool = (Map<String, Object>) root.get("pool");
 
         String auditUrl = (String) root.get("auditUrl");
         String auditUser = (String) root.get("auditUser");
         String auditPassword = (String) root.get("auditPassword");
-        DataSource auditDs = new DriverManagerDataSource(auditUrl, auditUser, auditPassword);
+        DataSource auditDs = createDataSource("audit", auditUrl, auditUser, auditPassword, pool,
+                (Map<String, Object>) root.get("auditPool"));
 
         String targetUrl = (String) root.get("targetUrl");
         String targetUser = (String) root.get("targetUser");
         String targetPassword = (String) root.get("targetPassword");
-        DataSource targetDs = new DriverManagerDataSource(targetUrl, targetUser, targetPassword);
+        DataSource targetDs = createDataSource("target", targetUrl, targetUser, targetPassword, pool,
+                (Map<String, Object>) root.get("targetPool"));
 
-        int batchThreshold = (Integer) root.get("batchThreshold");
-        List<Object> mappings = (List<Object>) root.get("mappings");
-        for (Object mapping : mappings) {
-            specs.add(new FileSpecification((Map<String, Object>) mapping, auditDs, targetDs, batchThreshold,
-                    replaceExisting, trace));
+        int batchThreshold = root.containsKey("batchThreshold") ? (Integer) root.get("batchThreshold")
+                : BatchController.DEFAULT_ROWS;
+        int auditBlockSize = root.containsKey("auditBlockSize") ? (Integer) root.get("auditBlockSize")
+                : AuditCache.DEFAULT_BLOCK_SIZE;
+        AuditCache auditCache = new AuditCache(auditDs, auditBlockSize);
+
+        // Mappings loading into the same target table share one limit, the lowest maxConcurrency defined among them.
+        Map<String, Integer> tableLimits = new HashMap<String, Integer>();
+        for (Map<String, Object> map : layouts) {
+            Integer maxConcurrency = (Integer) map.get("maxConcurrency");
+            if (maxConcurrency != null) {
+                String table = ((String) map.get("targetTable")).toLowerCase();
+                Integer limit = tableLimits.get(table);
+                if (limit == null || maxConcurrency < limit) {
+                    tableLimits.put(table, maxConcurrency);
+                }
+            }
+        }
+        Map<String, Semaphore> tablePermits = new HashMap<String, Semaphore>();
+        for (Map.Entry<String, Integer> entry : tableLimits.entrySet()) {
+            tablePermits.put(entry.getKey(), new Semaphore(entry.getValue(), true));
         }
 
-        // Load database dribers from lib folder.
-        File libDirectory = new File("lib");
-        if (libDirectory.isDirectory()) {
-            File[] jarFiles = libDirectory.listFiles();
+        for (int i = 0; i < mappings.size(); i++) {
+            List<FileSpecification> layoutSpecs = new ArrayList<FileSpecification>();
+            for (Map<String, Object> map : mappingLayouts.get(i)) {
+                Semaphore loadPermits = tablePermits.get(((String) map.get("targetTable")).toLowerCase());
+                FileSpecification spec = new FileSpecification(map, auditDs, auditCache, targetDs, batchThreshold,
+                        replaceExisting, resume, trace, loadPermits, metrics.forTable((String) map.get("targetTable")),
+                        DatabaseType.forUrl(targetUrl));
+                layoutSpecs.add(spec);
+                // Audit rows are fetched once for all files, rather than queried as each file is loaded.
+                if (profileFile == null) {
+                    auditCache.prefetch(spec.getSourceId(), spec.getTargetTable());
+                }
+            }
+            // The layouts of a mapping are loaded together, by the specification of the first layout
+            FileSpecification spec = layoutSpecs.get(0);
+            if (((Map<String, Object>) mappings.get(i)).containsKey("layouts")) {
+                spec.setLayouts(layoutSpecs);
+            }
+            specs.add(spec);
+            index.add(spec.getSourcePattern(), spec);
+        }
+    }
 
-            for (File jarFile : jarFiles) {
-                if (jarFile.getName().endsWith(".jar")) {
-                    ClassLoaderUtil.addFileToClassPath(jarFile, this.getClass().getClassLoader());
-                    log.info("Added " + jarFile.getName() + " to classpath");
+    /**
+     * Gets the mapping of each record layout of a mapping. A mapping with layouts is expanded into a mapping per
+     * layout, holding the properties of the mapping overridden by those of the layout, such as its recordType,
+     * targetTable and targetColumns; any other mapping has a single layout, the mapping itself.
+     *
+     * @param mapping mapping from the specification file
+     * @return mapping of each layout
+     */
+    private static List<Map<String, Object>> getLayouts(Map<String, Object> mapping) {
+        List<Map<String, Object>> layouts = new ArrayList<Map<String, Object>>();
+        List<Object> layoutSpecs = (List<Object>) mapping.get("layouts");
+        if (layoutSpecs == null) {
+            layouts.add(mapping);
+            return layouts;
+        }
+        for (Object layoutSpec : layoutSpecs) {
+            Map<String, Object> layout = new HashMap<String, Object>(mapping);
+            layout.remove("layouts");
+            layout.putAll((Map<String, Object>) layoutSpec);
+            layouts.add(layout);
+        }
+        return layouts;
+    }
+
+    /**
+     * Creates a pooled data source. Connections are validated when borrowed if a validation query is defined, and
+     * prepared statements are pooled with their connection, so statements such as a target table's insert statement
+     * are prepared once per physical connection rather than for every file. The pool holds by default as many
+     * connections as there are threads loading files, times the partitions each file may be split into or the tables
+     * it may be loaded into at once, and at least eight.
+     *
+     * @param name name of the pool, used to publish its metrics
+     * @param pool pool properties shared by all data sources, or null
+     * @param overrides pool properties of this data source, which override shared properties, or null
+     * @return data source
+     */
+    private DataSource createDataSource(String name, String url, String user, String password,
+                                        Map<String, Object> pool, Map<String, Object> overrides) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        if (pool != null) {
+            properties.putAll(pool);
+        }
+        if (overrides != null) {
+            properties.putAll(overrides);
+        }
+
+        BasicDataSource ds = new BasicDataSource();
+        ds.setUrl(url);
+        ds.setUsername(user);
+        ds.setPassword(password);
+        ds.setMaxTotal(Math.max(8, connections));
+        ds.setMaxIdle(Math.max(8, connections));
+        ds.setPoolPreparedStatements(true);
+        ds.setMaxOpenPreparedStatements(100);
+
+        if (properties.containsKey("maxTotal")) {
+            ds.setMaxTotal((Integer) properties.get("maxTotal"));
+            ds.setMaxIdle((Integer) properties.get("maxTotal"));
+        }
+        if (properties.containsKey("maxIdle")) {
+            ds.setMaxIdle((Integer) properties.get("maxIdle"));
+        }
+        if (properties.containsKey("minIdle")) {
+            ds.setMinIdle((Integer) properties.get("minIdle"));
+        }
+        if (properties.containsKey("initialSize")) {
+            ds.setInitialSize((Integer) properties.get("initialSize"));
+        }
+        if (properties.containsKey("maxWaitMillis")) {
+            ds.setMaxWaitMillis(((Number) properties.get("maxWaitMillis")).longValue());
+        }
+        if (properties.containsKey("maxConnLifetimeMillis")) {
+            ds.setMaxConnLifetimeMillis(((Number) properties.get("maxConnLifetimeMillis")).longValue());
+        }
+        if (properties.containsKey("validationQuery")) {
+            ds.setValidationQuery((String) properties.get("validationQuery"));
+        }
+        if (properties.containsKey("validationQueryTimeout")) {
+            ds.setValidationQueryTimeout((Integer) properties.get("validationQueryTimeout"));
+        }
+        if (properties.containsKey("testOnBorrow")) {
+            ds.setTestOnBorrow((Boolean) properties.get("testOnBorrow"));
+        }
+        if (properties.containsKey("testWhileIdle")) {
+            ds.setTestWhileIdle((Boolean) properties.get("testWhileIdle"));
+        }
+        if (properties.containsKey("timeBetweenEvictionRunsMillis")) {
+            ds.setTimeBetweenEvictionRunsMillis(((Number) properties.get("timeBetweenEvictionRunsMillis")).longValue());
+        }
+        if (properties.containsKey("poolPreparedStatements")) {
+            ds.setPoolPreparedStatements((Boolean) properties.get("poolPreparedStatements"));
+        }
+        if (properties.containsKey("maxOpenPreparedStatements")) {
+            ds.setMaxOpenPreparedStatements((Integer) properties.get("maxOpenPreparedStatements"));
+        }
+        ds.setJmxName(metrics.getPoolJmxName(name));
+        pools.add(ds);
+        metrics.addPool(name, ds);
+        return ds;
+    }
+
+    /**
+     * Writes the JSON summary of the run's metrics, if metrics were requested.
+     */
+    public void writeMetrics() {
+        metrics.writeSummary();
+    }
+
+    /**
+     * Writes the JSON profile of the files validated, if validating rather than loading files.
+     */
+    public void writeProfiles() {
+        if (profileFile == null) {
+            return;
+        }
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            mapper.enable(SerializationFeature.INDENT_OUTPUT);
+            synchronized (profiles) {
+                mapper.writeValue(profileFile, profiles);
+            }
+            log.info("Wrote validation profile to " + profileFile.getPath());
+        } catch (IOException e) {
+            log.warn("Unable to write validation profile to " + profileFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Writes the metrics summary and validation profile and closes the delta indexes and connection pools, closing idle
+     * connections. Connections in use are closed when returned. Closing a loader that is already closed does nothing,
+     * since a watched directory's loader is closed when the watch stops.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeMetrics();
+        writeProfiles();
+        metrics.close();
+        DeltaIndex.closeAll();
+        for (BasicDataSource ds : pools) {
+            try {
+                ds.close();
+            } catch (SQLException e) {
+                log.warn("Error closing connection pool for " + ds.getUrl(), e);
+            }
+        }
+        pools.clear();
+    }
+
+    /**
+     * Attempts to load each of the specified files. When more than one thread has been requested the files are
+     * scheduled across a fixed size pool of worker threads, each file still being loaded in its own transaction; this
+     * method returns once all files have been processed.
+     *
+     * @param files files to load
+     */
+    public void load(File[] files) {
+        if (threads <= 1) {
+            for (File file : files) {
+                load(file);
+            }
+            return;
+        }
+
+        log.info("Loading " + files.length + " files using " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final File file : files) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    load(file);
                 }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1l, TimeUnit.MINUTES)) {
+                log.debug("Waiting for file loads to complete");
             }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for file loads to complete");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Attempts to load specified file, if it matches file name pattern from one or more file specifications.
+     * Attempts to load specified file, if it matches file name pattern from one or more file specifications. The
+     * specifications are looked up in an index of their patterns' literal prefixes and suffixes, so only specifications
+     * the file's name may match are tested. The entries of a zip archive are read from its directory once and each is
+     * matched as a separate source, in the order stored in the archive.
+     * <p/>
+     * A source matched by several specifications that read it identically, into different target tables, is read once
+     * for all of them by a {@link FanOutLoad}, each table still being loaded in its own transaction.
      *
      * @param file file to load
-     * @throws IOException              on error reading file
-     * @throws java.text.ParseException on error parsing line in file
+     * @return true, if the file was loaded by every matching specification; otherwise, false
      */
-    public void load(File file) {
-        for (FileSpecification spec : specs) {
-            try {
-                if (spec.match(file)) {
-                    spec.load(file);
+    public boolean load(File file) {
+        if (!SourceInput.isZip(file)) {
+            return load(SourceInput.forFile(file));
+        }
+        List<SourceInput> sources;
+        try {
+            sources = SourceInput.forZip(file);
+        } catch (IOException e) {
+            log.error("\tThe following IO error occurred while attempting to read zip archive " + file.getName(), e);
+            return false;
+        }
+        boolean loaded = true;
+        for (SourceInput source : sources) {
+            loaded &= load(source);
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads a source using every specification whose pattern matches the source's name.
+     */
+    private boolean load(SourceInput source) {
+        boolean loaded = true;
+        List<FileSpecification> matched = new ArrayList<FileSpecification>();
+        List<Matcher> matchers = new ArrayList<Matcher>();
+        for (FileSpecification spec : index.candidates(source.getName())) {
+            Matcher matcher = spec.getSourcePattern().matcher(source.getName());
+            if (matcher.matches()) {
+                matched.add(spec);
+                matchers.add(matcher);
+            }
+        }
+        for (List<Integer> group : groupByReader(matched)) {
+            if (group.size() == 1) {
+                int i = group.get(0);
+                loaded &= load(matched.get(i), source, matchers.get(i));
+            } else {
+                List<FileSpecification> groupSpecs = new ArrayList<FileSpecification>();
+                List<Matcher> groupMatchers = new ArrayList<Matcher>();
+                for (int i : group) {
+                    groupSpecs.add(matched.get(i));
+                    groupMatchers.add(matchers.get(i));
                 }
-            } catch (java.text.ParseException e) {
-                log.error("\tThe following parsing error occurred while attempting to load " + file.getName(), e);
-            } catch (IOException e) {
-                log.error("\tThe following IO error occurred while attempting to load " + file.getName(), e);
-            } catch (RuntimeException e) {
-                log.error("\tThe following error occurred while attempting to load " + file.getName(), e);
+                loaded &= new FanOutLoad(source, groupSpecs, groupMatchers).run();
             }
         }
+        return loaded;
+    }
+
+    /**
+     * Groups the specifications matching a file into those that can share a single read of the file, having equal
+     * reader keys and different target tables. Specifications are grouped in order, each joining the first group it
+     * can share; when validating, each specification is on its own.
+     *
+     * @param matched specifications matching the file
+     * @return indexes of the specifications of each group
+     */
+    private List<List<Integer>> groupByReader(List<FileSpecification> matched) {
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        List<String> groupKeys = new ArrayList<String>();
+        List<Set<String>> groupTables = new ArrayList<Set<String>>();
+        for (int i = 0; i < matched.size(); i++) {
+            String key = profileFile == null ? matched.get(i).getReaderKey() : null;
+            String table = matched.get(i).getTargetTable().toLowerCase();
+            int group = -1;
+            for (int j = 0; key != null && j < groups.size() && group < 0; j++) {
+                if (key.equals(groupKeys.get(j)) && !groupTables.get(j).contains(table)) {
+                    group = j;
+                }
+            }
+            if (group < 0) {
+                group = groups.size();
+                groups.add(new ArrayList<Integer>());
+                groupKeys.add(key);
+                groupTables.add(new HashSet<String>());
+            }
+            groups.get(group).add(i);
+            groupTables.get(group).add(table);
+        }
+        return groups;
+    }
+
+    /**
+     * Loads a source using a specification, reusing the result of matching the source's name. When validating, the
+     * source is validated against the specification's target tables instead.
+     */
+    private boolean load(FileSpecification spec, SourceInput source, Matcher matcher) {
+        try {
+            if (profileFile != null) {
+                SourceValidator validator = new SourceValidator(spec);
+                try {
+                    return validator.validate(source);
+                } finally {
+                    synchronized (profiles) {
+                        profiles.addAll(validator.getProfiles());
+                    }
+                }
+            }
+            return spec.load(source, matcher);
+        } catch (java.text.ParseException e) {
+            log.error("\tThe following parsing error occurred while attempting to load " + source.getName(), e);
+        } catch (IOException e) {
+            log.error("\tThe following IO error occurred while attempting to load " + source.getName(), e);
+        } catch (RuntimeException e) {
+            log.error("\tThe following error occurred while attempting to load " + source.getName(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a file matches the file name pattern of one or more file specifications. A zip archive matches
+     * if the name of any of its entries does.
+     *
+     * @param file file to check
+     * @return true, if the file matches a specification; otherwise, false
+     */
+    public boolean match(File file) {
+        if (!SourceInput.isZip(file)) {
+            return match(SourceInput.forFile(file).getName());
+        }
+        try {
+            for (SourceInput source : SourceInput.forZip(file)) {
+                if (match(source.getName())) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read zip archive " + file.getName() + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean match(String name) {
+        for (FileSpecification spec : index.candidates(name)) {
+            if (spec.getSourcePattern().matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Watches a directory, loading files as they arrive until this process is stopped. Specifications and connection
+     * pools are kept for the life of the process, so each file is loaded without the cost of starting a new process.
+     *
+     * @param directory directory to watch
+     * @param doneDirectory directory that loaded files are moved to
+     * @param errorDirectory directory that files which failed to load are moved to
+     * @param stableMillis milliseconds a file's size and modification time must be unchanged before it is loaded
+     * @throws IOException on error watching directory
+     */
+    public void watch(File directory, File doneDirectory, File errorDirectory, long stableMillis) throws IOException {
+        DirectoryWatcher watcher = new DirectoryWatcher(this, directory, doneDirectory, errorDirectory, stableMillis,
+                threads);
+        watcher.run();
     }
 }
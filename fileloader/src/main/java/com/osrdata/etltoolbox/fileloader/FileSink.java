@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A writer that writes records to local files rather than a database table, for targets that are consumed as files.
+ * Files are laid out by target table, ETL date and source ID, as
+ * <code>&lt;directory&gt;/&lt;table&gt;/etl_date=yyyy-MM-dd/source_id=&lt;id&gt;/&lt;table&gt;-&lt;file id&gt;-&lt;first
+ * record&gt;</code>, so that tools reading partitioned directories can prune by date and source.
+ * <p/>
+ * Each transaction of a load writes one part, named after the file ID and the number of its first record, so the
+ * partitions of a load write separate parts. A part is written under a hidden temporary name and renamed once the
+ * transaction commits, or deleted if it rolls back, so files only appear for committed records, as rows would in a
+ * table.
+ * <p/>
+ * Values are written as CSV: null values are empty and unquoted, and values containing the separator, quotes or line
+ * breaks, as well as empty strings, are quoted.
+ */
+public abstract class FileSink implements BulkWriter {
+    private static final Logger log = LogManager.getLogger(FileSink.class);
+    protected static final int BUFFER_SIZE = 65536;
+    private final File tableDirectory;
+    private final String table;
+    private final List<String> columns;
+    private final Date etlDate;
+    private File part;
+    private File tempPart;
+
+    /**
+     * @param directory output directory
+     * @param table target table, which names the table's directory and its parts
+     * @param columns insert columns
+     * @param etlDate ETL date of the load
+     */
+    protected FileSink(File directory, String table, List<String> columns, Date etlDate) {
+        this.tableDirectory = new File(directory, table);
+        this.table = table;
+        this.columns = columns;
+        this.etlDate = etlDate;
+    }
+
+    public void write(JdbcTemplate template, RecordBuffer records) {
+        if (records.size() == 0) {
+            return;
+        }
+        try {
+            if (part == null) {
+                open(records);
+            }
+            writeRecords(records);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing parts of " + table + " to " + tableDirectory, e);
+        }
+    }
+
+    /**
+     * Opens a part for the records of the current transaction, to be renamed or deleted when it completes.
+     */
+    private void open(RecordBuffer records) throws IOException {
+        File directory = new File(tableDirectory, "etl_date=" + new SimpleDateFormat("yyyy-MM-dd").format(etlDate));
+        if (records.getSourceId() != null) {
+            directory = new File(directory, "source_id=" + records.getSourceId());
+        }
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        long firstRecord = records.getRecordId(0) % 10000000000l;
+        String name = table + "-" + records.getFileId() + "-" + firstRecord + getExtension();
+        final File committedPart = new File(directory, name);
+        final File uncommittedPart = new File(directory, "." + name + ".tmp");
+        // Left by a load that was killed before its transaction completed
+        delete(uncommittedPart);
+        try {
+            openPart(uncommittedPart);
+        } catch (IOException e) {
+            closePart();
+            delete(uncommittedPart);
+            throw e;
+        }
+        part = committedPart;
+        tempPart = uncommittedPart;
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                public void afterCompletion(int status) {
+                    complete(committedPart, uncommittedPart, status == TransactionSynchronization.STATUS_COMMITTED);
+                }
+            });
+        }
+    }
+
+    public void close() {
+        if (part == null) {
+            return;
+        }
+        File committedPart = part;
+        File uncommittedPart = tempPart;
+        part = null;
+        tempPart = null;
+        try {
+            closePart();
+        } catch (IOException e) {
+            // The transaction still commits, so the part must not be renamed into place
+            delete(uncommittedPart);
+            throw new IllegalStateException("Error writing " + uncommittedPart, e);
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            complete(committedPart, uncommittedPart, true);
+        }
+    }
+
+    /**
+     * Renames a part into place once its transaction has committed, or deletes it if the transaction rolled back.
+     */
+    private void complete(File committedPart, File uncommittedPart, boolean committed) {
+        if (!uncommittedPart.exists()) {
+            return;
+        }
+        if (committed) {
+            try {
+                Files.move(uncommittedPart.toPath(), committedPart.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                log.debug("\tWrote " + committedPart);
+            } catch (IOException e) {
+                log.error("\tUnable to rename " + uncommittedPart + " to " + committedPart, e);
+            }
+        } else {
+            try {
+                closePart();
+            } catch (IOException e) {
+                log.debug("\tError closing " + uncommittedPart, e);
+            }
+            delete(uncommittedPart);
+        }
+    }
+
+    /**
+     * Removes the parts written for a file, or for every file when its target has no source ID, as when the file is
+     * replaced.
+     *
+     * @param directory output directory
+     * @param table target table
+     * @param fileId file ID, or null to remove all parts of the table
+     * @return number of parts removed
+     */
+    public static int remove(File directory, String table, Integer fileId) {
+        String prefix = fileId != null ? table + "-" + fileId + "-" : table + "-";
+        return remove(new File(directory, table), prefix);
+    }
+
+    private static int remove(File directory, String prefix) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix)) {
+                    delete(file);
+                    count++;
+                } else if (file.isDirectory()) {
+                    count += remove(file, prefix);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            log.warn("\tUnable to delete " + file);
+        }
+    }
+
+    /**
+     * Opens a gzip compressed file for writing UTF-8 text.
+     */
+    protected static Writer openGzip(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes a value in CSV format.
+     *
+     * @param writer writer to write to
+     * @param value value to write, which may be null
+     * @param separator field separator, which causes values containing it to be quoted
+     */
+    protected static void writeValue(Writer writer, Object value, char separator) throws IOException {
+        if (value == null) {
+            return;
+        }
+        String text = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString();
+        boolean quoted = text.isEmpty();
+        for (int i = 0; i < text.length() && !quoted; i++) {
+            char c = text.charAt(i);
+            quoted = c == separator || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            writer.write(text);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Gets the extension of the parts written by this sink.
+     * @return extension, including its leading period
+     */
+    protected abstract String getExtension();
+
+    /**
+     * Opens a part.
+     * @param file file or directory to write the part to
+     */
+    protected abstract void openPart(File file) throws IOException;
+
+    /**
+     * Writes records to the open part.
+     * @param records records to write
+     */
+    protected abstract void writeRecords(RecordBuffer records) throws IOException;
+
+    /**
+     * Closes the open part, if it has not been closed already.
+     */
+    protected abstract void closePart() throws IOException;
+}
@@ -20,25 +20,40 @@ import au.com.bytecode.opencsv.CSVParser;
 import au.com.bytecode.opencsv.CSVReader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.MetaDataAccessException;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,41 +63,87 @@ import java.util.regex.Pattern;
  */
 public class FileSpecification {
     private static final Logger log = LogManager.getLogger(FileSpecification.class);
-    private Pattern sourcePattern;
-    private Integer dateGroup;
-    private String dateFormat;
-    private Integer typeGroup;
-    private Integer sourceId;
-    private File sourceFile;
-    private List<String> targetColumns = null;
-    private String targetTable;
-    private String targetSql;
-    private DataSource targetDs = null;
-    private JdbcTemplate targetTemplate = null;
-    private DataSource auditDs = null;
+    private final Pattern sourcePattern;
+    private final Integer dateGroup;
+    private final String dateFormat;
+    private final Integer typeGroup;
+    private final Integer sourceId;
+    private final List<String> targetColumns;
+    private final String targetTable;
+    private final String targetSql;
+    private final String replaceStrategy;
+    private final String stagingTable;
+    private final String stagingSql;
+    private final DatabaseType targetType;
+    private boolean stagingCreated = false;
+    private final List<String> insertColumns;
+    private final int[] sourceIndexes;
+    private final ColumnConverter[] converters;
+    private final Expression filter;
+    private final Expression[] expressions;
+    private final boolean[] readColumns;
+    private final String writerType;
+    private String sinkType = "jdbc";
+    private File outputDirectory;
+    private char outputSeparator = ',';
+    private final DataSource targetDs;
+    private final JdbcTemplate targetTemplate;
+    private final DataSourceTransactionManager txManager;
+    private final DataSource auditDs;
+    private final AuditCache auditCache;
     private int parserLine = 0;
     private char parserSeparator = CSVParser.DEFAULT_SEPARATOR;
     private char parserQuotechar = CSVParser.DEFAULT_QUOTE_CHARACTER;
     private char parserEscape = CSVParser.DEFAULT_ESCAPE_CHARACTER;
     private boolean parserStrictQuotes = CSVParser.DEFAULT_STRICT_QUOTES;
     private boolean parserIgnoreLeadingWhiteSpace = CSVParser.DEFAULT_IGNORE_LEADING_WHITESPACE;
-    private int batchThreshold;
-    private boolean replaceExisting;
-    private Date etlDate;
-    private String etlType;
-    private BigDecimal recordId;
-    private int numColumns = 0;
-    private long numRecords = 0l;
-    private ArrayList<Object[]> records = new ArrayList<Object[]>();
-    private long startTime = 0l;
-    private long trace = 0l;
+    private Charset parserCharset = Charset.defaultCharset();
+    private boolean parserMapped = true;
+    private int parserThreads = 0;
+    private int parserChunkSize = 1000;
+    private boolean fixedWidth = false;
+    private String parserTrim = "both";
+    private int recordLength = 0;
+    private final String recordType;
+    private int recordTypeOffset = 0;
+    private int recordTypeLength = 0;
+    private final FixedWidthReader.Layout layout;
+    private List<FileSpecification> layouts;
+    private final int[] keyIndexes;
+    private final int[] dataIndexes;
+    private File deltaFile;
+    private final int[] sortIndexes;
+    private long sortMaxBytes = RecordSorter.DEFAULT_MAX_BYTES;
+    private File sortDirectory;
+    private final int batchThreshold;
+    private final BatchController batchController;
+    private final boolean replaceExisting;
+    private final boolean resume;
+    private int commitInterval = 0;
+    private int partitions = 0;
+    private boolean skipErrors = false;
+    private long maxErrors = -1l;
+    private File rejectDirectory;
+    private final int numColumns;
+    private final Semaphore loadPermits;
+    private final long trace;
+    private final LoadMetrics metrics;
 
     /**
      * Constructs and initializes this object using source to target specifications contained in specification file.
+     * Once constructed the specification is never modified, so it may be shared by concurrent loads; all state of an
+     * individual load is kept in a {@link LoadContext}.
+     *
      * @param spec file name of JSON formatted file that contains source to target specifications
+     * @param auditCache cache of audit_file rows, which may be shared by specifications using the same audit database
+     * @param resume true, if partially loaded files are resumed from their last checkpoint
+     * @param loadPermits permits limiting concurrent loads into the target table, or null if unlimited
+     * @param metrics metrics of loads into the target table, or null if not reported
+     * @param targetType type of the target database, used to select how records are written
      */
-    public FileSpecification(Map<String, Object> spec, DataSource auditDs, DataSource targetDs, int batchThreshold,
-                             boolean replaceExisting, long trace) {
+    public FileSpecification(Map<String, Object> spec, DataSource auditDs, AuditCache auditCache, DataSource targetDs,
+                             int batchThreshold, boolean replaceExisting, boolean resume, long trace,
+                             Semaphore loadPermits, LoadMetrics metrics, DatabaseType targetType) {
         String stringProperty = (String) spec.get("sourcePattern");
 
         sourcePattern = Pattern.compile(stringProperty, Pattern.CASE_INSENSITIVE);
@@ -106,196 +167,1270 @@ public class FileSpecification {
             parserEscape = stringProperty.charAt(0);
         }
 
+        if (spec.containsKey("parserStrictQuotes")) {
+            parserStrictQuotes = (Boolean) spec.get("parserStrictQuotes");
+        }
+
+        if (spec.containsKey("parserIgnoreLeadingWhiteSpace")) {
+            parserIgnoreLeadingWhiteSpace = (Boolean) spec.get("parserIgnoreLeadingWhiteSpace");
+        }
+
+        if (spec.containsKey("parserCharset")) {
+            parserCharset = Charset.forName((String) spec.get("parserCharset"));
+        }
+
+        if (spec.containsKey("parserMapped")) {
+            parserMapped = (Boolean) spec.get("parserMapped");
+        }
+
+        if (spec.containsKey("parserThreads")) {
+            parserThreads = (Integer) spec.get("parserThreads");
+        }
+
+        if (spec.containsKey("parserChunkSize")) {
+            parserChunkSize = (Integer) spec.get("parserChunkSize");
+        }
+
+        if (spec.containsKey("format")) {
+            stringProperty = ((String) spec.get("format")).toLowerCase();
+            if (stringProperty.equals("fixed")) {
+                fixedWidth = true;
+            } else if (!stringProperty.equals("delimited")) {
+                throw new IllegalArgumentException("Unknown format " + stringProperty);
+            }
+        }
+
+        if (spec.containsKey("parserTrim")) {
+            parserTrim = ((String) spec.get("parserTrim")).toLowerCase();
+        }
+
+        if (spec.containsKey("recordLength")) {
+            recordLength = (Integer) spec.get("recordLength");
+        }
+
+        if (spec.containsKey("recordTypeOffset")) {
+            recordTypeOffset = (Integer) spec.get("recordTypeOffset");
+        }
+
+        if (spec.containsKey("recordTypeLength")) {
+            recordTypeLength = (Integer) spec.get("recordTypeLength");
+        }
+
+        if (spec.containsKey("commitInterval")) {
+            commitInterval = (Integer) spec.get("commitInterval");
+        }
+
+        if (spec.containsKey("partitions")) {
+            partitions = (Integer) spec.get("partitions");
+        }
+
+        if (spec.containsKey("errorPolicy")) {
+            stringProperty = ((String) spec.get("errorPolicy")).toLowerCase();
+            if (stringProperty.equals("skip")) {
+                skipErrors = true;
+            } else if (!stringProperty.equals("fail")) {
+                throw new IllegalArgumentException("Unknown errorPolicy " + stringProperty);
+            }
+        }
+
+        if (spec.containsKey("maxErrors")) {
+            maxErrors = ((Number) spec.get("maxErrors")).longValue();
+        }
+
+        if (spec.containsKey("rejectDirectory")) {
+            rejectDirectory = new File((String) spec.get("rejectDirectory"));
+        }
+
+        if (spec.containsKey("deltaDirectory")) {
+            deltaFile = new File((String) spec.get("deltaDirectory"));
+        }
+
+        if (spec.containsKey("sortMaxBytes")) {
+            sortMaxBytes = ((Number) spec.get("sortMaxBytes")).longValue();
+        }
+
+        if (spec.containsKey("sortDirectory")) {
+            sortDirectory = new File((String) spec.get("sortDirectory"));
+        }
+
+        if (spec.containsKey("sink")) {
+            sinkType = ((String) spec.get("sink")).toLowerCase();
+        }
+
+        if (spec.containsKey("outputDirectory")) {
+            outputDirectory = new File((String) spec.get("outputDirectory"));
+        }
+
+        if (spec.containsKey("outputSeparator")) {
+            stringProperty = (String) spec.get("outputSeparator");
+            outputSeparator = stringProperty.charAt(0);
+        }
+
         dateGroup = (Integer) spec.get("dateGroup");
         dateFormat = (String) spec.get("dateFormat");
         typeGroup = (Integer) spec.get("typeGroup");
+        recordType = (String) spec.get("recordType");
         sourceId = (Integer) spec.get("sourceId");
         targetTable = (String) spec.get("targetTable");
-        targetColumns = (List<String>) spec.get("targetColumns");
+        List<Object> columnSpecs = (List<Object>) spec.get("targetColumns");
 
         this.auditDs = auditDs;
+        this.auditCache = auditCache;
         this.targetDs = targetDs;
-        this.batchThreshold = batchThreshold;
+        this.batchThreshold = spec.containsKey("batchThreshold") ? (Integer) spec.get("batchThreshold")
+                : batchThreshold;
         this.replaceExisting = replaceExisting;
+        this.resume = resume;
         this.trace = trace;
+        this.loadPermits = loadPermits;
+        this.metrics = metrics != null ? metrics : new LoadMetrics(targetTable, false);
+        targetTemplate = new JdbcTemplate(targetDs);
+        txManager = new DataSourceTransactionManager(targetDs);
 
-        StringBuffer sb = new StringBuffer();
-        sb.append("insert into ").append(targetTable).append(" (");
-        boolean firstColumn = true;
-        for (int i = 0; i < targetColumns.size(); i++) {
+        // Columns are either a column name or an object with name, type and format properties, for example
+        // {"name": "trade_date", "type": "date", "format": "MM/dd/yyyy"}. Columns without a type are inserted as read.
+        // Columns of fixed-width files are objects that also define their length, and optionally their offset, which
+        // defaults to the end of the previous column, and trim rule, for example
+        // {"name": "amount", "offset": 12, "length": 10, "type": "decimal", "trim": "left"}.
+        targetColumns = new ArrayList<String>();
+        insertColumns = new ArrayList<String>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        List<ColumnConverter> columnConverters = new ArrayList<ColumnConverter>();
+        int[] offsets = new int[columnSpecs.size()];
+        int[] lengths = new int[columnSpecs.size()];
+        boolean[] trimLeft = new boolean[columnSpecs.size()];
+        boolean[] trimRight = new boolean[columnSpecs.size()];
+        int offset = 0;
+        for (int i = 0; i < columnSpecs.size(); i++) {
+            String name;
+            ColumnConverter converter = null;
+            if (columnSpecs.get(i) instanceof Map) {
+                Map<String, Object> columnSpec = (Map<String, Object>) columnSpecs.get(i);
+                name = (String) columnSpec.get("name");
+                if (columnSpec.containsKey("type")) {
+                    converter = ColumnConverter.forType(name, (String) columnSpec.get("type"),
+                            (String) columnSpec.get("format"));
+                }
+                if (fixedWidth) {
+                    if (!columnSpec.containsKey("length")) {
+                        throw new IllegalArgumentException("Column " + name + " of " + targetTable
+                                + " requires a length for format fixed");
+                    }
+                    if (columnSpec.containsKey("offset")) {
+                        offset = (Integer) columnSpec.get("offset");
+                    }
+                    String trim = columnSpec.containsKey("trim") ? ((String) columnSpec.get("trim")).toLowerCase()
+                            : parserTrim;
+                    offsets[i] = offset;
+                    lengths[i] = name.equals("") ? -1 : (Integer) columnSpec.get("length");
+                    trimLeft[i] = isTrimmed(trim, "left");
+                    trimRight[i] = isTrimmed(trim, "right");
+                    offset += (Integer) columnSpec.get("length");
+                }
+            } else if (fixedWidth) {
+                throw new IllegalArgumentException("Column " + columnSpecs.get(i) + " of " + targetTable
+                        + " requires a length for format fixed");
+            } else {
+                name = (String) columnSpecs.get(i);
+            }
+            targetColumns.add(name);
             // Columns defined as empty string indicate that they should be skipped
-            if (!targetColumns.get(i).equals("")) {
-                if (firstColumn) {
-                    sb.append(targetColumns.get(i));
-                    firstColumn = false;
-                } else {
-                    sb.append(", ").append(targetColumns.get(i));
+            if (!name.equals("")) {
+                insertColumns.add(name);
+                indexes.add(i);
+                columnConverters.add(converter);
+            }
+        }
+        // Records for which the filter is false are skipped. Derived columns are inserted after the mapped columns,
+        // their values being the result of an expression, for example
+        // {"name": "region", "expression": "upper(substr($3, 1, 2))"}, with optional type and format properties.
+        TreeSet<Integer> referenced = new TreeSet<Integer>();
+        filter = spec.containsKey("filter") ? compile((String) spec.get("filter"), referenced) : null;
+        List<Expression> columnExpressions = new ArrayList<Expression>();
+        for (int i = 0; i < indexes.size(); i++) {
+            columnExpressions.add(null);
+        }
+        List<Map<String, Object>> derivedSpecs = (List<Map<String, Object>>) spec.get("derivedColumns");
+        if (derivedSpecs != null) {
+            for (Map<String, Object> derivedSpec : derivedSpecs) {
+                String name = (String) derivedSpec.get("name");
+                if (name == null || name.equals("") || !derivedSpec.containsKey("expression")) {
+                    throw new IllegalArgumentException("Derived columns require a name and expression for "
+                            + targetTable);
                 }
+                insertColumns.add(name);
+                indexes.add(-1);
+                columnConverters.add(derivedSpec.containsKey("type") ? ColumnConverter.forType(name,
+                        (String) derivedSpec.get("type"), (String) derivedSpec.get("format")) : null);
+                columnExpressions.add(compile((String) derivedSpec.get("expression"), referenced));
             }
         }
-        if (sourceId != null) {
-            sb.append(", source_id, file_id, record_id)");
+        sourceIndexes = new int[indexes.size()];
+        for (int i = 0; i < sourceIndexes.length; i++) {
+            sourceIndexes[i] = indexes.get(i);
+        }
+        converters = columnConverters.toArray(new ColumnConverter[columnConverters.size()]);
+        expressions = derivedSpecs != null && !derivedSpecs.isEmpty()
+                ? columnExpressions.toArray(new Expression[columnExpressions.size()]) : null;
+        // Columns are read if they are mapped or referred to by an expression
+        readColumns = new boolean[referenced.isEmpty() ? targetColumns.size()
+                : Math.max(targetColumns.size(), referenced.last() + 1)];
+        for (int i = 0; i < readColumns.length; i++) {
+            readColumns[i] = referenced.contains(i) || i < targetColumns.size() && !targetColumns.get(i).equals("");
+        }
+        if (fixedWidth) {
+            for (int i : referenced) {
+                if (i >= columnSpecs.size()) {
+                    throw new IllegalArgumentException("Expressions refer to column " + (i + 1)
+                            + ", which is not defined for " + targetTable);
+                }
+                lengths[i] = (Integer) ((Map<String, Object>) columnSpecs.get(i)).get("length");
+            }
+        }
+        // Records are compared with those previously loaded by the hash of their key columns and of all mapped columns
+        List<String> keyColumns = (List<String>) spec.get("keyColumns");
+        if (keyColumns != null) {
+            keyIndexes = new int[keyColumns.size()];
+            for (int i = 0; i < keyIndexes.length; i++) {
+                keyIndexes[i] = insertColumns.indexOf(keyColumns.get(i));
+                if (keyIndexes[i] < 0) {
+                    throw new IllegalArgumentException("Key column " + keyColumns.get(i) + " is not a mapped column of "
+                            + targetTable);
+                }
+            }
+            dataIndexes = new int[converters.length];
+            for (int i = 0; i < dataIndexes.length; i++) {
+                dataIndexes[i] = i;
+            }
         } else {
-            sb.append(")");
+            keyIndexes = null;
+            dataIndexes = null;
         }
-        sb.append(" values (");
-        firstColumn = true;
-        for (int i = 0; i < targetColumns.size(); i++) {
-            // Columns defined as empty string indicate that they should be skipped
-            if (!targetColumns.get(i).equals("")) {
-                if (firstColumn) {
-                    sb.append("?");
-                    firstColumn = false;
-                } else {
-                    sb.append(", ?");
+        // Records are written in order of their sort columns, rather than in the order they were read
+        List<String> sortColumns = (List<String>) spec.get("sortColumns");
+        if (sortColumns != null && !sortColumns.isEmpty()) {
+            sortIndexes = new int[sortColumns.size()];
+            for (int i = 0; i < sortIndexes.length; i++) {
+                sortIndexes[i] = insertColumns.indexOf(sortColumns.get(i));
+                if (sortIndexes[i] < 0) {
+                    throw new IllegalArgumentException("Sort column " + sortColumns.get(i)
+                            + " is not a mapped column of " + targetTable);
                 }
-                numColumns++;
             }
+        } else {
+            sortIndexes = null;
+        }
+        if (fixedWidth) {
+            layout = new FixedWidthReader.Layout(recordType != null ? recordType.getBytes(parserCharset) : new byte[0],
+                    offsets, lengths, trimLeft, trimRight);
+        } else {
+            layout = null;
         }
-
         // If source ID is not defined, then do not include source ID, file ID, and record ID fields.
         if (sourceId != null) {
-            sb.append(", ?, ?, ?)");
-            numColumns += 3;
+            insertColumns.add("source_id");
+            insertColumns.add("file_id");
+            insertColumns.add("record_id");
+        }
+        int numColumns = insertColumns.size();
+        if (commitInterval > 0 && sourceId == null) {
+            // Resuming a load relies on file ID and record ID to remove records committed after the last checkpoint.
+            throw new IllegalArgumentException("commitInterval requires a sourceId for " + targetTable);
+        }
+        if (partitions > 1 && sourceId == null) {
+            // Records of partitions committed before a failure are removed by file ID.
+            throw new IllegalArgumentException("partitions requires a sourceId for " + targetTable);
+        }
+        if (fixedWidth && (parserThreads > 0 || partitions > 1)) {
+            // Both split the source at line breaks and tokenize it as delimited records.
+            throw new IllegalArgumentException("parserThreads and partitions require format delimited for "
+                    + targetTable);
+        }
+        if (fixedWidth && !FixedWidthReader.isSupported(parserCharset)) {
+            throw new IllegalArgumentException("format fixed does not support charset " + parserCharset + " for "
+                    + targetTable);
+        }
+        if (recordType != null && !fixedWidth) {
+            throw new IllegalArgumentException("recordType requires format fixed for " + targetTable);
+        }
+        if (recordType != null && commitInterval > 0) {
+            // Layouts are loaded in one transaction, routing records to each layout's table as the source is read.
+            throw new IllegalArgumentException("commitInterval may not be combined with recordType for " + targetTable);
+        }
+        if (keyIndexes != null && (deltaFile == null || sourceId == null)) {
+            // The index of previously loaded records is kept per source ID and target table
+            throw new IllegalArgumentException("keyColumns requires a deltaDirectory and sourceId for " + targetTable);
+        }
+        if (keyIndexes != null && commitInterval > 0) {
+            // A resumed load would not compare the records committed before its checkpoint
+            throw new IllegalArgumentException("commitInterval may not be combined with keyColumns for " + targetTable);
+        }
+        if (sortIndexes != null && commitInterval > 0) {
+            // Records are only written once all have been read, so there is no point up to which a load is committed
+            throw new IllegalArgumentException("commitInterval may not be combined with sortColumns for " + targetTable);
+        }
+        if (sortIndexes != null && sortMaxBytes <= 0l) {
+            throw new IllegalArgumentException("sortMaxBytes must be greater than zero for " + targetTable);
+        }
+        if (keyIndexes != null) {
+            deltaFile = new File(deltaFile, "source_" + sourceId + "_" + targetTable.toLowerCase() + ".delta");
         } else {
-            sb.append(")");
+            deltaFile = null;
+        }
+        if (maxErrors >= 0 && !skipErrors) {
+            throw new IllegalArgumentException("maxErrors requires errorPolicy skip for " + targetTable);
+        }
+        if (!sinkType.equals("jdbc") && !sinkType.equals("csv") && !sinkType.equals("columnar")) {
+            throw new IllegalArgumentException("Unknown sink " + sinkType + " for " + targetTable);
+        }
+        if (isFileSink() && outputDirectory == null) {
+            throw new IllegalArgumentException("sink " + sinkType + " requires an outputDirectory for " + targetTable);
+        }
+        if (isFileSink() && commitInterval > 0) {
+            // Resuming a load removes records committed after the last checkpoint, which only a table supports.
+            throw new IllegalArgumentException("commitInterval requires sink jdbc for " + targetTable);
+        }
+        if (commitInterval > 0 && partitions > 1) {
+            // Partitions commit together, so a file loaded in partitions has no single point to resume from.
+            throw new IllegalArgumentException("commitInterval may not be combined with partitions for " + targetTable);
+        }
+
+        // Batches are limited by records and estimated bytes. The number of records is tuned between batchMinRows and
+        // batchMaxRows, which default to batchThreshold, so batches are only tuned if a range is given.
+        int batchMinRows = spec.containsKey("batchMinRows") ? (Integer) spec.get("batchMinRows") : this.batchThreshold;
+        int batchMaxRows = spec.containsKey("batchMaxRows") ? (Integer) spec.get("batchMaxRows") : this.batchThreshold;
+        long batchMaxBytes = spec.containsKey("batchMaxBytes") ? ((Number) spec.get("batchMaxBytes")).longValue()
+                : BatchController.DEFAULT_MAX_BYTES;
+        long batchMaxMillis = spec.containsKey("batchMaxMillis") ? ((Number) spec.get("batchMaxMillis")).longValue()
+                : BatchController.DEFAULT_MAX_MILLIS;
+        if (batchMinRows < 1 || batchMaxRows < batchMinRows) {
+            throw new IllegalArgumentException("batchMinRows must be at least 1 and no more than batchMaxRows for "
+                    + targetTable);
+        }
+        batchController = new BatchController(Math.max(batchMinRows, Math.min(batchMaxRows, this.batchThreshold)),
+                batchMinRows, batchMaxRows, batchMaxBytes, batchMaxMillis);
+
+        String bulkWriter = "auto";
+        if (spec.containsKey("bulkWriter")) {
+            bulkWriter = ((String) spec.get("bulkWriter")).toLowerCase();
+        }
+
+        String strategy = "auto";
+        if (spec.containsKey("replaceStrategy")) {
+            strategy = ((String) spec.get("replaceStrategy")).toLowerCase();
+        }
+
+        this.targetType = targetType;
+        targetSql = getInsertSql(targetTable, bulkWriter.equals("directpath"));
+        writerType = resolveWriterType(bulkWriter, targetType);
+        if (isFileSink()) {
+            log.debug("Writing " + sinkType + " files for " + targetTable + " to " + outputDirectory);
+        } else {
+            log.debug("Using " + writerType + " writer for " + targetTable);
+        }
+        replaceStrategy = resolveReplaceStrategy(strategy, targetType);
+        if (replaceStrategy.equals("swap")) {
+            stagingTable = spec.containsKey("stagingTable") ? (String) spec.get("stagingTable") : targetTable + "_stage";
+            stagingSql = getInsertSql(stagingTable, bulkWriter.equals("directpath"));
+        } else {
+            stagingTable = null;
+            stagingSql = null;
+        }
+        this.numColumns = numColumns;
+    }
+
+    /**
+     * Compiles an expression of this mapping, adding the columns it refers to to the set of referenced columns.
+     */
+    private Expression compile(String text, Set<Integer> referenced) {
+        Expression expression;
+        try {
+            expression = Expression.compile(text, targetColumns);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + " for " + targetTable, e);
+        }
+        for (int column : expression.getColumns()) {
+            referenced.add(column);
+        }
+        return expression;
+    }
+
+    private static boolean isTrimmed(String trim, String side) {
+        if (!trim.equals("both") && !trim.equals("left") && !trim.equals("right") && !trim.equals("none")) {
+            throw new IllegalArgumentException("Unknown trim " + trim);
+        }
+        return trim.equals("both") || trim.equals(side);
+    }
+
+    /**
+     * Sets the specifications of the record layouts of a fixed-width source, of which this specification is the
+     * first. Sources matching this specification are then loaded in a single pass, each record being routed to the
+     * target table of its layout by its record type. Called once while specifications are initialized, before any
+     * source is loaded.
+     *
+     * @param layouts specifications of each layout, each loading a different target table
+     */
+    public void setLayouts(List<FileSpecification> layouts) {
+        Set<String> tables = new HashSet<String>();
+        for (FileSpecification layout : layouts) {
+            if (layout.recordType == null) {
+                throw new IllegalArgumentException("Layout of " + layout.targetTable + " requires a recordType");
+            }
+            if (!tables.add(layout.targetTable.toLowerCase())) {
+                // Each layout's records are registered in audit_file as a load of its target table.
+                throw new IllegalArgumentException("Layouts of " + sourcePattern + " load " + layout.targetTable
+                        + " more than once");
+            }
+        }
+        this.layouts = layouts;
+    }
+
+    private String getInsertSql(String table, boolean directPath) {
+        StringBuffer sb = new StringBuffer();
+        sb.append("insert ");
+        if (directPath) {
+            // Oracle direct-path insert of the values of each batch, written above the table's high water mark.
+            sb.append("/*+ APPEND_VALUES */ ");
+        }
+        sb.append("into ").append(table).append(" (");
+        for (int i = 0; i < insertColumns.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(insertColumns.get(i));
         }
-        targetSql = sb.toString();
+        sb.append(") values (");
+        for (int i = 0; i < insertColumns.size(); i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /**
+     * Resolves how the existing records of a file are removed when it is replaced. Records of a single file, in a
+     * target with a source ID, are always deleted by file ID. A target without a source ID has all its records
+     * replaced, so it may instead be truncated, or loaded into a staging table that is swapped in once loaded. With
+     * "auto" such a target is truncated when the database truncates within a transaction, as PostgreSQL and SQL
+     * Server do, or when records are committed before the load completes anyway, and deleted otherwise. Swapping is
+     * only used when requested, since on Oracle, whose truncate commits, it is not atomic.
+     *
+     * @param strategy one of auto, delete, truncate or swap
+     * @param targetType type of the target database
+     * @return replace strategy
+     */
+    private String resolveReplaceStrategy(String strategy, DatabaseType targetType) {
+        boolean transactionalTruncate = targetType == DatabaseType.POSTGRESQL || targetType == DatabaseType.SQLSERVER;
+        boolean committedEarly = commitInterval > 0 || partitions > 1;
+        if (isFileSink()) {
+            // The parts written for a file are removed
+            if (!strategy.equals("auto") && !strategy.equals("delete")) {
+                throw new IllegalArgumentException("replaceStrategy " + strategy + " requires sink jdbc for " + targetTable);
+            }
+            return "delete";
+        } else if (strategy.equals("auto")) {
+            if (sourceId != null || targetType == DatabaseType.OTHER) {
+                return "delete";
+            } else if (transactionalTruncate || committedEarly) {
+                return "truncate";
+            }
+            return "delete";
+        } else if (strategy.equals("truncate") || strategy.equals("swap")) {
+            if (sourceId != null) {
+                throw new IllegalArgumentException("replaceStrategy " + strategy + " replaces all records of "
+                        + targetTable + ", so may not be used with a sourceId");
+            } else if (strategy.equals("truncate") && !transactionalTruncate && !committedEarly) {
+                // A failed load would leave the table empty
+                throw new IllegalArgumentException("replaceStrategy truncate requires a database that truncates within a transaction, or commitInterval or partitions, for " + targetTable);
+            } else if (strategy.equals("swap") && committedEarly) {
+                throw new IllegalArgumentException("replaceStrategy swap may not be combined with commitInterval or partitions for " + targetTable);
+            } else if (strategy.equals("swap") && !transactionalTruncate) {
+                log.warn("replaceStrategy swap of " + targetTable + " commits when the target table is truncated, "
+                        + "so a failed swap leaves it empty");
+            }
+        } else if (!strategy.equals("delete")) {
+            throw new IllegalArgumentException("Unknown replaceStrategy " + strategy + " for " + targetTable);
+        }
+        return strategy;
+    }
+
+    /**
+     * Resolves the type of writer used to insert records into the target table. With "auto" the writer is chosen by
+     * database type, using a native bulk load path when the database's driver provides one and batch inserts
+     * otherwise.
+     *
+     * @param writerType one of auto, batch, directpath, copy or bulkcopy
+     * @param targetType type of the target database
+     * @return writer type
+     */
+    private String resolveWriterType(String writerType, DatabaseType targetType) {
+        if (writerType.equals("auto")) {
+            if (targetType == DatabaseType.POSTGRESQL && isClassAvailable("org.postgresql.PGConnection")) {
+                return "copy";
+            } else if (targetType == DatabaseType.SQLSERVER
+                    && isClassAvailable("com.microsoft.sqlserver.jdbc.SQLServerBulkCopy")) {
+                return "bulkcopy";
+            }
+            return "batch";
+        } else if (writerType.equals("copy")) {
+            if (!isClassAvailable("org.postgresql.PGConnection")) {
+                throw new IllegalStateException("PostgreSQL JDBC driver required by bulkWriter copy was not found");
+            }
+        } else if (writerType.equals("bulkcopy")) {
+            if (!isClassAvailable("com.microsoft.sqlserver.jdbc.SQLServerBulkCopy")) {
+                throw new IllegalStateException("SQL Server JDBC driver required by bulkWriter bulkcopy was not found");
+            }
+        } else if (!writerType.equals("batch") && !writerType.equals("directpath")) {
+            throw new IllegalArgumentException("Unknown bulkWriter " + writerType + " for " + targetTable);
+        }
+        return writerType;
+    }
+
+    /**
+     * Creates a new writer for a load into the target table, which writes to the mapping's sink: the target table or,
+     * for file sinks, files in the output directory.
+     *
+     * @param context context of the load
+     * @return bulk writer
+     */
+    public BulkWriter newBulkWriter(LoadContext context) {
+        return newBulkWriter(context, false);
+    }
+
+    /**
+     * Creates a new writer for a load into the target table or, when replacing its records by swapping, the staging
+     * table.
+     *
+     * @param context context of the load
+     * @param staging true, if records are written to the staging table
+     * @return bulk writer
+     */
+    public BulkWriter newBulkWriter(LoadContext context, boolean staging) {
+        if (sinkType.equals("csv")) {
+            return new DelimitedFileSink(outputDirectory, targetTable, insertColumns, context.getEtlDate(),
+                    outputSeparator);
+        } else if (sinkType.equals("columnar")) {
+            return new ColumnarFileSink(outputDirectory, targetTable, insertColumns, context.getEtlDate());
+        }
+        String table = staging ? stagingTable : targetTable;
+        BulkWriter batchWriter = new BatchInsertWriter(staging ? stagingSql : targetSql);
+        if (writerType.equals("copy")) {
+            return new PostgresCopyWriter(table, insertColumns, batchWriter);
+        } else if (writerType.equals("bulkcopy")) {
+            return new SqlServerBulkCopyWriter(table, insertColumns, batchWriter);
+        }
+        return batchWriter;
     }
 
     /**
-     * Determines if specified source file's name matches sourcePattern defined for this source to target specification.
-     * @param sourceFile source file to match against
-     * @return true, if file's name matches source sourcePattern; otherwise, false
+     * Creates a new buffer for records of a load into the target table.
+     * @param capacity maximum number of records
+     * @return record buffer
      */
-    public boolean match(File sourceFile) {
-        Matcher matcher = sourcePattern.matcher(sourceFile.getName());
-        return (matcher.matches());
+    public RecordBuffer newRecordBuffer(int capacity) {
+        return new RecordBuffer(converters.length, capacity, sourceId, converters, expressions);
     }
 
     /**
-     * Loads specified file into target targetTable. This operation transactional and will rollback any database operations if
-     * there are any errors processing the data.
+     * Creates a new sorter for the records of a load into the target table.
+     * @return record sorter, or null if records are written in the order they are read
+     */
+    public RecordSorter newRecordSorter() {
+        if (sortIndexes == null) {
+            return null;
+        }
+        return new RecordSorter(this, sortIndexes, sortMaxBytes, sortDirectory);
+    }
+
+    /**
+     * Creates the reject file of a load, named after its source with a .reject extension, in the reject directory or,
+     * if none is defined, the directory of the source file. Reject files of layouts are also named after their target
+     * table.
+     *
+     * @param source source being loaded
+     * @return reject file, which is only created once a record is rejected
+     */
+    public RejectFile newRejectFile(SourceInput source) {
+        return newRejectFile(source, false);
+    }
+
+    /**
+     * Creates the reject file of a load of a source.
+     *
+     * @param source source being loaded
+     * @param shared true, if the source is read once for loads of several tables; otherwise, false
+     * @return reject file
+     */
+    public RejectFile newRejectFile(SourceInput source, boolean shared) {
+        File directory = rejectDirectory != null ? rejectDirectory : source.getFile().getParentFile();
+        // Each layout of a source, and each table a shared source is loaded into, rejects its records to a file of its
+        // own
+        String name = shared || recordType != null ? source.getName() + "." + targetTable + ".reject"
+                : source.getName() + ".reject";
+        return new RejectFile(new File(directory, name), parserCharset, maxErrors);
+    }
+
+    private boolean isClassAvailable(String className) {
+        try {
+            Class.forName(className, false, getClass().getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads specified file into target targetTable. Each entry of a zip archive that matches sourcePattern is loaded
+     * as a separate source, in the order stored in the archive.
      *
      * @param sourceFile source file to be loaded
+     * @return true, if every source in the file was loaded or had been loaded before; otherwise, false
      * @throws IOException on error reading file
      * @throws ParseException on error parsing fields from file
      */
-    public void load(final File sourceFile) throws IOException, ParseException {
-        this.sourceFile = sourceFile;
-        Matcher matcher = sourcePattern.matcher(sourceFile.getName());
-        etlDate = new Date();
-        etlType = "I";
-        if (matcher.find()) {
-            if (dateGroup != null && dateGroup.intValue() <= matcher.groupCount()) {
-                etlDate = new SimpleDateFormat(dateFormat).parse(matcher.group(dateGroup.intValue()));
+    public boolean load(File sourceFile) throws IOException, ParseException {
+        if (SourceInput.isZip(sourceFile)) {
+            boolean loaded = true;
+            for (SourceInput source : SourceInput.forZip(sourceFile)) {
+                Matcher matcher = sourcePattern.matcher(source.getName());
+                if (matcher.matches()) {
+                    loaded &= load(source, matcher);
+                }
             }
-            if (typeGroup != null && typeGroup.intValue() <= matcher.groupCount()) {
-                etlType = matcher.group(typeGroup.intValue()).substring(0,1).toUpperCase();
+            return loaded;
+        }
+        return load(SourceInput.forFile(sourceFile));
+    }
+
+    /**
+     * Loads specified source into target targetTable. This operation transactional and will rollback any database operations if
+     * there are any errors processing the data. If a concurrency limit is defined for the target table, this method
+     * blocks until a load permit becomes available.
+     *
+     * @param source source to be loaded
+     * @return true, if the source was loaded or had been loaded before; false, if the load failed and was rolled back
+     * @throws IOException on error reading source
+     * @throws ParseException on error parsing fields from source
+     */
+    public boolean load(SourceInput source) throws IOException, ParseException {
+        Matcher matcher = sourcePattern.matcher(source.getName());
+        return load(source, matcher.find() ? matcher : null);
+    }
+
+    /**
+     * Loads specified source into target targetTable, taking the ETL date and type from the result of matching the
+     * source's name against sourcePattern, so that a name already matched when choosing its specification is not
+     * matched again.
+     *
+     * @param source source to be loaded
+     * @param match result of matching the source's name against sourcePattern, or null if it did not match, in which
+     *              case the current date and type "I" are used
+     * @return true, if the source was loaded or had been loaded before; false, if the load failed and was rolled back
+     * @throws IOException on error reading source
+     * @throws ParseException on error parsing fields from source
+     */
+    public boolean load(SourceInput source, MatchResult match) throws IOException, ParseException {
+        LoadContext context = newLoadContext(source, match);
+        if (layouts != null) {
+            return loadLayouts(source, context);
+        }
+
+        if (loadPermits != null) {
+            long waitStart = System.nanoTime();
+            try {
+                loadPermits.acquire();
+                metrics.addWaitNanos(System.nanoTime() - waitStart);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("\tInterrupted while waiting to load " + source.getName());
+                return false;
+            }
+        }
+        try {
+            return load(context);
+        } finally {
+            if (loadPermits != null) {
+                loadPermits.release();
             }
         }
-        recordId = new BigDecimal(new SimpleDateFormat("yyyyMMdd").format(etlDate) + "0000000000");
+    }
+
+    /**
+     * Creates the context of a load of a source, taking the ETL date and type from the result of matching the source's
+     * name against sourcePattern.
+     *
+     * @param source source to be loaded
+     * @param match result of matching the source's name against sourcePattern, or null if it did not match, in which
+     *              case the current date and type "I" are used
+     * @return load context
+     * @throws ParseException on error parsing the ETL date from the source's name
+     */
+    public LoadContext newLoadContext(SourceInput source, MatchResult match) throws ParseException {
+        return newLoadContext(source, match, false);
+    }
 
-        DataSourceTransactionManager txManager = new DataSourceTransactionManager(targetDs);
+    /**
+     * Creates the context of a load of a source, taking the ETL date and type from the result of matching the source's
+     * name against sourcePattern.
+     *
+     * @param source source to be loaded
+     * @param match result of matching the source's name against sourcePattern, or null if it did not match, in which
+     *              case the current date and type "I" are used
+     * @param shared true, if the source is read once for loads of several tables, so records rejected by this load are
+     *               written to a reject file named after the target table; otherwise, false
+     * @return load context
+     * @throws ParseException on error parsing the ETL date from the source's name
+     */
+    public LoadContext newLoadContext(SourceInput source, MatchResult match, boolean shared) throws ParseException {
+        Date etlDate = new Date();
+        String etlType = "I";
+        if (match != null) {
+            if (dateGroup != null && dateGroup.intValue() <= match.groupCount()) {
+                etlDate = new SimpleDateFormat(dateFormat).parse(match.group(dateGroup.intValue()));
+            }
+            if (typeGroup != null && typeGroup.intValue() <= match.groupCount()) {
+                etlType = match.group(typeGroup.intValue()).substring(0,1).toUpperCase();
+            }
+        }
+        LoadContext context = new LoadContext(this, source, etlDate, etlType, newRejectFile(source, shared));
+        context.setGroups(getGroups(source, match));
+        return context;
+    }
+
+    /**
+     * Gets the values of file() and group(n) in the expressions of a load of a source.
+     *
+     * @param source source to be loaded
+     * @param match result of matching the source's name against sourcePattern, or null if it did not match
+     * @return name of the source followed by each group of sourcePattern, null for groups that were not matched
+     */
+    public String[] getGroups(SourceInput source, MatchResult match) {
+        String[] groups = new String[match != null ? match.groupCount() + 1 : 1];
+        groups[0] = source.getName();
+        for (int i = 1; i < groups.length; i++) {
+            groups[i] = match.group(i);
+        }
+        return groups;
+    }
+
+    /**
+     * Loads a source into target targetTable using a context created by {@link #newLoadContext}, the caller holding
+     * the target table's load permit, if a concurrency limit is defined. The records are read from the context's
+     * reader if one has been set, rather than from the source, and the load's changes to the delta index are begun
+     * unless the caller has begun them.
+     *
+     * @param context load context
+     * @return true, if the source was loaded or had been loaded before; false, if the load failed and was rolled back
+     * @throws IOException on error opening the delta index
+     */
+    public boolean load(final LoadContext context) throws IOException {
+        final SourceInput source = context.getSource();
+        final String sourceName = source.getName();
         TransactionTemplate txTemplate = new TransactionTemplate(txManager);
-        targetTemplate = new JdbcTemplate(targetDs);
 
-        log.info("Processing source file " + sourceFile.getName());
-        numRecords = 0l;
+        log.info("Processing source file " + source);
+        boolean loaded = false;
+        boolean partitioned = partitions > 1 && isMapped(source);
+        if (partitioned && replaceExisting && selectAuditFile(context) != null) {
+            // The existing records are removed in the same transaction as the new ones are inserted
+            log.info("\tReplacing " + sourceName + " in a single transaction rather than in partitions");
+            partitioned = false;
+        }
         try {
+            if (context.getDelta() == null) {
+                beginDelta(context);
+            }
+            if (replaceExisting && replaceStrategy.equals("swap")) {
+                createStagingTable();
+            }
+            if (commitInterval > 0) {
+                loadInChunks(context);
+            } else if (partitioned) {
+                loadInPartitions(context);
+            } else {
+                txTemplate.execute(new TransactionCallbackWithoutResult() {
+                    public void doInTransactionWithoutResult(TransactionStatus status) {
+                        try {
+                            boolean loadFlag = false;
+                            Integer fileId = selectAuditFile(context);
+                            if (fileId != null && replaceExisting) {
+                                removeExisting(context, fileId);
+                                updateAuditFile(fileId);
+                                loadFlag = true;
+                            } else if (fileId == null) {
+                                fileId = insertAuditFile(context);
+                                loadFlag = fileId != null;
+                            }
+
+                            if (loadFlag) {
+                                context.setFileId(fileId);
+                                context.setTransaction(status);
+                                try {
+                                    loadRecords(context);
+                                } finally {
+                                    context.close();
+                                }
+                                if (context.isStaged()) {
+                                    swapStaging();
+                                }
+                            } else {
+                                log.info("\tSkipping previously loaded file" + sourceName);
+                            }
+                        } catch (RuntimeException e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            log.error("\tError at record " + context.getNumRecords() + " in " + sourceName);
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+            loaded = true;
+        } catch (RuntimeException e) {
+            if (commitInterval > 0) {
+                log.error("\tAn exception occurred while processing record " + context.getNumRecords() + " in " + sourceName + ". Records after the last checkpoint have been rolled back.", e);
+            } else if (partitioned) {
+                log.error("\tAn exception occurred while processing partitions of " + sourceName + ". Partitions not yet committed have been rolled back and records of committed partitions removed.", e);
+            } else {
+                log.error("\tAn exception occurred while processing record " + context.getNumRecords() + " in " + sourceName + ". All transactions for this file have been rolled back.", e);
+            }
+        } finally {
+            endDelta(context, loaded);
+            context.getRejects().close();
+        }
+        if (context.getRejects().getCount() > 0) {
+            log.warn("\tRejected " + LoadContext.getCount(context.getRejects().getCount()) + " records of " + sourceName
+                    + ", written to " + context.getRejects().getFile());
+        }
+        if (context.getNumFiltered() > 0) {
+            log.info("\tFiltered " + LoadContext.getCount(context.getNumFiltered()) + " records of " + sourceName);
+        }
+        log.info("\tCompleted processing of " + LoadContext.getCount(context.getNumRecords()) + " records in " + context.getDuration() + " (" + context.getRecordsPerSecond() + " rps)");
+        if (context.getBatchSummary() != null) {
+            log.info(context.getBatchSummary());
+        }
+        metrics.addFile(loaded, context.getNumRecords() - context.getResumedRecords(), source.getSize());
+        return loaded;
+    }
+
+    /**
+     * Loads a source holding records of several layouts in a single pass, routing each record by its record type to
+     * the load of its layout. Each layout is registered in the audit_file table as a load of its own target table, and
+     * its records are numbered on their own, but all layouts are loaded in one transaction, so the source is loaded
+     * completely or not at all. Layouts that were loaded before are skipped, unless replacing existing data.
+     */
+    private boolean loadLayouts(final SourceInput source, LoadContext sourceContext) throws IOException {
+        final String sourceName = source.getName();
+        final LoadContext[] contexts = new LoadContext[layouts.size()];
+        // Permits and delta indexes are acquired once per table, in order of table name, so loads of different sources
+        // wait in turn
+        TreeMap<String, Semaphore> permits = new TreeMap<String, Semaphore>();
+        TreeMap<String, Integer> tableOrder = new TreeMap<String, Integer>();
+        for (int i = 0; i < contexts.length; i++) {
+            FileSpecification layout = layouts.get(i);
+            contexts[i] = new LoadContext(layout, source, sourceContext.getEtlDate(), sourceContext.getEtlType());
+            contexts[i].setGroups(sourceContext.getGroups());
+            if (layout.loadPermits != null) {
+                permits.put(layout.targetTable.toLowerCase(), layout.loadPermits);
+            }
+            tableOrder.put(layout.targetTable.toLowerCase(), i);
+        }
+        List<Semaphore> acquired = new ArrayList<Semaphore>();
+        try {
+            for (Semaphore tablePermits : permits.values()) {
+                long waitStart = System.nanoTime();
+                tablePermits.acquire();
+                acquired.add(tablePermits);
+                metrics.addWaitNanos(System.nanoTime() - waitStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("\tInterrupted while waiting to load " + sourceName);
+            for (Semaphore tablePermits : acquired) {
+                tablePermits.release();
+            }
+            return false;
+        }
+
+        TransactionTemplate txTemplate = new TransactionTemplate(txManager);
+
+        log.info("Processing source file " + source);
+        boolean loaded = false;
+        try {
+            for (int i : tableOrder.values()) {
+                layouts.get(i).beginDelta(contexts[i]);
+            }
+            for (FileSpecification layout : layouts) {
+                if (replaceExisting && layout.replaceStrategy.equals("swap")) {
+                    layout.createStagingTable();
+                }
+            }
             txTemplate.execute(new TransactionCallbackWithoutResult() {
                 public void doInTransactionWithoutResult(TransactionStatus status) {
                     try {
+                        boolean[] loading = new boolean[contexts.length];
                         boolean loadFlag = false;
-                        Integer fileId = selectAuditFile();
-                        if (fileId != null && replaceExisting) {
-                            deleteExisting(fileId);
-                            updateAuditFile(fileId);
-                            loadFlag = true;
-                        } else if (fileId == null) {
-                            fileId = insertAuditFile();
-                            loadFlag = true;
+                        for (int i = 0; i < contexts.length; i++) {
+                            FileSpecification layout = layouts.get(i);
+                            Integer fileId = layout.selectAuditFile(contexts[i]);
+                            if (fileId != null && replaceExisting) {
+                                layout.removeExisting(contexts[i], fileId);
+                                layout.updateAuditFile(fileId);
+                                loading[i] = true;
+                            } else if (fileId == null) {
+                                fileId = layout.insertAuditFile(contexts[i]);
+                                loading[i] = fileId != null;
+                            }
+                            if (loading[i]) {
+                                contexts[i].setFileId(fileId);
+                                contexts[i].setTransaction(status);
+                                loadFlag = true;
+                            } else {
+                                log.info("\tSkipping previously loaded " + layout.recordType + " records of "
+                                        + sourceName);
+                            }
                         }
 
                         if (loadFlag) {
-                            CSVReader reader = new CSVReader(new FileReader(sourceFile), parserSeparator, parserQuotechar, parserEscape,
-                                    parserLine, parserStrictQuotes, parserIgnoreLeadingWhiteSpace);
-                            String[] values;
-                            startTime = System.currentTimeMillis();
-                            while ((values = reader.readNext()) != null) {
-                                add(values, fileId);
-                                numRecords++;
-                                if (trace > 0l && numRecords % trace == 0l) {
-                                    log.info("\tProcessed " + getCount(numRecords) + " records in " + getDuration() + " (" + getRecordsPerSecond() + " rps)");
+                            loadLayoutRecords(source, contexts, loading);
+                            for (int i = 0; i < contexts.length; i++) {
+                                if (contexts[i].isStaged()) {
+                                    layouts.get(i).swapStaging();
                                 }
                             }
-                            reader.close();
-                            insertTarget();
                         } else {
-                            log.info("\tSkipping previously loaded file" + sourceFile.getName());
+                            log.info("\tSkipping previously loaded file" + sourceName);
                         }
                     } catch (RuntimeException e) {
                         throw e;
                     } catch (Throwable e) {
-                        log.error("\tError at record " + numRecords + " in " + sourceFile.getName());
+                        log.error("\tError loading layouts of " + sourceName);
                         throw new RuntimeException(e);
+                    } finally {
+                        for (LoadContext context : contexts) {
+                            context.close();
+                        }
                     }
                 }
             });
+            loaded = true;
         } catch (RuntimeException e) {
-            log.error("\tAn exception occurred while processing record " + numRecords + " in " + sourceFile.getName() + ". All transactions for this file have been rolled back.", e);
+            log.error("\tAn exception occurred while processing " + sourceName + ". All transactions for this file have been rolled back.", e);
+        } finally {
+            for (int i = 0; i < contexts.length; i++) {
+                layouts.get(i).endDelta(contexts[i], loaded);
+                contexts[i].getRejects().close();
+            }
+            for (Semaphore tablePermits : acquired) {
+                tablePermits.release();
+            }
+        }
+        for (int i = 0; i < contexts.length; i++) {
+            FileSpecification layout = layouts.get(i);
+            LoadContext context = contexts[i];
+            if (context.getRejects().getCount() > 0) {
+                log.warn("\tRejected " + LoadContext.getCount(context.getRejects().getCount()) + " "
+                        + layout.recordType + " records of " + sourceName + ", written to "
+                        + context.getRejects().getFile());
+            }
+            if (context.getNumFiltered() > 0) {
+                log.info("\tFiltered " + LoadContext.getCount(context.getNumFiltered()) + " " + layout.recordType
+                        + " records of " + sourceName);
+            }
+            log.info("\tCompleted processing of " + LoadContext.getCount(context.getNumRecords()) + " "
+                    + layout.recordType + " records into " + layout.targetTable + " in " + context.getDuration()
+                    + " (" + context.getRecordsPerSecond() + " rps)");
+            if (context.getBatchSummary() != null) {
+                log.info(context.getBatchSummary());
+            }
+            layout.metrics.addFile(loaded, context.getNumRecords(), source.getSize());
         }
-        log.info("\tCompleted processing of " + getCount(numRecords) + " records in " + getDuration() + " (" + getRecordsPerSecond() + " rps)");
+        return loaded;
     }
 
     /**
-     * Inserts record for source file into the audit_file table.
+     * Begins the changes of a load to the delta index, if records are compared with those loaded before, waiting while
+     * another load of the target table is using the index.
+     *
+     * @param context load context
+     * @throws IOException on error opening the delta index
      */
-    private Integer insertAuditFile() throws SQLException {
-        JdbcTemplate template = new JdbcTemplate(auditDs);
-        StringBuilder sql = new StringBuilder();
-        Integer fileId = null;
-        int result = 0;
-        String auditUrl = auditDs.getConnection().getMetaData().getURL();
-
-        sql.append("insert into audit_file ");
-        if (auditUrl.indexOf(":sqlserver:") != -1) {
-            sql.append("values (next value for seq_audit, ?, ?, ?, ?, ?, ?)");
-        } else if (auditUrl.indexOf(":oracle:") != -1) {
-            sql.append("values (seq_audit.nextval, ?, ?, ?, ?, ?, ?)");
-        } else if (auditUrl.indexOf(":postgresql:") != -1) {
-            sql.append("values (nextval('seq_audit'), ?, ?, ?, ?, ?, ?)");
+    public void beginDelta(LoadContext context) throws IOException {
+        if (deltaFile == null) {
+            return;
+        }
+        DeltaIndex delta = DeltaIndex.open(deltaFile);
+        try {
+            delta.begin();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for delta index " + deltaFile.getPath());
+        }
+        context.setDelta(delta);
+    }
+
+    /**
+     * Completes the changes of a load to the delta index, keeping them if the load succeeded or undoing them if it
+     * was rolled back.
+     *
+     * @param context load context
+     * @param loaded true, if the load succeeded; otherwise, false
+     */
+    public void endDelta(LoadContext context, boolean loaded) {
+        DeltaIndex delta = context.getDelta();
+        if (delta == null) {
+            return;
+        }
+        try {
+            if (loaded) {
+                delta.commit();
+            } else {
+                delta.rollback();
+            }
+        } catch (IOException e) {
+            log.error("\tUnable to complete changes to delta index " + deltaFile.getPath(), e);
+        }
+        if (context.getNumUnchanged() > 0) {
+            log.info("\tSkipped " + LoadContext.getCount(context.getNumUnchanged()) + " records of "
+                    + context.getSourceName() + (context.getEtlType().equals("D") ? " that were never loaded"
+                    : " that are unchanged since they were last loaded"));
+        }
+    }
+
+    /**
+     * Reads the records of a source holding several layouts, adding each record to the load context of its layout.
+     * Records of layouts that are not being loaded, and records whose type matches no layout, are skipped.
+     */
+    private void loadLayoutRecords(SourceInput source, LoadContext[] contexts, boolean[] loading) throws IOException {
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i].getRejects().reset();
+            contexts[i].start();
+        }
+        FixedWidthReader reader = openFixedWidthReader(source);
+        try {
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                int layout = reader.getLayout();
+                if (loading[layout]) {
+                    contexts[layout].add(values);
+                }
+            }
+            if (reader.getNumUnmatched() > 0) {
+                log.info("\tSkipped " + LoadContext.getCount(reader.getNumUnmatched()) + " records of "
+                        + source.getName() + " matching no layout");
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = 0; i < contexts.length; i++) {
+            if (loading[i]) {
+                contexts[i].finish();
+            }
+        }
+    }
+
+    /**
+     * Loads a source committing every commitInterval batches rather than in a single transaction. Progress is recorded
+     * in the audit_checkpoint table after each commit, so a failed load can be resumed from its last checkpoint instead
+     * of being loaded again from the start. The checkpoint is deleted once the last records have been committed.
+     */
+    private void loadInChunks(LoadContext context) {
+        String sourceName = context.getSourceName();
+        try {
+            Integer fileId = selectAuditFile(context);
+            Checkpoint checkpoint = null;
+            if (fileId != null) {
+                checkpoint = selectCheckpoint(fileId);
+                if (replaceExisting) {
+                    removeExisting(context, fileId);
+                    updateAuditFile(fileId);
+                    checkpoint = null;
+                } else if (checkpoint != null && resume) {
+                    log.info("\tResuming " + sourceName + " after record " + LoadContext.getCount(checkpoint.getRecordNumber()));
+                    deleteAfterCheckpoint(checkpoint);
+                } else if (checkpoint != null) {
+                    log.warn("\tSkipping partially loaded file " + sourceName + ", which may be resumed or replaced");
+                    return;
+                } else {
+                    log.info("\tSkipping previously loaded file" + sourceName);
+                    return;
+                }
+            } else {
+                fileId = insertAuditFile(context);
+                if (fileId == null) {
+                    log.info("\tSkipping previously loaded file" + sourceName);
+                    return;
+                }
+            }
+            context.setFileId(fileId);
+            if (checkpoint == null) {
+                checkpoint = new Checkpoint(fileId, 0l, context.getRecordId(0l), -1l, false);
+                saveCheckpoint(checkpoint);
+            }
+            context.resume(checkpoint);
+
+            context.setTransaction(txManager.getTransaction(new DefaultTransactionDefinition()));
+            try {
+                loadRecords(context);
+                txManager.commit(context.getTransaction());
+                context.setTransaction(null);
+            } finally {
+                context.close();
+                if (context.getTransaction() != null) {
+                    txManager.rollback(context.getTransaction());
+                }
+            }
+            deleteCheckpoint(fileId);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            log.error("\tError at record " + context.getNumRecords() + " in " + sourceName);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads a source as byte-range partitions in parallel, each partition on its own connection and in its own
+     * transaction. The partitions commit together once all have succeeded, so the file is loaded completely or not at
+     * all. Files being replaced are not loaded in partitions, since deleting their records in one partition's
+     * transaction would hold locks the other partitions wait on, and committing the delete first would lose the
+     * records if the partitions then failed.
+     */
+    private void loadInPartitions(final LoadContext context) {
+        String sourceName = context.getSourceName();
+        try {
+            Integer fileId = selectAuditFile(context) == null ? auditCache.insert(getAuditKey(context)) : null;
+            if (fileId == null) {
+                log.info("\tSkipping previously loaded file" + sourceName);
+                return;
+            }
+            context.setFileId(fileId);
+            context.getRejects().reset();
+            context.start();
+
+            PartitionedLoad partitionedLoad = new PartitionedLoad(this, context, partitions, txManager);
+            try {
+                partitionedLoad.run();
+            } catch (Exception e) {
+                if (partitionedLoad.getCommitted() > 0) {
+                    log.warn("\tRemoving records of " + partitionedLoad.getCommitted() + " partitions committed before failure");
+                    deleteExisting(fileId);
+                }
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            log.error("\tError loading partitions of " + sourceName);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Commits the records inserted so far by a load committed in chunks, recording a checkpoint of its progress, and
+     * begins a new transaction for the records that follow.
+     *
+     * @param context load context
+     * @param recordNumber number of records inserted
+     */
+    public void checkpoint(LoadContext context, long recordNumber) {
+        txManager.commit(context.getTransaction());
+        context.setTransaction(null);
+        RecordReader reader = context.getReader();
+        saveCheckpoint(new Checkpoint(context.getFileId(), recordNumber, context.getRecordId(recordNumber),
+                reader != null ? reader.getPosition() : -1l,
+                reader instanceof MappedDelimitedReader && ((MappedDelimitedReader) reader).isInField()));
+        context.setTransaction(txManager.getTransaction(new DefaultTransactionDefinition()));
+        log.debug("\tCommitted " + LoadContext.getCount(recordNumber) + " records of " + context.getSourceName());
+    }
+
+    /**
+     * Reads the records of the source file, or of the context's reader if the source is read by a reader shared with
+     * other loads, into the load context, inserting them into the target table. When resuming
+     * a load, records committed by the earlier load are skipped, seeking directly to the checkpoint's byte offset if
+     * it is known.
+     */
+    private void loadRecords(LoadContext context) throws IOException, InterruptedException {
+        SourceInput source = context.getSource();
+        long skipRecords = context.getNumRecords();
+        if (skipRecords == 0l) {
+            context.getRejects().reset();
         } else {
-            // If database type is unknown, attempt to insert record letting database set file_id with trigger or identity value.
-            sql.append("(source_id, file_name, table_name, etl_type, etl_date, processed_flag) values (?, ?, ?, ?, ?, ?)");
+            context.getRejects().resume(skipRecords);
         }
-        result = template.update(sql.toString(), new Object[]{sourceId, sourceFile.getName(), targetTable, etlType, etlDate, "N"});
-        if (result > 0) {
-            fileId = selectAuditFile();
+        context.start();
+        if (parserThreads > 0) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(source.open(), parserCharset));
+            try {
+                new ParsingPipeline(this, context, parserThreads, parserChunkSize).run(reader, skipRecords);
+            } finally {
+                reader.close();
+            }
+        } else {
+            RecordReader reader = context.getReader() != null ? context.getReader() : openReader(source);
+            try {
+                if (skipRecords > 0) {
+                    if (context.getResumeOffset() >= 0 && reader instanceof MappedDelimitedReader) {
+                        ((MappedDelimitedReader) reader).seek(context.getResumeOffset(), context.isResumeInField());
+                    } else if (context.getResumeOffset() >= 0 && reader instanceof FixedWidthReader
+                            && ((FixedWidthReader) reader).isSeekable()) {
+                        ((FixedWidthReader) reader).seek(context.getResumeOffset());
+                    } else {
+                        for (long i = 0; i < skipRecords; i++) {
+                            if (reader.readNext() == null) {
+                                break;
+                            }
+                        }
+                    }
+                }
+                context.setReader(reader);
+                String[] values;
+                if (metrics.isTimed()) {
+                    long parseStart = System.nanoTime();
+                    while ((values = reader.readNext()) != null) {
+                        metrics.addParseNanos(System.nanoTime() - parseStart);
+                        context.add(values);
+                        parseStart = System.nanoTime();
+                    }
+                } else {
+                    while ((values = reader.readNext()) != null) {
+                        context.add(values);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
         }
+        context.finish();
+    }
 
-        log.debug("\tInsert into audit_file returned " + result + ", fileId " + fileId);
+    /**
+     * Inserts record for source file into the audit_file table. If another load registered the file first, its
+     * records are replaced when replacing existing data; otherwise the file is not loaded.
+     *
+     * @return file ID, or null if the file was registered by another load and is not to be replaced
+     */
+    private Integer insertAuditFile(LoadContext context) throws MetaDataAccessException {
+        AuditKey key = getAuditKey(context);
+        Integer fileId = auditCache.insert(key);
+        if (fileId == null && replaceExisting) {
+            fileId = auditCache.lookup(key);
+            removeExisting(context, fileId);
+            updateAuditFile(fileId);
+        }
         return fileId;
     }
 
     /*
-     * Selects file_id of record from audit_file table that matches criteria of file to be loaded, if record exists.
+     * Gets file_id of record from audit_file table that matches criteria of file to be loaded, if record exists.
      */
-    private Integer selectAuditFile() {
-        JdbcTemplate template = new JdbcTemplate(auditDs);
-        Integer fileId;
-        try {
-            fileId = template.queryForObject(
-                    "select file_id from audit_file where source_id = ? and file_name = ? and table_name = ? and etl_type = ? and etl_date = ?",
-                    new Object[]{sourceId, sourceFile.getName(), targetTable, etlType, etlDate},
-                    Integer.class);
-        } catch (EmptyResultDataAccessException e) {
-            fileId = null;
-        }
+    private Integer selectAuditFile(LoadContext context) {
+        Integer fileId = auditCache.lookup(getAuditKey(context));
         log.debug("\tSelect audit_file returned " + fileId);
         return fileId;
     }
 
+    private AuditKey getAuditKey(LoadContext context) {
+        return new AuditKey(sourceId, context.getSourceName(), targetTable, context.getEtlType(), context.getEtlDate());
+    }
+
     /*
      * Updates existing audit_file record to reset its processed_flag to "N".
      */
@@ -305,11 +1440,156 @@ public class FileSpecification {
         log.debug("\tUpdate audit_file returned " + result);
     }
 
+    /*
+     * Selects the checkpoint of a partially loaded file from the audit_checkpoint table, if one exists.
+     */
+    private Checkpoint selectCheckpoint(final Integer fileId) {
+        JdbcTemplate template = new JdbcTemplate(auditDs);
+        List<Checkpoint> checkpoints = template.query(
+                "select record_number, record_id, byte_offset, in_field from audit_checkpoint where file_id = ?",
+                new Object[]{fileId},
+                new RowMapper<Checkpoint>() {
+                    public Checkpoint mapRow(ResultSet rs, int rowNum) throws SQLException {
+                        return new Checkpoint(fileId, rs.getLong(1), rs.getLong(2), rs.getLong(3),
+                                "Y".equals(rs.getString(4)));
+                    }
+                });
+        log.debug("\tSelect audit_checkpoint returned " + checkpoints.size() + " rows");
+        return checkpoints.isEmpty() ? null : checkpoints.get(0);
+    }
+
+    /*
+     * Records a checkpoint in the audit_checkpoint table, replacing any earlier checkpoint of the file.
+     */
+    private void saveCheckpoint(Checkpoint checkpoint) {
+        JdbcTemplate template = new JdbcTemplate(auditDs);
+        Object[] args = new Object[]{checkpoint.getRecordNumber(), checkpoint.getRecordId(), checkpoint.getByteOffset(),
+                checkpoint.isInField() ? "Y" : "N", new Date(), checkpoint.getFileId()};
+        int result = template.update("update audit_checkpoint set record_number = ?, record_id = ?, byte_offset = ?, in_field = ?, checkpoint_date = ? where file_id = ?", args);
+        if (result == 0) {
+            result = template.update("insert into audit_checkpoint (record_number, record_id, byte_offset, in_field, checkpoint_date, file_id) values (?, ?, ?, ?, ?, ?)", args);
+        }
+        log.debug("\tSave audit_checkpoint returned " + result);
+    }
+
+    /*
+     * Deletes the checkpoint of a file whose load is complete.
+     */
+    private void deleteCheckpoint(Integer fileId) {
+        JdbcTemplate template = new JdbcTemplate(auditDs);
+        int result = template.update("delete from audit_checkpoint where file_id = ?", new Object[]{fileId});
+        log.debug("\tDelete audit_checkpoint returned " + result);
+    }
+
+    /**
+     * Deletes records committed after a checkpoint was recorded, which happens when a load fails between committing
+     * records and recording their checkpoint.
+     */
+    private void deleteAfterCheckpoint(Checkpoint checkpoint) {
+        JdbcTemplate template = new JdbcTemplate(targetDs);
+        int count = template.update("delete from " + targetTable + " where file_id = ? and record_id > ?",
+                new Object[]{checkpoint.getFileId(), checkpoint.getRecordId()});
+        log.info("\tDeleted " + LoadContext.getCount(count) + " records committed after the last checkpoint from " + targetTable);
+    }
+
+    /**
+     * Removes the existing records of a file being replaced, according to the replace strategy. When swapping, the
+     * existing records are kept until the load's records have been inserted into the staging table and are swapped in
+     * by {@link #swapStaging}.
+     */
+    private void removeExisting(LoadContext context, Integer fileId) {
+        // The file's records are replaced, so all of them are loaded again, though they may be in the delta index
+        context.setLoadAll(true);
+        if (replaceStrategy.equals("truncate")) {
+            truncate(targetTable);
+        } else if (replaceStrategy.equals("swap")) {
+            truncate(stagingTable);
+            context.stage();
+        } else {
+            deleteExisting(fileId);
+        }
+    }
+
+    /**
+     * Creates the staging table, with the columns of the target table, unless it already exists.
+     */
+    private synchronized void createStagingTable() {
+        if (stagingCreated) {
+            return;
+        }
+        JdbcTemplate template = new JdbcTemplate(targetDs);
+        try {
+            template.queryForObject("select count(*) from " + stagingTable + " where 1 = 0", Integer.class);
+        } catch (BadSqlGrammarException e) {
+            if (targetType == DatabaseType.POSTGRESQL) {
+                template.execute("create table " + stagingTable + " (like " + targetTable + " including defaults)");
+            } else if (targetType == DatabaseType.SQLSERVER) {
+                template.execute("select * into " + stagingTable + " from " + targetTable + " where 1 = 0");
+            } else {
+                template.execute("create table " + stagingTable + " as select * from " + targetTable + " where 1 = 0");
+            }
+            log.info("Created staging table " + stagingTable + " for " + targetTable);
+        }
+        stagingCreated = true;
+    }
+
+    /**
+     * Replaces the records of the target table with those loaded into the staging table, by truncating the target
+     * table and inserting the staged records with a single set-based insert, which Oracle writes direct-path and SQL
+     * Server minimally logs. The target table keeps its indexes, constraints and grants, which renaming the staging
+     * table in its place would not. On PostgreSQL and SQL Server this is part of the load's transaction. Oracle
+     * commits the load, including its audit_file row, when the target table is truncated, so the target is empty
+     * until the insert completes and stays empty if it fails, though the staged records remain.
+     */
+    private void swapStaging() {
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < insertColumns.size(); i++) {
+            columns.append(i == 0 ? "" : ", ").append(insertColumns.get(i));
+        }
+        StringBuilder sql = new StringBuilder();
+        sql.append("insert ");
+        if (targetType == DatabaseType.ORACLE) {
+            sql.append("/*+ APPEND */ ");
+        }
+        sql.append("into ").append(targetTable);
+        if (targetType == DatabaseType.SQLSERVER) {
+            sql.append(" with (tablock)");
+        }
+        sql.append(" (").append(columns).append(") select ").append(columns).append(" from ").append(stagingTable);
+
+        truncate(targetTable);
+        int count = new JdbcTemplate(targetDs).update(sql.toString());
+        log.info("\tSwapped " + LoadContext.getCount(count) + " records from " + stagingTable + " into " + targetTable);
+        truncate(stagingTable);
+    }
+
+    private void truncate(String table) {
+        new JdbcTemplate(targetDs).execute("truncate table " + table);
+        log.info("\tTruncated " + table);
+    }
+
     /**
      * Deletes existing records from target targetTable with file ID. If source ID is not defined then deletes all
-     * records from target targetTable.
+     * records from target targetTable. For file sinks, the parts written for the file, or for all files, are removed
+     * instead.
      */
     private void deleteExisting(Integer fileId) {
+        if (isFileSink()) {
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                // Parts are removed once the load commits, before the parts it wrote are renamed into place
+                final Integer removedFileId = fileId;
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    public void afterCompletion(int status) {
+                        if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                            removeParts(removedFileId);
+                        }
+                    }
+                });
+            } else {
+                removeParts(fileId);
+            }
+            return;
+        }
         JdbcTemplate template = new JdbcTemplate(targetDs);
         int count;
         StringBuilder sql = new StringBuilder();
@@ -320,77 +1600,279 @@ public class FileSpecification {
         } else {
             count = template.update(sql.toString());
         }
-        log.info("\tDeleted " + getCount(count) + " existing records from " + targetTable);
+        log.info("\tDeleted " + LoadContext.getCount(count) + " existing records from " + targetTable);
+    }
+
+    private void removeParts(Integer fileId) {
+        int count = FileSink.remove(outputDirectory, targetTable, sourceId != null ? fileId : null);
+        log.info("\tRemoved " + LoadContext.getCount(count) + " existing parts of " + targetTable);
     }
 
     /**
-     * Adds record to batch insertTarget cache.
+     * Opens a reader for a source file. Files are read from a memory-mapped buffer, creating values only for mapped
+     * columns, unless parserMapped is false or the charset or parser characters are not supported by the mapped
+     * reader, in which case opencsv is used. Compressed sources are always read with opencsv, from a stream decompressed
+     * on a separate thread.
+     * Fixed-width sources are read by a {@link FixedWidthReader}.
+     *
+     * @param source source to read
+     * @return record reader
+     * @throws IOException on error opening source
      */
-    private void add(String[] values, Integer fileId) {
-        Object[] record = new Object[numColumns];
-        int j = 0;
-        for (int i = 0; i < targetColumns.size(); i++) {
-            if (!targetColumns.get(i).equals("")) {
-                if (i < values.length) {
-                    record[j] = values[i];
-                } else {
-                    record[j] = new String();
-                }
-                j++;
-            }
+    public RecordReader openReader(SourceInput source) throws IOException {
+        if (fixedWidth) {
+            return openFixedWidthReader(source);
         }
-        if (sourceId != null) {
-            record[numColumns - 3] = sourceId;
-            record[numColumns - 2] = fileId;
-            recordId = recordId.add(new BigDecimal(1));
-            record[numColumns - 1] = recordId;
+        if (isMapped(source)) {
+            return openMappedReader(source.getFile(), false);
         }
-        records.add(record);
-        if (records.size() >= batchThreshold) {
-            insertTarget();
+        return new CsvRecordReader(new CSVReader(new InputStreamReader(source.open(), parserCharset),
+                parserSeparator, parserQuotechar, parserEscape, parserLine, parserStrictQuotes,
+                parserIgnoreLeadingWhiteSpace));
+    }
+
+    /**
+     * Determines whether a source is read by the memory-mapped reader.
+     * @param source source to read
+     * @return true, if read from a memory-mapped buffer; otherwise, false
+     */
+    public boolean isMapped(SourceInput source) {
+        if (fixedWidth) {
+            return parserMapped && !source.isCompressed();
+        }
+        return parserMapped && !source.isCompressed()
+                && MappedDelimitedReader.isSupported(parserCharset, parserSeparator, parserQuotechar, parserEscape);
+    }
+
+    /**
+     * Opens a memory-mapped reader for a file, positioned after the header lines.
+     *
+     * @param sourceFile file to read
+     * @param scanOnly true, if no values are needed, such as when counting records; otherwise, values are created for
+     *                 all mapped target columns and columns referred to by expressions
+     * @return memory-mapped reader
+     * @throws IOException on error opening file
+     */
+    public MappedDelimitedReader openMappedReader(File sourceFile, boolean scanOnly) throws IOException {
+        return openMappedReader(sourceFile, scanOnly ? new boolean[0] : readColumns);
+    }
+
+    /**
+     * Opens a memory-mapped reader for a file, positioned after the header lines, creating values for the given
+     * columns.
+     *
+     * @param sourceFile file to read
+     * @param mapped flags indicating which columns are mapped, columns beyond the end of the array are not mapped
+     * @return memory-mapped reader
+     * @throws IOException on error opening file
+     */
+    public MappedDelimitedReader openMappedReader(File sourceFile, boolean[] mapped) throws IOException {
+        return new MappedDelimitedReader(sourceFile, parserCharset, mapped, parserSeparator, parserQuotechar,
+                parserEscape, parserLine, parserStrictQuotes, parserIgnoreLeadingWhiteSpace);
+    }
+
+    /**
+     * Gets a key identifying how this specification reads and tokenizes sources. Specifications with equal keys read a
+     * source identically, apart from the columns they map, so a source they all match can be read once for all of
+     * them.
+     *
+     * @return reader key, or null if sources are read in a way that cannot be shared: fixed-width, with layouts,
+     * parserThreads or partitions
+     */
+    public String getReaderKey() {
+        if (fixedWidth || layouts != null || parserThreads > 0 || partitions > 1) {
+            return null;
         }
+        return parserCharset.name() + "/" + (int) parserSeparator + "/" + (int) parserQuotechar + "/"
+                + (int) parserEscape + "/" + parserLine + "/" + parserStrictQuotes + "/"
+                + parserIgnoreLeadingWhiteSpace + "/" + parserMapped;
     }
 
     /**
-     * Inserts cached records into database targetTable using batch update.
+     * Opens a reader of a fixed-width source, positioned after the header records, which reads the records of every
+     * layout of the source. Unless defined, the length of the record type is that of the longest record type.
+     *
+     * @param source source to read
+     * @return fixed-width reader, memory-mapped unless the source is compressed or parserMapped is false
+     * @throws IOException on error opening source
      */
-    private void insertTarget() {
-        if (records.size() > 0) {
-            targetTemplate.batchUpdate(targetSql, records);
-            log.debug("\tInserted " + records.size() + " records into " + targetTable);
-            records.clear();
+    public FixedWidthReader openFixedWidthReader(SourceInput source) throws IOException {
+        List<FileSpecification> specs = layouts != null ? layouts : Collections.singletonList(this);
+        FixedWidthReader.Layout[] readerLayouts = new FixedWidthReader.Layout[specs.size()];
+        int typeLength = recordTypeLength;
+        for (int i = 0; i < readerLayouts.length; i++) {
+            FileSpecification spec = specs.get(i);
+            readerLayouts[i] = spec.layout;
+            if (recordTypeLength == 0 && spec.recordType != null) {
+                typeLength = Math.max(typeLength, spec.recordType.getBytes(parserCharset).length);
+            }
+        }
+        if (isMapped(source)) {
+            return new FixedWidthReader(source.getFile(), parserCharset, readerLayouts, recordTypeOffset, typeLength,
+                    recordLength, parserLine);
         }
+        return new FixedWidthReader(source.open(), parserCharset, readerLayouts, recordTypeOffset, typeLength,
+                recordLength, parserLine);
+    }
+
+    /**
+     * Creates a new line parser using the parser settings of this specification.
+     * @return line parser
+     */
+    public DelimitedLineParser newLineParser() {
+        return new DelimitedLineParser(parserSeparator, parserQuotechar, parserEscape, parserStrictQuotes,
+                parserIgnoreLeadingWhiteSpace);
+    }
+
+    public int getParserLine() {
+        return parserLine;
+    }
+
+    public LoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Pattern getSourcePattern() {
+        return sourcePattern;
+    }
+
+    public Integer getSourceId() {
+        return sourceId;
+    }
+
+    public List<String> getTargetColumns() {
+        return targetColumns;
+    }
+
+    public String getTargetTable() {
+        return targetTable;
+    }
+
+    public Semaphore getLoadPermits() {
+        return loadPermits;
     }
 
     /**
-     * Gets formatted duration of current load.
-     * @return formatted duration
+     * Determines whether records are written to files rather than the target table.
+     * @return true, if the sink is csv or columnar
      */
-    private String getDuration() {
-        long duration = System.currentTimeMillis() - startTime;
-        long milliseconds = duration % 1000;
-        long seconds = (duration / 1000) % 60;
-        long minutes = (duration / (1000 * 60)) % 60;
-        long hours = (duration / (1000 * 60 * 60)) % 24;
-        return String.format("%02d:%02d:%02d.%03d", hours, minutes, seconds, milliseconds);
+    public boolean isFileSink() {
+        return !sinkType.equals("jdbc");
+    }
+
+    public List<String> getInsertColumns() {
+        return insertColumns;
     }
 
     /**
-     * Gets formatted count.
-     * @param count value to format
-     * @return formatted value.
+     * Gets the index of the source column of each mapped column, followed by -1 for each derived column.
+     * @return source indexes
      */
-    private String getCount(long count) {
-        return String.format("%,d", count);
+    public int[] getSourceIndexes() {
+        return sourceIndexes;
     }
 
     /**
-     * Gets formatted records per second value.
-     * @return
+     * Gets the expression records must satisfy to be loaded.
+     * @return filter, or null if every record is loaded
      */
-    private String getRecordsPerSecond() {
-        long duration = System.currentTimeMillis() - startTime;
-        double recordsPerSecond = (double) numRecords / (duration / 1000.0d);
-        return String.format("%.2f", recordsPerSecond);
+    public Expression getFilter() {
+        return filter;
+    }
+
+    /**
+     * Gets the expression of each derived column.
+     * @return expression of each data column, null for mapped columns, or null if no columns are derived
+     */
+    public Expression[] getExpressions() {
+        return expressions;
+    }
+
+    /**
+     * Gets the columns of the source that are read, being those that are mapped or referred to by an expression.
+     * @return flags indicating which columns are read, columns beyond the end of the array are not read
+     */
+    public boolean[] getReadColumns() {
+        return readColumns;
+    }
+
+    /**
+     * Gets the mapped columns that identify a record when comparing records with those loaded before.
+     * @return index of each key column among the mapped columns, or null if records are not compared
+     */
+    public int[] getKeyIndexes() {
+        return keyIndexes;
+    }
+
+    /**
+     * Gets the mapped and derived columns whose values are compared with those of records loaded before.
+     * @return index of every mapped and derived column, or null if records are not compared
+     */
+    public int[] getDataIndexes() {
+        return dataIndexes;
+    }
+
+    /**
+     * Gets the columns records are sorted by before they are written.
+     * @return index of each sort column among the mapped and derived columns, or null if records are not sorted
+     */
+    public int[] getSortIndexes() {
+        return sortIndexes;
+    }
+
+    public ColumnConverter[] getConverters() {
+        return converters;
+    }
+
+    /**
+     * Gets the specifications of the record layouts of a fixed-width source, of which this specification is the first.
+     * @return specification of each layout, or null if the source has a single layout
+     */
+    public List<FileSpecification> getLayouts() {
+        return layouts;
+    }
+
+    public JdbcTemplate getTargetTemplate() {
+        return targetTemplate;
+    }
+
+    public int getBatchThreshold() {
+        return batchThreshold;
+    }
+
+    public BatchController getBatchController() {
+        return batchController;
+    }
+
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+    /**
+     * Determines whether records in error are rejected rather than failing the load, according to errorPolicy.
+     * @return true, if records in error are written to a reject file and skipped
+     */
+    public boolean isSkipErrors() {
+        return skipErrors;
+    }
+
+    public long getMaxErrors() {
+        return maxErrors;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Gets the number of byte-range partitions a source file is split into to be loaded in parallel.
+     * @return number of partitions, or 0 if files are loaded sequentially
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public long getTrace() {
+        return trace;
     }
 }
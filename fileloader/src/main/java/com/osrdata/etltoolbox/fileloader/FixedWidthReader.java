@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * This class reads fixed-width records, slicing each value directly from a buffer of the file's bytes at the offset
+ * and length defined by the record's layout, so no String is created for the record as a whole or for columns that
+ * are not mapped. Files are memory-mapped a window at a time; compressed sources are read as a stream into a buffer
+ * that is refilled as records are consumed.
+ * <p/>
+ * Records are either terminated by line breaks or, if a record length is defined, are of that length with nothing
+ * between them, as in files transferred from a mainframe in binary mode. When a file holds records of several
+ * layouts, each record's layout is chosen by the record type found at a fixed offset of the record, and records of
+ * a type that matches no layout are skipped.
+ * <p/>
+ * Offsets and lengths are in bytes, so the charset must be a single byte charset, such as ISO-8859-1 or an EBCDIC
+ * code page, or UTF-8. Values beyond the end of a short record are read as empty.
+ */
+public class FixedWidthReader implements RecordReader {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+    public static final int DEFAULT_STREAM_BUFFER_SIZE = 1 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final InputStream stream;
+    private final long fileSize;
+    private final int windowSize;
+    private final Charset charset;
+    private final Layout[] layouts;
+    private final int typeOffset;
+    private final int typeLength;
+    private final int recordLength;
+    private final byte space;
+    private final String[][] values;
+    private ByteBuffer buffer;
+    private ByteBuffer view;
+    private byte[] bytes;
+    private boolean endOfStream = false;
+    private long base = 0l;
+    private int limit = 0;
+    private int pos = 0;
+    private int recordStart = 0;
+    private int recordEnd = 0;
+    private int layout = -1;
+    private long numUnmatched = 0l;
+    private byte[] field = new byte[256];
+
+    /**
+     * Opens a file for reading, mapping it into memory.
+     *
+     * @param sourceFile file to read
+     * @param charset charset of the file, see {@link #isSupported}
+     * @param layouts layouts of the file's records
+     * @param typeOffset offset of the record type in each record
+     * @param typeLength length of the record type, or 0 if all records have the first layout
+     * @param recordLength length of each record, or 0 if records are terminated by line breaks
+     * @param skipRecords number of records at the start of the file to skip
+     */
+    public FixedWidthReader(File sourceFile, Charset charset, Layout[] layouts, int typeOffset, int typeLength,
+                            int recordLength, int skipRecords) throws IOException {
+        this(sourceFile, null, charset, layouts, typeOffset, typeLength, recordLength, skipRecords,
+                DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens a stream for reading, such as the stream of a compressed source.
+     *
+     * @param stream stream to read, which is closed with this reader
+     */
+    public FixedWidthReader(InputStream stream, Charset charset, Layout[] layouts, int typeOffset, int typeLength,
+                            int recordLength, int skipRecords) throws IOException {
+        this(null, stream, charset, layouts, typeOffset, typeLength, recordLength, skipRecords,
+                DEFAULT_STREAM_BUFFER_SIZE);
+    }
+
+    public FixedWidthReader(File sourceFile, InputStream stream, Charset charset, Layout[] layouts, int typeOffset,
+                            int typeLength, int recordLength, int skipRecords, int windowSize) throws IOException {
+        this.charset = charset;
+        this.layouts = layouts;
+        this.typeOffset = typeOffset;
+        this.typeLength = typeLength;
+        this.recordLength = recordLength;
+        this.windowSize = windowSize;
+        space = " ".getBytes(charset)[0];
+        values = new String[layouts.length][];
+        for (int i = 0; i < layouts.length; i++) {
+            values[i] = new String[layouts[i].offsets.length];
+        }
+        if (sourceFile != null) {
+            this.stream = null;
+            file = new RandomAccessFile(sourceFile, "r");
+            channel = file.getChannel();
+            fileSize = channel.size();
+            map(0l);
+        } else {
+            this.stream = stream;
+            file = null;
+            channel = null;
+            fileSize = -1l;
+            bytes = new byte[windowSize];
+            buffer = ByteBuffer.wrap(bytes);
+            fill(0);
+        }
+        for (int i = 0; i < skipRecords; i++) {
+            if (!next()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Determines whether files in a charset can be read by this class.
+     * @return true, if supported; otherwise, false
+     */
+    public static boolean isSupported(Charset charset) {
+        return charset.name().equals("UTF-8") || charset.newEncoder().maxBytesPerChar() == 1.0f;
+    }
+
+    public String[] readNext() throws IOException {
+        while (next()) {
+            layout = match();
+            if (layout >= 0) {
+                return slice(layouts[layout], values[layout]);
+            }
+            numUnmatched++;
+        }
+        layout = -1;
+        return null;
+    }
+
+    /**
+     * Gets the index of the layout of the last record read.
+     * @return layout index, or -1 at end of file
+     */
+    public int getLayout() {
+        return layout;
+    }
+
+    /**
+     * Gets the number of records skipped so far because their record type matched no layout.
+     * @return number of records
+     */
+    public long getNumUnmatched() {
+        return numUnmatched;
+    }
+
+    /**
+     * Gets the byte offset of the next record to be read. For streams, this is the offset in the uncompressed data.
+     * @return byte offset
+     */
+    public long getPosition() {
+        return base + pos;
+    }
+
+    /**
+     * Determines whether this reader can {@link #seek}, which requires a memory-mapped file.
+     * @return true, if reading a mapped file; otherwise, false
+     */
+    public boolean isSeekable() {
+        return channel != null;
+    }
+
+    /**
+     * Moves to the start of a record, such as a position returned by {@link #getPosition} while reading the file
+     * earlier.
+     *
+     * @param position byte offset of the record
+     * @throws IOException on error mapping file, or if this reader is reading a stream
+     */
+    public void seek(long position) throws IOException {
+        if (channel == null) {
+            throw new IOException("Unable to seek in a stream");
+        }
+        if (position < 0 || position > fileSize) {
+            throw new IOException("Position " + position + " is outside of file of " + fileSize + " bytes");
+        }
+        map(position);
+    }
+
+    public void close() throws IOException {
+        buffer = null;
+        view = null;
+        bytes = null;
+        if (channel != null) {
+            channel.close();
+            file.close();
+        } else {
+            stream.close();
+        }
+    }
+
+    private void map(long start) throws IOException {
+        limit = (int) Math.min((long) windowSize, fileSize - start);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+        view = buffer.duplicate();
+        base = start;
+        pos = 0;
+    }
+
+    /**
+     * Moves the buffer forward so that it starts at an offset of the current buffer, mapping the next window of a
+     * file or, for a stream, keeping the bytes from the offset on and reading until the buffer is full.
+     */
+    private void fill(int start) throws IOException {
+        if (channel != null) {
+            map(base + start);
+            return;
+        }
+        int remaining = limit - start;
+        System.arraycopy(bytes, start, bytes, 0, remaining);
+        base += start;
+        limit = remaining;
+        pos = 0;
+        while (limit < bytes.length) {
+            int count = stream.read(bytes, limit, bytes.length - limit);
+            if (count < 0) {
+                endOfStream = true;
+                break;
+            }
+            limit += count;
+        }
+    }
+
+    /**
+     * Determines whether there are bytes beyond the end of the buffer.
+     */
+    private boolean hasMore() {
+        return channel != null ? base + limit < fileSize : !endOfStream;
+    }
+
+    /**
+     * Locates the record at the current position, advancing the position past it.
+     *
+     * @return true, if a record was found; false, at end of file
+     */
+    private boolean next() throws IOException {
+        while (true) {
+            if (pos >= limit) {
+                if (!hasMore()) {
+                    return false;
+                }
+                fill(pos);
+                continue;
+            }
+            int end = -1;
+            int next = -1;
+            if (recordLength > 0) {
+                if (limit - pos >= recordLength) {
+                    end = pos + recordLength;
+                    next = end;
+                } else if (!hasMore()) {
+                    end = limit;
+                    next = limit;
+                }
+            } else {
+                ByteBuffer buffer = this.buffer;
+                int p = pos;
+                while (p < limit) {
+                    byte b = buffer.get(p);
+                    if (b == '\n' || b == '\r') {
+                        break;
+                    }
+                    p++;
+                }
+                if (p < limit) {
+                    end = p;
+                    next = p + 1;
+                    if (buffer.get(p) == '\r') {
+                        if (next < limit) {
+                            if (buffer.get(next) == '\n') {
+                                next++;
+                            }
+                        } else if (hasMore()) {
+                            // Whether a line feed follows is not known until the buffer is moved forward
+                            end = -1;
+                        }
+                    }
+                } else if (!hasMore()) {
+                    end = limit;
+                    next = limit;
+                }
+            }
+            if (end >= 0) {
+                recordStart = pos;
+                recordEnd = end;
+                pos = next;
+                return true;
+            }
+            // The record continues past the end of the buffer, so move the buffer forward to start at the record.
+            if (pos == 0) {
+                throw new IOException("Record at offset " + base + " is larger than buffer of " + windowSize
+                        + " bytes");
+            }
+            fill(pos);
+        }
+    }
+
+    /**
+     * Finds the layout of the current record by its record type, ignoring trailing spaces.
+     * @return layout index, or -1 if no layout matches
+     */
+    private int match() {
+        if (typeLength == 0) {
+            return 0;
+        }
+        int start = Math.min(recordStart + typeOffset, recordEnd);
+        int end = Math.min(start + typeLength, recordEnd);
+        while (end > start && buffer.get(end - 1) == space) {
+            end--;
+        }
+        for (int i = 0; i < layouts.length; i++) {
+            byte[] type = layouts[i].recordType;
+            if (type.length == end - start) {
+                int j = 0;
+                while (j < type.length && buffer.get(start + j) == type[j]) {
+                    j++;
+                }
+                if (j == type.length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Slices the values of the mapped columns of the current record, trimming them as defined by the layout.
+     */
+    private String[] slice(Layout layout, String[] values) {
+        ByteBuffer buffer = this.buffer;
+        for (int i = 0; i < values.length; i++) {
+            int length = layout.lengths[i];
+            if (length < 0) {
+                values[i] = null;
+                continue;
+            }
+            int start = Math.min(recordStart + layout.offsets[i], recordEnd);
+            int end = Math.min(start + length, recordEnd);
+            if (layout.trimLeft[i]) {
+                while (start < end && isPadding(buffer.get(start))) {
+                    start++;
+                }
+            }
+            if (layout.trimRight[i]) {
+                while (end > start && isPadding(buffer.get(end - 1))) {
+                    end--;
+                }
+            }
+            values[i] = decode(start, end - start);
+        }
+        return values;
+    }
+
+    /**
+     * Determines whether a byte is padding, a space or the zero byte that mainframes call low-values.
+     */
+    private boolean isPadding(byte b) {
+        return b == space || b == 0;
+    }
+
+    private String decode(int start, int length) {
+        if (length == 0) {
+            return RecordBuffer.EMPTY;
+        }
+        if (bytes != null) {
+            return new String(bytes, start, length, charset);
+        }
+        if (length > field.length) {
+            field = new byte[Math.max(field.length * 2, length)];
+        }
+        view.position(start);
+        view.get(field, 0, length);
+        return new String(field, 0, length, charset);
+    }
+
+    /**
+     * The layout of one type of record: the offset, length and trimming of each column, and the record type that
+     * identifies records of the layout.
+     */
+    public static class Layout {
+        private final byte[] recordType;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final boolean[] trimLeft;
+        private final boolean[] trimRight;
+
+        /**
+         * @param recordType record type of records of this layout, encoded in the file's charset, or an empty array
+         *                   if the file has a single layout
+         * @param offsets offset of each column in the record
+         * @param lengths length of each column, or -1 for columns that are not mapped
+         * @param trimLeft flags indicating which columns have leading padding removed
+         * @param trimRight flags indicating which columns have trailing padding removed
+         */
+        public Layout(byte[] recordType, int[] offsets, int[] lengths, boolean[] trimLeft, boolean[] trimRight) {
+            this.recordType = recordType;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.trimLeft = trimLeft;
+            this.trimRight = trimRight;
+        }
+    }
+}
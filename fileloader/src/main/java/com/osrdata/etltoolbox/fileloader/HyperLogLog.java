@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added to it in a fixed amount of memory. Each
+ * value is hashed to 64 bits; the leading bits of the hash select a register, which keeps the longest run of leading
+ * zeros seen in the remaining bits. With the default precision of 14 the sketch holds 16,384 one byte registers and
+ * its estimates have a standard error of about 0.8%. Small cardinalities are estimated by linear counting, which is
+ * exact in practice while most registers are empty.
+ * <p/>
+ * Sketches are not thread safe.
+ */
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 14;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision number of hash bits selecting a register, from 4 to 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision must be from 4 to 18");
+        }
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    public void add(String value) {
+        add(hash(value));
+    }
+
+    /**
+     * Adds a value by its 64 bit hash, whose bits must be evenly distributed.
+     * @param hash hash of the value
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // The sentinel bit limits the run of zeros to the bits that remain after the index
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1l << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Adds the values of another sketch of the same precision to this one.
+     * @param other sketch to merge
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Unable to merge sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of distinct values added.
+     * @return estimated count
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0.0d;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0d / (1l << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = 0.7213d / (1.0d + 1.079d / m) * m * m / sum;
+        if (estimate <= 2.5d * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Hashes a string to 64 bits, using FNV-1a over its characters followed by the MurmurHash3 finalizer, which
+     * spreads the bits of similar strings across the whole hash.
+     *
+     * @param value value to hash
+     * @return hash
+     */
+    public static long hash(String value) {
+        long h = 0xcbf29ce484222325l;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3l;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdl;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53l;
+        h ^= h >>> 33;
+        return h;
+    }
+}
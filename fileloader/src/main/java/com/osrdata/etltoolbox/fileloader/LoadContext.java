@@ -0,0 +1,636 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.transaction.TransactionStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * This class holds the state of a single load of a source file into the target table of a {@link FileSpecification}.
+ * A new context is created for every load, so a specification may be used by several loads at the same time while
+ * each context is only ever used by the thread performing its load.
+ */
+public class LoadContext {
+    private static final Logger log = LogManager.getLogger(LoadContext.class);
+    private final FileSpecification spec;
+    private final SourceInput source;
+    private final Date etlDate;
+    private final String etlType;
+    private final long recordIdBase;
+    private final RecordBuffer records;
+    private final BatchController batches;
+    private final RecordSorter sorter;
+    private boolean sorted = false;
+    private boolean sized;
+    private BulkWriter writer;
+    private boolean staged = false;
+    private final RejectFile rejects;
+    private Integer fileId;
+    private long numRecords = 0l;
+    private long resumedRecords = 0l;
+    private long resumeOffset = -1l;
+    private boolean resumeInField = false;
+    private long numBatches = 0l;
+    private int firstBatchRows = 0;
+    private int lastBatchRows = 0;
+    private int minBatchRows = Integer.MAX_VALUE;
+    private int maxBatchRows = 0;
+    private long numResizes = 0l;
+    private RecordReader reader;
+    private TransactionStatus transaction;
+    private long startTime = 0l;
+    private DeltaIndex delta;
+    private long numUnchanged = 0l;
+    private boolean loadAll = false;
+    private String[] groups;
+    private long numFiltered = 0l;
+
+    public LoadContext(FileSpecification spec, SourceInput source, Date etlDate, String etlType) {
+        this(spec, source, etlDate, etlType, spec.newRejectFile(source));
+    }
+
+    /**
+     * @param rejects file that rejected records are written to, which is shared by the partitions of a load
+     */
+    public LoadContext(FileSpecification spec, SourceInput source, Date etlDate, String etlType, RejectFile rejects) {
+        this.spec = spec;
+        this.source = source;
+        this.etlDate = etlDate;
+        this.etlType = etlType;
+        recordIdBase = Long.parseLong(new SimpleDateFormat("yyyyMMdd").format(etlDate)) * 10000000000l;
+        batches = spec.getBatchController();
+        records = spec.newRecordBuffer(batches.getBatchRows());
+        sized = batches.isSampled();
+        writer = spec.newBulkWriter(this);
+        sorter = spec.newRecordSorter();
+        this.rejects = rejects;
+    }
+
+    /**
+     * Marks the start of record processing, used to calculate duration and records per second.
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Maps values read from the source file to a record and adds it to batch insertTarget cache. Records for which the
+     * specification's filter is false are counted but not added. If the filter cannot be evaluated or a value cannot
+     * be converted and the specification skips records in error, the record is rejected instead.
+     */
+    public void add(String[] values) {
+        Expression filter = spec.getFilter();
+        LoadMetrics metrics = spec.getMetrics();
+        boolean added = false;
+        try {
+            if (filter != null && !filter.test(values, groups)) {
+                numFiltered++;
+                numRecords++;
+                trace();
+                return;
+            }
+            if (metrics.isTimed()) {
+                long convertStart = System.nanoTime();
+                records.add(values, spec.getSourceIndexes(), groups, getRecordId(numRecords + 1));
+                metrics.addConvertNanos(System.nanoTime() - convertStart);
+            } else {
+                records.add(values, spec.getSourceIndexes(), groups, getRecordId(numRecords + 1));
+            }
+            added = true;
+        } catch (IllegalArgumentException e) {
+            if (!spec.isSkipErrors()) {
+                throw e;
+            }
+            reject(numRecords + 1, e.getMessage(), values);
+        }
+        if (added && delta != null && !isChanged(records, records.size() - 1)) {
+            records.removeLast();
+            numUnchanged++;
+        }
+        if (!sized && records.size() >= BatchController.SAMPLE_ROWS) {
+            sizeBatch();
+        }
+        if (records.isFull()) {
+            insertTarget();
+        }
+        numRecords++;
+        trace();
+    }
+
+    /**
+     * Adds records that have already been mapped to batch insertTarget cache. Records must be added in source file
+     * order.
+     *
+     * @param mapped buffer of mapped records
+     */
+    public void addAll(RecordBuffer mapped) {
+        if (delta != null) {
+            RecordBuffer changed = spec.newRecordBuffer(mapped.size());
+            for (int i = 0; i < mapped.size(); i++) {
+                if (isChanged(mapped, i)) {
+                    changed.addAll(mapped, i, 1);
+                }
+            }
+            numUnchanged += mapped.size() - changed.size();
+            skip(mapped.size() - changed.size());
+            mapped = changed;
+        }
+        int added = 0;
+        while (added < mapped.size()) {
+            int count = Math.max(0, Math.min(mapped.size() - added, records.getLimit() - records.size()));
+            if (!sized) {
+                count = Math.min(count, Math.max(0, BatchController.SAMPLE_ROWS - records.size()));
+            }
+            records.addAll(mapped, added, count);
+            added += count;
+            if (!sized && records.size() >= BatchController.SAMPLE_ROWS) {
+                sizeBatch();
+            }
+            if (records.isFull()) {
+                insertTarget();
+            }
+            for (int i = 0; i < count; i++) {
+                numRecords++;
+                trace();
+            }
+        }
+    }
+
+    /**
+     * Determines whether a record is to be loaded, updating the delta index with its hash. Records of files of type D,
+     * deleted records, are loaded if their key was loaded before, and their key is removed from the index; other
+     * records are loaded if their key is new or the hash of their mapped columns has changed. When replacing a file's
+     * records, all records are loaded.
+     */
+    private boolean isChanged(RecordBuffer buffer, int row) {
+        long key = DeltaIndex.hash(buffer, row, spec.getKeyIndexes());
+        if (etlType.equals("D")) {
+            return delta.remove(key) || loadAll;
+        }
+        try {
+            return delta.put(key, DeltaIndex.hash(buffer, row, spec.getDataIndexes())) || loadAll;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to update delta index " + delta.getFile().getPath(), e);
+        }
+    }
+
+    /**
+     * Counts records of the source that were read but not added, such as rejected records.
+     *
+     * @param count number of records
+     */
+    public void skip(long count) {
+        for (long i = 0; i < count; i++) {
+            numRecords++;
+            trace();
+        }
+    }
+
+    private void trace() {
+        long trace = spec.getTrace();
+        if (trace > 0l && numRecords % trace == 0l) {
+            log.info("\tProcessed " + getCount(numRecords) + " records in " + getDuration() + " (" + getRecordsPerSecond() + " rps)");
+        }
+    }
+
+    /**
+     * Rejects a record, writing it to the load's reject file. May be called by the parser threads of a load.
+     *
+     * @param recordNumber one based position of the record in the source file
+     * @param reason reason the record was rejected
+     * @param values values of the record
+     * @throws IllegalStateException if more records have been rejected than the specification allows
+     */
+    public void reject(long recordNumber, String reason, Object[] values) {
+        log.debug("\tRejected record " + recordNumber + " of " + getSourceName() + ": " + reason);
+        spec.getMetrics().addRejected(1);
+        rejects.reject(recordNumber, reason, values);
+    }
+
+    /**
+     * Limits the first batch of a load by the estimated size of its records, once enough records have been added to
+     * estimate it.
+     */
+    private void sizeBatch() {
+        batches.sample(records);
+        records.setLimit(batches.getBatchRows());
+        sized = true;
+    }
+
+    /**
+     * Inserts cached records into database targetTable using the specification's bulk writer. The time taken to write
+     * a full batch is reported to the specification's batch controller, which sizes the next batch. If the
+     * specification sorts records, they are instead handed to the load's sorter until {@link #finish} is called.
+     */
+    public void insertTarget() {
+        if (sorter != null && !sorted) {
+            try {
+                sorter.add(records);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to sort records of " + getSourceName(), e);
+            }
+            records.clear();
+            return;
+        }
+        if (records.size() > 0) {
+            long lastRecord = records.getRecordId(records.size() - 1) - recordIdBase;
+            int batchRows = records.size();
+            boolean full = records.isFull();
+            long writeStart = System.nanoTime();
+            int inserted = write(records);
+            long writeNanos = System.nanoTime() - writeStart;
+            spec.getMetrics().addBatch(inserted, writeNanos);
+            log.debug("\tInserted " + inserted + " records into " + spec.getTargetTable());
+            countBatch(records.getLimit());
+            batches.sample(records);
+            // Batches that were cut short, or slowed by finding rejected records, say nothing of the best size
+            if (full && inserted == batchRows) {
+                batches.record(batchRows, writeNanos);
+            }
+            records.clear();
+            records.setLimit(batches.getBatchRows());
+            sized = true;
+            numBatches++;
+            if (spec.getCommitInterval() > 0 && numBatches % spec.getCommitInterval() == 0) {
+                spec.checkpoint(this, lastRecord);
+            }
+        }
+    }
+
+    /**
+     * Inserts the records remaining once all records of the load have been added. If the specification sorts records,
+     * all records of the load are inserted, in order of the sort columns.
+     *
+     * @throws IOException on error reading the sorter's run files
+     */
+    public void finish() throws IOException {
+        if (sorter != null && !sorted) {
+            insertTarget();
+            sorted = true;
+            sorter.finish();
+            while (sorter.next(records)) {
+                insertTarget();
+            }
+        }
+        insertTarget();
+    }
+
+    /**
+     * Writes a batch of records. If the specification skips records in error, the batch is written within a savepoint
+     * and, if the database rejects it, rolled back to the savepoint and split in half, each half being written the
+     * same way until the records in error are found and rejected. This finds a few bad records in a batch in a few
+     * writes, rather than one write per record.
+     *
+     * @return number of records inserted
+     */
+    private int write(RecordBuffer batch) {
+        if (!spec.isSkipErrors() || transaction == null) {
+            writer.write(spec.getTargetTemplate(), batch);
+            return batch.size();
+        }
+        Object savepoint = transaction.createSavepoint();
+        try {
+            writer.write(spec.getTargetTemplate(), batch);
+        } catch (DataAccessException e) {
+            // Only errors caused by the values of records are rejected; others, such as a lost connection, fail the load
+            if (!(e instanceof DataIntegrityViolationException) && !(e instanceof UncategorizedSQLException)) {
+                throw e;
+            }
+            transaction.rollbackToSavepoint(savepoint);
+            transaction.releaseSavepoint(savepoint);
+            if (batch.size() == 1) {
+                if (delta != null && !etlType.equals("D")) {
+                    // The record is not loaded, so it must not be taken for an unchanged record by later loads
+                    delta.remove(DeltaIndex.hash(batch, 0, spec.getKeyIndexes()));
+                }
+                reject(batch.getRecordId(0) - recordIdBase, e.getMostSpecificCause().getMessage(), batch.getValues(0));
+                return 0;
+            }
+            int half = batch.size() / 2;
+            return write(slice(batch, 0, half)) + write(slice(batch, half, batch.size() - half));
+        }
+        transaction.releaseSavepoint(savepoint);
+        return batch.size();
+    }
+
+    private RecordBuffer slice(RecordBuffer batch, int from, int count) {
+        RecordBuffer slice = spec.newRecordBuffer(count);
+        slice.addAll(batch, from, count);
+        slice.setFileId(fileId);
+        return slice;
+    }
+
+    /**
+     * Writes the records of this load into the specification's staging table rather than its target table.
+     */
+    public void stage() {
+        writer.close();
+        writer = spec.newBulkWriter(this, true);
+        staged = true;
+    }
+
+    /**
+     * Determines whether the records of this load are written into the staging table.
+     * @return true, if staged
+     */
+    public boolean isStaged() {
+        return staged;
+    }
+
+    /**
+     * Resumes a load from a checkpoint, so that records following the checkpoint are numbered as in the original
+     * load.
+     *
+     * @param checkpoint checkpoint of the records already committed
+     */
+    public void resume(Checkpoint checkpoint) {
+        numRecords = checkpoint.getRecordNumber();
+        resumedRecords = numRecords;
+        resumeOffset = checkpoint.getByteOffset();
+        resumeInField = checkpoint.isInField();
+    }
+
+    /**
+     * Adds the records of a committed partition of this load to its totals.
+     *
+     * @param partition context of the partition
+     */
+    public void addPartition(LoadContext partition) {
+        numRecords += partition.getNumRecords() - partition.getResumedRecords();
+        numUnchanged += partition.numUnchanged;
+        numFiltered += partition.numFiltered;
+        if (partition.numBatches > 0) {
+            if (numBatches == 0l) {
+                firstBatchRows = partition.firstBatchRows;
+            }
+            lastBatchRows = partition.lastBatchRows;
+            minBatchRows = Math.min(minBatchRows, partition.minBatchRows);
+            maxBatchRows = Math.max(maxBatchRows, partition.maxBatchRows);
+            numResizes += partition.numResizes;
+        }
+        numBatches += partition.numBatches;
+    }
+
+    /**
+     * Counts the number of records a batch was sized at.
+     */
+    private void countBatch(int batchRows) {
+        if (numBatches == 0l) {
+            firstBatchRows = batchRows;
+        } else if (batchRows != lastBatchRows) {
+            numResizes++;
+        }
+        lastBatchRows = batchRows;
+        minBatchRows = Math.min(minBatchRows, batchRows);
+        maxBatchRows = Math.max(maxBatchRows, batchRows);
+    }
+
+    /**
+     * Gets a summary of the sizes chosen for the batches this load wrote, for the log.
+     * @return summary, or null if no batches were written
+     */
+    public String getBatchSummary() {
+        if (numBatches == 0l) {
+            return null;
+        }
+        StringBuilder summary = new StringBuilder("\tWrote ").append(getCount(numBatches))
+                .append(numBatches == 1l ? " batch" : " batches");
+        if (minBatchRows == maxBatchRows) {
+            summary.append(" sized at ").append(getCount(minBatchRows)).append(" records");
+        } else {
+            summary.append(" sized from ").append(getCount(minBatchRows)).append(" to ").append(getCount(maxBatchRows))
+                    .append(" records, starting at ").append(getCount(firstBatchRows)).append(" and ending at ")
+                    .append(getCount(lastBatchRows)).append(" after ").append(getCount(numResizes))
+                    .append(numResizes == 1l ? " change" : " changes");
+        }
+        if (batches.getRowBytes() > 0l) {
+            summary.append(", of about ").append(getCount(batches.getRowBytes())).append(" bytes a record");
+        }
+        return summary.append(", into ").append(spec.getTargetTable()).toString();
+    }
+
+    /**
+     * Releases resources held for writing records, deleting any files written to sort them. The reject file, which may
+     * be shared by other contexts, is closed by the load's owner.
+     */
+    public void close() {
+        writer.close();
+        if (sorter != null) {
+            sorter.close();
+        }
+    }
+
+    /**
+     * Gets the record_id value of a record, which is made up of the ETL date and the record's position in the source
+     * file, so that record IDs are the same no matter in what order or on which thread records are mapped.
+     *
+     * @param recordNumber one based position of the record in the source file
+     * @return record ID
+     */
+    public long getRecordId(long recordNumber) {
+        return recordIdBase + recordNumber;
+    }
+
+    public SourceInput getSource() {
+        return source;
+    }
+
+    public File getSourceFile() {
+        return source.getFile();
+    }
+
+    /**
+     * Gets the name of the source, which for compressed sources is the name of the uncompressed file.
+     * @return source name
+     */
+    public String getSourceName() {
+        return source.getName();
+    }
+
+    public Date getEtlDate() {
+        return etlDate;
+    }
+
+    public String getEtlType() {
+        return etlType;
+    }
+
+    public Integer getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(Integer fileId) {
+        this.fileId = fileId;
+        records.setFileId(fileId);
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    /**
+     * Gets the number of records committed by an earlier load that this load resumed.
+     * @return number of records skipped
+     */
+    public long getResumedRecords() {
+        return resumedRecords;
+    }
+
+    /**
+     * Gets the byte offset of the first record to read when resuming a load.
+     * @return byte offset, or -1 if not resuming or the offset is not known
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Gets the field state of the delimited parser at the resume offset.
+     * @return field state
+     */
+    public boolean isResumeInField() {
+        return resumeInField;
+    }
+
+    public RecordReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Sets the reader of the source, whose position is recorded in checkpoints. A reader set before the load starts is
+     * read instead of the source, when the source is read once for several loads.
+     * @param reader record reader
+     */
+    public void setReader(RecordReader reader) {
+        this.reader = reader;
+    }
+
+    public DeltaIndex getDelta() {
+        return delta;
+    }
+
+    /**
+     * Sets the delta index records are compared with, so that only new and changed records are loaded.
+     * @param delta delta index, or null if all records are loaded
+     */
+    public void setDelta(DeltaIndex delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Sets whether all records are loaded, though still compared with the delta index, as when replacing the
+     * records of a file loaded before.
+     * @param loadAll true, if all records are loaded
+     */
+    public boolean isLoadAll() {
+        return loadAll;
+    }
+
+    public void setLoadAll(boolean loadAll) {
+        this.loadAll = loadAll;
+    }
+
+    /**
+     * Gets the number of records that were not loaded as they had not changed since they were last loaded, or, for
+     * deleted records, had never been loaded.
+     * @return number of records
+     */
+    public long getNumUnchanged() {
+        return numUnchanged;
+    }
+
+    /**
+     * Gets the values of file() and group(n) in the specification's expressions.
+     * @return name of the source followed by the groups of sourcePattern it matched
+     */
+    public String[] getGroups() {
+        return groups;
+    }
+
+    public void setGroups(String[] groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * Gets the number of records that were not loaded as the specification's filter was false.
+     * @return number of records
+     */
+    public long getNumFiltered() {
+        return numFiltered;
+    }
+
+    /**
+     * Counts records filtered by the parser threads of a load, which are also counted as skipped.
+     * @param count number of records
+     */
+    public void addFiltered(long count) {
+        numFiltered += count;
+    }
+
+    public RejectFile getRejects() {
+        return rejects;
+    }
+
+    public TransactionStatus getTransaction() {
+        return transaction;
+    }
+
+    public void setTransaction(TransactionStatus transaction) {
+        this.transaction = transaction;
+    }
+
+    /**
+     * Gets formatted duration of current load.
+     * @return formatted duration
+     */
+    public String getDuration() {
+        long duration = System.currentTimeMillis() - startTime;
+        long milliseconds = duration % 1000;
+        long seconds = (duration / 1000) % 60;
+        long minutes = (duration / (1000 * 60)) % 60;
+        long hours = (duration / (1000 * 60 * 60)) % 24;
+        return String.format("%02d:%02d:%02d.%03d", hours, minutes, seconds, milliseconds);
+    }
+
+    /**
+     * Gets formatted count.
+     * @param count value to format
+     * @return formatted value.
+     */
+    public static String getCount(long count) {
+        return String.format("%,d", count);
+    }
+
+    /**
+     * Gets formatted records per second value.
+     * @return
+     */
+    public String getRecordsPerSecond() {
+        long duration = System.currentTimeMillis() - startTime;
+        double recordsPerSecond = (double) (numRecords - resumedRecords) / (duration / 1000.0d);
+        return String.format("%.2f", recordsPerSecond);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the loads into a target table: rows and bytes read, rows inserted and rejected, batch insert latencies,
+ * and the time spent parsing, converting values, waiting and in the database. Counters are updated once per batch or
+ * file and are always kept. Per-record times are only measured when timing is enabled, so that loads pay no cost for
+ * metrics that are not reported.
+ * <p/>
+ * Parse time is spent tokenizing records, convert time mapping and converting their values, wait time waiting for
+ * parser threads and load permits, and database time writing batches. Rates are per second of elapsed time since the
+ * metrics were created.
+ */
+public class LoadMetrics implements LoadMetricsMBean {
+    private final String targetTable;
+    private final boolean timed;
+    private final long startTime = System.nanoTime();
+    private final LongAdder filesLoaded = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder rowsParsed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder rowsInserted = new LongAdder();
+    private final LongAdder rowsRejected = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder convertNanos = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder dbNanos = new LongAdder();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    /**
+     * @param targetTable target table the metrics are tagged with
+     * @param timed true, if per-record parse and convert times are measured
+     */
+    public LoadMetrics(String targetTable, boolean timed) {
+        this.targetTable = targetTable;
+        this.timed = timed;
+    }
+
+    /**
+     * Determines whether per-record times are measured. Callers check this before reading the clock for each record.
+     * @return true, if timed
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    public void addParseNanos(long nanos) {
+        parseNanos.add(nanos);
+    }
+
+    public void addConvertNanos(long nanos) {
+        convertNanos.add(nanos);
+    }
+
+    public void addWaitNanos(long nanos) {
+        waitNanos.add(nanos);
+    }
+
+    /**
+     * Records a batch written to the target table.
+     *
+     * @param rows number of rows in the batch
+     * @param nanos time taken to write the batch
+     */
+    public void addBatch(int rows, long nanos) {
+        rowsInserted.add(rows);
+        dbNanos.add(nanos);
+        batchLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void addRejected(long rows) {
+        rowsRejected.add(rows);
+    }
+
+    /**
+     * Records the outcome of loading a source.
+     *
+     * @param loaded true, if loaded; false, if the load failed
+     * @param rows number of rows read from the source
+     * @param bytes size of the source
+     */
+    public void addFile(boolean loaded, long rows, long bytes) {
+        if (loaded) {
+            filesLoaded.increment();
+        } else {
+            filesFailed.increment();
+        }
+        rowsParsed.add(rows);
+        bytesRead.add(bytes);
+    }
+
+    public String getTargetTable() {
+        return targetTable;
+    }
+
+    public long getFilesLoaded() {
+        return filesLoaded.sum();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    public long getRowsParsed() {
+        return rowsParsed.sum();
+    }
+
+    public double getRowsPerSecond() {
+        return perSecond(rowsParsed.sum());
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(bytesRead.sum());
+    }
+
+    public long getRowsInserted() {
+        return rowsInserted.sum();
+    }
+
+    public long getRowsRejected() {
+        return rowsRejected.sum();
+    }
+
+    public long getBatches() {
+        return batchLatency.getCount();
+    }
+
+    public long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    public long getConvertMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(convertNanos.sum());
+    }
+
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    public long getDbMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(dbNanos.sum());
+    }
+
+    public double getBatchLatencyMeanMicros() {
+        return batchLatency.getMean();
+    }
+
+    public long getBatchLatencyP50Micros() {
+        return batchLatency.getPercentile(50.0d);
+    }
+
+    public long getBatchLatencyP95Micros() {
+        return batchLatency.getPercentile(95.0d);
+    }
+
+    public long getBatchLatencyP99Micros() {
+        return batchLatency.getPercentile(99.0d);
+    }
+
+    public long getBatchLatencyMaxMicros() {
+        return batchLatency.getMax();
+    }
+
+    /**
+     * Gets a snapshot of the metrics, in the layout of the JSON summary.
+     * @return metrics by name
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("targetTable", targetTable);
+        map.put("filesLoaded", getFilesLoaded());
+        map.put("filesFailed", getFilesFailed());
+        map.put("rowsParsed", getRowsParsed());
+        map.put("rowsPerSecond", getRowsPerSecond());
+        map.put("bytesRead", getBytesRead());
+        map.put("bytesPerSecond", getBytesPerSecond());
+        map.put("rowsInserted", getRowsInserted());
+        map.put("rowsRejected", getRowsRejected());
+        Map<String, Object> time = new LinkedHashMap<String, Object>();
+        time.put("parseMillis", getParseMillis());
+        time.put("convertMillis", getConvertMillis());
+        time.put("waitMillis", getWaitMillis());
+        time.put("dbMillis", getDbMillis());
+        map.put("time", time);
+        Map<String, Object> latency = new LinkedHashMap<String, Object>();
+        latency.put("batches", getBatches());
+        latency.put("meanMicros", getBatchLatencyMeanMicros());
+        latency.put("p50Micros", getBatchLatencyP50Micros());
+        latency.put("p95Micros", getBatchLatencyP95Micros());
+        latency.put("p99Micros", getBatchLatencyP99Micros());
+        latency.put("maxMicros", getBatchLatencyMaxMicros());
+        map.put("batchLatency", latency);
+        return map;
+    }
+
+    private double perSecond(long count) {
+        long nanos = System.nanoTime() - startTime;
+        return nanos > 0l ? count / (nanos / 1000000000.0d) : 0.0d;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+/**
+ * JMX view of the metrics of loads into a target table. Times are the sum of time spent by every thread, so with
+ * parallel parsers or concurrent loads they may exceed the elapsed time.
+ */
+public interface LoadMetricsMBean {
+    String getTargetTable();
+
+    long getFilesLoaded();
+
+    long getFilesFailed();
+
+    long getRowsParsed();
+
+    double getRowsPerSecond();
+
+    long getBytesRead();
+
+    double getBytesPerSecond();
+
+    long getRowsInserted();
+
+    long getRowsRejected();
+
+    long getBatches();
+
+    long getParseMillis();
+
+    long getConvertMillis();
+
+    long getWaitMillis();
+
+    long getDbMillis();
+
+    double getBatchLatencyMeanMicros();
+
+    long getBatchLatencyP50Micros();
+
+    long getBatchLatencyP95Micros();
+
+    long getBatchLatencyP99Micros();
+
+    long getBatchLatencyMaxMicros();
+}
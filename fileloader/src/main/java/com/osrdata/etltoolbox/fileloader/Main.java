@@ -19,6 +19,8 @@ package com.osrdata.etltoolbox.fileloader;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
 
 import java.io.File;
 import java.io.IOException;
@@ -39,6 +41,12 @@ import java.io.IOException;
  *   "targetUser": "source",
  *   "targetPassword": "password",
  *   "batchThreshold": 1000,
+ *   "pool": {
+ *     "maxTotal": 8,
+ *     "maxWaitMillis": 60000,
+ *     "validationQuery": "select 1",
+ *     "testOnBorrow": true
+ *   },
  *   "mappings": [
  *     {
  *       "sourcePattern": "TEST_([0-9]+)_(Initial|New|Deleted|Update)\\.txt",
@@ -52,14 +60,151 @@ import java.io.IOException;
  *       "parserLine": 1,
  *       "parserStrictQuotes": false,
  *       "parserIgnoreLeadingWhiteSpace": true,
+ *       "parserCharset": "UTF-8",
+ *       "parserThreads": 4,
+ *       "bulkWriter": "auto",
  *       "targetTable": "src_test",
+ *       "batchThreshold": 1000,
+ *       "batchMinRows": 100,
+ *       "batchMaxRows": 10000,
+ *       "batchMaxBytes": 16777216,
+ *       "batchMaxMillis": 5000,
+ *       "maxConcurrency": 1,
+ *       "commitInterval": 0,
+ *       "partitions": 0,
+ *       "errorPolicy": "skip",
+ *       "maxErrors": 100,
+ *       "rejectDirectory": "/data/reject",
+ *       "replaceStrategy": "auto",
+ *       "sink": "jdbc",
+ *       "outputDirectory": "/data/out",
  *       "targetColumns": [
  *         "test_id",
- *         "test_value"
- *       ]
+ *         "test_value",
+ *         {"name": "test_date", "type": "date", "format": "MM/dd/yyyy"}
+ *       ],
+ *       "filter": "$1 != 'TRAILER' and test_value != ''",
+ *       "derivedColumns": [
+ *         {"name": "test_code", "expression": "upper(substr(test_value, 1, 3))"},
+ *         {"name": "file_date", "expression": "group(1)", "type": "date", "format": "MMddyyyy"}
+ *       ],
+ *       "sortColumns": ["test_id"],
+ *       "sortMaxBytes": 67108864,
+ *       "sortDirectory": "/data/tmp"
  *     }
  *   ]
  * }
+ * <p/>
+ * Records are inserted in batches of batchThreshold records, which a mapping may override, limited to batchMaxBytes,
+ * by default 16 MB, of heap as estimated from a sample of each batch's records. A mapping defining batchMinRows and
+ * batchMaxRows has the number of records tuned within that range as records are inserted, growing it while inserts
+ * speed up, shrinking it when they slow down and whenever a batch takes longer than batchMaxMillis, by default 5000.
+ * The sizes chosen for a file's batches are logged once it has been loaded.
+ * <p/>
+ * A commitInterval greater than zero commits every commitInterval batches, recording the load's progress in the
+ * audit_checkpoint table so that a failed load can be resumed with -c; by default each file is loaded in a single
+ * transaction.
+ * <p/>
+ * Partitions greater than one split each uncompressed file read by the memory-mapped reader into that many byte ranges
+ * loaded in parallel, each on its own connection; the partitions commit together, so a file is still loaded
+ * completely or not at all. A file replaced with -r is loaded in a single transaction instead. Partitions require a
+ * sourceId and may not be combined with commitInterval.
+ * <p/>
+ * An errorPolicy of fail, the default, rolls back a file's load when any record cannot be converted or inserted. With
+ * skip, such records are written to a reject file named after the source with a .reject extension, in the
+ * rejectDirectory or the source's directory, along with their record number and the reason they were rejected, and the
+ * rest of the file is loaded. A maxErrors limits the records that may be rejected before the load fails. Records
+ * rejected by the database are found by rolling the batch back to a savepoint and bisecting it.
+ * <p/>
+ * With -r, the records of a previously loaded file are replaced. In a target with a sourceId, the file's records are
+ * deleted by file_id. A target without a sourceId has all its records replaced, which replaceStrategy controls:
+ * truncate truncates the table; swap loads the file into a stagingTable, by default the target table's name followed
+ * by _stage, then truncates the target and inserts the staged records in a single statement; delete deletes every
+ * record. With auto, the default, the table is truncated on PostgreSQL and SQL Server, whose truncate is
+ * transactional, or when it is loaded with commitInterval or partitions, and deleted otherwise. Swap is only used
+ * when requested: on Oracle, truncating commits the load, so the target is empty while the staged records are
+ * inserted, and stays empty, with the file recorded as loaded, if the insert fails.
+ * <p/>
+ * A sink of jdbc, the default, inserts records into the target table. A sink of csv or columnar writes them to files
+ * in the outputDirectory instead, laid out as &lt;targetTable&gt;/etl_date=yyyy-MM-dd/source_id=&lt;sourceId&gt;, one
+ * part per file, or per partition, named after the file ID. The csv sink writes gzip compressed delimited files,
+ * separated by outputSeparator; the columnar sink writes a directory per part holding a gzip compressed file per
+ * column. Parts appear once the load commits and the audit tables are still used, so files are skipped or replaced as
+ * for tables. File sinks may not be combined with commitInterval.
+ * <p/>
+ * A file matching several mappings is read and tokenized once for all of the mappings that parse it the same way,
+ * with the same parser properties and neither format fixed, layouts, parserThreads nor partitions, and whose target
+ * tables differ. Each table is loaded on its own connection and in its own transaction, and is audited, skipped,
+ * replaced or rolled back on its own; its rejected records are written to a reject file named after the source
+ * followed by the table's name.
+ * <p/>
+ * Target columns without a type are inserted as read. Typed columns are converted before insert, types being int,
+ * long, decimal, date, timestamp or boolean, with date and timestamp formats given as java.time patterns.
+ * <p/>
+ * A filter skips the records for which it is false before they are converted or batched, such as header and trailer
+ * records or records of no interest; filtered records are counted and logged, and keep their record numbers, so
+ * record_id is unaffected. Derived columns are inserted after the mapped columns, their values being the result of an
+ * expression, converted to the column's type if one is given. Expressions refer to columns as $1, $2 and so on, or by
+ * their name in targetColumns, to the groups of sourcePattern matched by the file's name as group(n), and to the
+ * name itself as file(); they may use string literals in single quotes, numbers, the functions substr, trim, ltrim,
+ * rtrim, upper, lower, length, concat, coalesce, replace, starts, ends, contains, matches and if, comparisons, which
+ * compare numbers as numbers, and and, or and not. Expressions are compiled once and evaluated as records are read;
+ * columns they refer to are read even if they are not mapped.
+ * <p/>
+ * A mapping with sortColumns inserts each file's records in order of those mapped or derived columns, such as the
+ * target table's clustered index or primary key, rather than in the order they were read; records with equal sort
+ * columns keep their order, and record IDs are assigned in file order as always. Records are held in memory up to
+ * sortMaxBytes, by default 64 MB, estimated as for batches, then sorted and written to a temporary run file in the
+ * sortDirectory, by default the JVM's temporary directory; once the file has been read, the runs are merged as the
+ * records are inserted. Each partition of a file, and each table a file is read once for, is sorted on its own, within
+ * its own sortMaxBytes. sortColumns may not be combined with commitInterval.
+ * <p/>
+ * A format of fixed reads fixed-width files rather than delimited ones. Each target column then defines its length in
+ * bytes and optionally its offset, by default the end of the previous column, and trim rule: both, left, right or
+ * none, by default parserTrim, which defaults to both. Records end at line breaks or, if a recordLength is defined,
+ * are recordLength bytes long. A mapping may define layouts instead of a single targetTable, for files holding several
+ * types of record:
+ * <p/>
+ * {
+ *   "sourcePattern": "TRADES_([0-9]+)\.dat",
+ *   "format": "fixed",
+ *   "recordTypeOffset": 0,
+ *   "layouts": [
+ *     {"recordType": "H", "targetTable": "trade_batch", "targetColumns": [
+ *       {"name": "", "length": 1}, {"name": "batch_date", "length": 8, "type": "date", "format": "yyyyMMdd"}]},
+ *     {"recordType": "D", "targetTable": "trade", "targetColumns": [
+ *       {"name": "trade_id", "offset": 1, "length": 10, "type": "long"}, {"name": "symbol", "length": 8}]}
+ *   ]
+ * }
+ * <p/>
+ * Each record is routed by the record type found at recordTypeOffset, recordTypeLength bytes long or by default as
+ * long as the longest recordType, to its layout's targetTable in a single pass over the file; records of other types
+ * are skipped. Layouts inherit the mapping's properties, are each audited as a load of their own table, and are loaded
+ * in one transaction. Fixed-width files may not be loaded with parserThreads or partitions, nor layouts with
+ * commitInterval.
+ * <p/>
+ * A mapping with keyColumns loads only the records that are new or have changed since earlier loads of its sourceId
+ * and targetTable. A hash of each record's key columns and of its other mapped values is kept in an index file in the
+ * deltaDirectory, and records whose values hash as they did when last loaded are skipped and counted as unchanged.
+ * Records of a Deleted file remove their keys from the index and are loaded only if their key was loaded before, and
+ * with -r every record is loaded. Changes to the index are undone when a load rolls back. keyColumns requires a
+ * sourceId and deltaDirectory, and may not be combined with commitInterval.
+ * <p/>
+ * With -w the directory is watched rather than loaded once, keeping specifications and connection pools open while
+ * files arrive. A file is loaded once it has been unchanged for the stable interval, then moved to the done
+ * directory, or to the error directory if its load failed.
+ * <p/>
+ * With -m, metrics of each target table are published as MBeans in the com.osrdata.etltoolbox.fileloader domain and
+ * a JSON summary is written to the given file when the run ends: rows and bytes read per second, rows inserted and
+ * rejected, batch insert latency percentiles, time spent parsing, converting, waiting and in the database, and peak
+ * active connections of each pool. Without -m, records are not timed.
+ * <p/>
+ * With -v, files are validated rather than loaded, and nothing is written to the audit or target databases. Each
+ * file is read as it would be loaded and every mapped value is checked against its target column's JDBC metadata:
+ * length of character columns, range or precision of numeric columns, nullability, and conversion to the column's
+ * type; records whose number of columns differs from targetColumns are reported too. Statistics of each column, its
+ * maximum length, number of nulls and approximate number of distinct values, are logged along with the first records
+ * that would fail to load, and written to the given file as a JSON profile.
  */
 public class Main {
     private static final Logger log = LogManager.getLogger(Main.class);
@@ -74,7 +219,15 @@ public class Main {
         options.addOption(new Option("d", "directory", true, "Source directory to load"));
         options.addOption(new Option("f", "file", true, "File to perform operation on"));
         options.addOption(new Option("r", "replace", false, "Replace previously loaded data"));
+        options.addOption(new Option("c", "resume", false, "Resume partially loaded files from their last checkpoint"));
         options.addOption(new Option("t", "trace", true, "Trace records processed at specified interval"));
+        options.addOption(new Option("n", "threads", true, "Number of files to load concurrently"));
+        options.addOption(new Option("m", "metrics", true, "Publish metrics over JMX and write a JSON summary to file"));
+        options.addOption(new Option("v", "validate", true, "Validate files against target tables without loading them, writing a JSON profile to file"));
+        options.addOption(new Option("w", "watch", false, "Watch directory, loading files as they arrive"));
+        options.addOption(new Option("o", "done", true, "Directory watched files are moved to once loaded"));
+        options.addOption(new Option("e", "error", true, "Directory watched files are moved to if they fail to load"));
+        options.addOption(new Option("i", "stable", true, "Seconds a watched file must be unchanged before loading"));
 
         CommandLineParser parser = new BasicParser();
 
@@ -84,22 +237,32 @@ public class Main {
             if (line.hasOption("spec") && (line.hasOption("directory") || line.hasOption("file"))) {
                 FileLoader loader = new FileLoader(line);
 
-                loader.init();
-
-                if (line.hasOption("file")) {
-                    loader.load(new File(line.getOptionValue("file")));
-                } else if (line.hasOption("directory")) {
-                    File directory = new File(line.getOptionValue("directory"));
+                try {
+                    loader.init();
 
-                    if (directory.isDirectory()) {
-                        File[] files = directory.listFiles();
+                    if (line.hasOption("file")) {
+                        loader.load(new File(line.getOptionValue("file")));
+                    } else if (line.hasOption("directory")) {
+                        File directory = new File(line.getOptionValue("directory"));
 
-                        for (File file : files) {
-                            loader.load(file);
+                        if (directory.isDirectory() && line.hasOption("watch")) {
+                            File doneDirectory = new File(line.getOptionValue("done",
+                                    new File(directory, "done").getPath()));
+                            File errorDirectory = new File(line.getOptionValue("error",
+                                    new File(directory, "error").getPath()));
+                            long stableMillis = Long.parseLong(line.getOptionValue("stable", "5")) * 1000l;
+                            loader.watch(directory, doneDirectory, errorDirectory, stableMillis);
+                        } else if (directory.isDirectory()) {
+                            loader.load(directory.listFiles());
+                        } else {
+                            log.fatal(directory.getAbsolutePath() + " does not appear to be a directory.");
                         }
-                    } else {
-                        log.fatal(directory.getAbsolutePath() + " does not appear to be a directory.");
                     }
+                } finally {
+                    loader.close();
+                    // Logging's own shutdown hook is disabled, so that loads stopped by a shutdown can still log, and
+                    // its appenders are stopped once the loader has closed.
+                    Configurator.shutdown((LoggerContext) LogManager.getContext(false));
                 }
             } else {
                 usage();
@@ -115,13 +278,21 @@ public class Main {
      * Prints usage message to STDOUT.
      */
     private static void usage() {
-        System.out.println("Usage: java fileloader.jar -s <specfile>.json (-d <directory> | -f file) [-r] [-t <interval>]");
+        System.out.println("Usage: java fileloader.jar -s <specfile>.json (-d <directory> [-w [-o <done>] [-e <error>] [-i <seconds>]] | -f file) [-r | -c] [-t <interval>] [-n <threads>] [-m <file>] [-v <file>]");
         System.out.println("where options include:");
         System.out.println("    -s <specfile>   specification file in JSON format");
-        System.out.println("    -d <directory>  directory containing data files to be loaded");
-        System.out.println("    -f <file>       individual file to be loaded");
+        System.out.println("    -d <directory>  directory containing data files to be loaded, which may be .gz or .zip files");
+        System.out.println("    -w              watch directory, loading files as they arrive until stopped");
+        System.out.println("    -o <done>       directory loaded files are moved to when watching, by default <directory>/done");
+        System.out.println("    -e <error>      directory failed files are moved to when watching, by default <directory>/error");
+        System.out.println("    -i <seconds>    seconds a file must be unchanged before it is loaded when watching, by default 5");
+        System.out.println("    -f <file>       individual file to be loaded, which may be a .gz or .zip file");
         System.out.println("    -r              replace data previously loaded from file with the same name");
+        System.out.println("    -c              resume files partially loaded with commitInterval from their last checkpoint");
         System.out.println("    -t <interval>   print trace output of records processed at specified interval");
+        System.out.println("    -n <threads>    number of files in directory to load concurrently");
+        System.out.println("    -m <file>       publish load metrics over JMX and write a JSON summary of the run to file");
+        System.out.println("    -v <file>       validate files against target table metadata without loading, writing a JSON profile to file");
     }
 
 }
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * This class reads delimited records directly from a memory-mapped file. Separators, quotes and escapes are found by
+ * scanning bytes, and Strings are only created for mapped columns, so columns that are skipped cost no more than the
+ * scan. Tokenizing follows the same rules as opencsv's CSVReader, including multi-line quoted fields and the strict
+ * quotes and ignore leading white space options.
+ * <p/>
+ * Because values are located by byte, the charset must encode the separator, quote and escape characters as single
+ * bytes that never occur inside other characters, which is true of UTF-8 and all single byte charsets. Files larger
+ * than the mapping window are mapped a window at a time.
+ */
+public class MappedDelimitedReader implements RecordReader {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+    private static final int NEED_MORE = -2;
+    private static final int END_OF_LINE = -1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+    private final Charset charset;
+    private final boolean singleByte;
+    private final boolean[] mapped;
+    private final int separator;
+    private final int quotechar;
+    private final int escape;
+    private final boolean strictQuotes;
+    private final boolean ignoreLeadingWhiteSpace;
+    private MappedByteBuffer buffer;
+    private ByteBuffer view;
+    private long base = 0l;
+    private int limit = 0;
+    private int pos = 0;
+    private boolean inField = false;
+    private byte[] field = new byte[256];
+    private int fieldLength = 0;
+    private String[] values = new String[16];
+    private int numValues = 0;
+    private String[] result = new String[0];
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param sourceFile file to read
+     * @param charset charset of the file, see {@link #isSupported}
+     * @param mapped flags indicating which columns are mapped, columns beyond the end of the array are not mapped
+     * @param skipLines number of lines to skip at the start of the file
+     */
+    public MappedDelimitedReader(File sourceFile, Charset charset, boolean[] mapped, char separator, char quotechar,
+                                 char escape, int skipLines, boolean strictQuotes, boolean ignoreLeadingWhiteSpace)
+            throws IOException {
+        this(sourceFile, charset, mapped, separator, quotechar, escape, skipLines, strictQuotes,
+                ignoreLeadingWhiteSpace, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedDelimitedReader(File sourceFile, Charset charset, boolean[] mapped, char separator, char quotechar,
+                                 char escape, int skipLines, boolean strictQuotes, boolean ignoreLeadingWhiteSpace,
+                                 int windowSize) throws IOException {
+        this.charset = charset;
+        this.singleByte = charset.newEncoder().maxBytesPerChar() == 1.0f;
+        this.mapped = mapped;
+        this.separator = separator;
+        this.quotechar = quotechar;
+        this.escape = escape;
+        this.strictQuotes = strictQuotes;
+        this.ignoreLeadingWhiteSpace = ignoreLeadingWhiteSpace;
+        this.windowSize = windowSize;
+        file = new RandomAccessFile(sourceFile, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        map(0l);
+        for (int i = 0; i < skipLines; i++) {
+            skipLine();
+        }
+    }
+
+    /**
+     * Determines whether files in a charset with the specified parser characters can be read by this class.
+     * @return true, if supported; otherwise, false
+     */
+    public static boolean isSupported(Charset charset, char separator, char quotechar, char escape) {
+        if (separator >= 128 || quotechar >= 128 || escape >= 128) {
+            return false;
+        }
+        if (charset.name().equals("UTF-8")) {
+            return true;
+        }
+        String ascii = "\t\n\r \"',;|\\0123456789AZaz";
+        return charset.newEncoder().maxBytesPerChar() == 1.0f
+                && Arrays.equals(ascii.getBytes(charset), ascii.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    public String[] readNext() throws IOException {
+        while (base + pos < fileSize) {
+            int start = pos;
+            boolean startInField = inField;
+            int count = parseRecord();
+            if (count != NEED_MORE) {
+                if (count == 0) {
+                    return null;
+                }
+                if (result.length != count) {
+                    result = new String[count];
+                }
+                System.arraycopy(values, 0, result, 0, count);
+                return result;
+            }
+            // The record continues past the end of the window, so map a new window from its start and parse it again.
+            if (start == 0) {
+                throw new IOException("Record at offset " + base + " is larger than mapping window of " + windowSize
+                        + " bytes");
+            }
+            map(base + start);
+            inField = startInField;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the byte offset of the next record to be read.
+     * @return byte offset
+     */
+    public long getPosition() {
+        return base + pos;
+    }
+
+    /**
+     * Moves to the start of a record, such as a position returned by {@link #getPosition} while reading the file
+     * earlier.
+     *
+     * @param position byte offset of the record
+     * @throws IOException on error mapping file
+     */
+    public void seek(long position) throws IOException {
+        seek(position, false);
+    }
+
+    /**
+     * Moves to the start of a record, restoring the parser's field state as returned by {@link #isInField} when the
+     * position was read, so that records are tokenized exactly as when reading the file from its start.
+     *
+     * @param position byte offset of the record
+     * @param inField field state at the position
+     * @throws IOException on error mapping file
+     */
+    public void seek(long position, boolean inField) throws IOException {
+        if (position < 0 || position > fileSize) {
+            throw new IOException("Position " + position + " is outside of file of " + fileSize + " bytes");
+        }
+        map(position);
+        this.inField = inField;
+    }
+
+    /**
+     * Gets the parser's field state following the last record read, which opencsv carries over to the next record.
+     * @return field state
+     */
+    public boolean isInField() {
+        return inField;
+    }
+
+    public void close() throws IOException {
+        buffer = null;
+        view = null;
+        channel.close();
+        file.close();
+    }
+
+    private void map(long start) throws IOException {
+        limit = (int) Math.min((long) windowSize, fileSize - start);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+        view = buffer.duplicate();
+        base = start;
+        pos = 0;
+    }
+
+    private void skipLine() throws IOException {
+        while (base + pos < fileSize) {
+            if (pos >= limit) {
+                map(base + pos);
+            }
+            byte b = buffer.get(pos++);
+            if (b == '\n') {
+                return;
+            } else if (b == '\r') {
+                if (pos >= limit && base + pos < fileSize) {
+                    map(base + pos);
+                }
+                if (pos < limit && buffer.get(pos) == '\n') {
+                    pos++;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses the record starting at the current position, advancing the position past it.
+     *
+     * @return number of values in the record, 0 if none, or NEED_MORE if the record continues past the window
+     */
+    private int parseRecord() {
+        numValues = 0;
+        fieldLength = 0;
+        int column = 0;
+        boolean fieldMapped = isMapped(column);
+        boolean inQuotes = false;
+        int lineStart = pos;
+        int p = pos;
+        MappedByteBuffer buffer = this.buffer;
+        int limit = this.limit;
+        while (true) {
+            if (p >= limit) {
+                if (base + limit < fileSize) {
+                    return NEED_MORE;
+                }
+                pos = p;
+                if (!inQuotes) {
+                    endField(fieldMapped);
+                }
+                // A quoted field left open at end of file is dropped, as CSVReader does.
+                return numValues;
+            }
+            int c = buffer.get(p) & 0xff;
+            if (c == '\n' || c == '\r') {
+                int next = p + 1;
+                if (c == '\r') {
+                    if (next >= limit && base + limit < fileSize) {
+                        return NEED_MORE;
+                    }
+                    if (next < limit && buffer.get(next) == '\n') {
+                        next++;
+                    }
+                }
+                if (inQuotes) {
+                    // Continuing a quoted field on the next line
+                    append(fieldMapped, '\n');
+                    p = next;
+                    lineStart = p;
+                    continue;
+                }
+                endField(fieldMapped);
+                pos = next;
+                return numValues;
+            }
+
+            if (c == escape) {
+                int n = peek(p + 1);
+                if (n == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                if ((inQuotes || inField) && (n == quotechar || n == escape)) {
+                    append(fieldMapped, n);
+                    p += 2;
+                } else {
+                    p++;
+                }
+            } else if (c == quotechar) {
+                int n = peek(p + 1);
+                if (n == NEED_MORE) {
+                    return NEED_MORE;
+                }
+                if ((inQuotes || inField) && n == quotechar) {
+                    append(fieldMapped, n);
+                    p += 2;
+                } else {
+                    // The tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                    if (!strictQuotes && p - lineStart > 2 && charIndex(lineStart, p) > 2
+                            && (buffer.get(p - 1) & 0xff) != separator && n != END_OF_LINE && n != separator) {
+                        if (ignoreLeadingWhiteSpace && fieldLength > 0 && isAllWhiteSpace()) {
+                            fieldLength = 0;
+                        } else {
+                            append(fieldMapped, c);
+                        }
+                    }
+                    inQuotes = !inQuotes;
+                    p++;
+                }
+                inField = !inField;
+            } else if (c == separator && !inQuotes) {
+                endField(fieldMapped);
+                fieldMapped = isMapped(++column);
+                inField = false;
+                p++;
+            } else if (!strictQuotes || inQuotes) {
+                // Consume the run of ordinary bytes in one step, copying it in bulk if the column is mapped.
+                int end = p + 1;
+                while (end < limit) {
+                    int d = buffer.get(end) & 0xff;
+                    if (d == separator || d == quotechar || d == escape || d == '\n' || d == '\r') {
+                        break;
+                    }
+                    end++;
+                }
+                if (fieldMapped) {
+                    appendRange(p, end);
+                }
+                inField = true;
+                p = end;
+            } else {
+                p++;
+            }
+        }
+    }
+
+    /**
+     * Gets the byte following the current one on the same line.
+     * @return byte value, END_OF_LINE if there is none, or NEED_MORE if it is past the window
+     */
+    private int peek(int p) {
+        if (p >= limit) {
+            return base + limit < fileSize ? NEED_MORE : END_OF_LINE;
+        }
+        int c = buffer.get(p) & 0xff;
+        return c == '\n' || c == '\r' ? END_OF_LINE : c;
+    }
+
+    /**
+     * Gets the character index on the line of a byte, which differs from the byte index for multi-byte characters.
+     */
+    private int charIndex(int lineStart, int p) {
+        if (singleByte) {
+            return p - lineStart;
+        }
+        int index = 0;
+        for (int i = lineStart; i < p; i++) {
+            if ((buffer.get(i) & 0xc0) != 0x80) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    private boolean isMapped(int column) {
+        return column < mapped.length && mapped[column];
+    }
+
+    private void append(boolean fieldMapped, int c) {
+        if (fieldMapped) {
+            if (fieldLength == field.length) {
+                byte[] grown = new byte[field.length * 2];
+                System.arraycopy(field, 0, grown, 0, fieldLength);
+                field = grown;
+            }
+            field[fieldLength++] = (byte) c;
+        }
+    }
+
+    private void appendRange(int start, int end) {
+        int length = end - start;
+        if (fieldLength + length > field.length) {
+            byte[] grown = new byte[Math.max(field.length * 2, fieldLength + length)];
+            System.arraycopy(field, 0, grown, 0, fieldLength);
+            field = grown;
+        }
+        view.position(start);
+        view.get(field, fieldLength, length);
+        fieldLength += length;
+    }
+
+    private void endField(boolean fieldMapped) {
+        if (numValues == values.length) {
+            String[] grown = new String[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, numValues);
+            values = grown;
+        }
+        values[numValues++] = fieldMapped ? new String(field, 0, fieldLength, charset) : null;
+        fieldLength = 0;
+    }
+
+    private boolean isAllWhiteSpace() {
+        for (int i = 0; i < fieldLength; i++) {
+            if (field[i] < 0 || !Character.isWhitespace((char) field[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class holds the metrics of a loader run, one {@link LoadMetrics} per target table, together with the activity
+ * of its connection pools. When enabled, the metrics of each table are registered as MBeans named
+ * com.osrdata.etltoolbox.fileloader:type=LoadMetrics,table=&lt;table&gt;, the pools are registered by DBCP as
+ * com.osrdata.etltoolbox.fileloader:type=ConnectionPool,name=&lt;audit|target&gt;, and a JSON summary is written when
+ * the run ends. When disabled, tables still get metrics objects but records are not timed and nothing is published.
+ */
+public class MetricsRegistry {
+    public static final String DOMAIN = "com.osrdata.etltoolbox.fileloader";
+    private static final Logger log = LogManager.getLogger(MetricsRegistry.class);
+    private static final long SAMPLE_MILLIS = 100l;
+
+    private final File summaryFile;
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, LoadMetrics> tables = new LinkedHashMap<String, LoadMetrics>();
+    private final Map<String, BasicDataSource> pools = new LinkedHashMap<String, BasicDataSource>();
+    private final Map<String, AtomicInteger> peakActive = new LinkedHashMap<String, AtomicInteger>();
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+    private ScheduledExecutorService sampler;
+
+    /**
+     * @param summaryFile file the JSON summary is written to, or null if metrics are disabled
+     */
+    public MetricsRegistry(File summaryFile) {
+        this.summaryFile = summaryFile;
+    }
+
+    public boolean isEnabled() {
+        return summaryFile != null;
+    }
+
+    /**
+     * Gets the metrics of a target table, creating and registering them on first use.
+     *
+     * @param targetTable target table
+     * @return metrics of the table
+     */
+    public synchronized LoadMetrics forTable(String targetTable) {
+        String key = targetTable.toLowerCase();
+        LoadMetrics metrics = tables.get(key);
+        if (metrics == null) {
+            metrics = new LoadMetrics(targetTable, isEnabled());
+            tables.put(key, metrics);
+            if (isEnabled()) {
+                register("type=LoadMetrics,table=" + ObjectName.quote(key), metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Gets the JMX name a connection pool registers itself with, when metrics are enabled.
+     *
+     * @param name name of the pool
+     * @return JMX name, or null if metrics are disabled
+     */
+    public String getPoolJmxName(String name) {
+        return isEnabled() ? DOMAIN + ":type=ConnectionPool,name=" + name : null;
+    }
+
+    /**
+     * Adds a connection pool, whose active connections are sampled to report the peak number in use.
+     *
+     * @param name name of the pool
+     * @param pool connection pool
+     */
+    public synchronized void addPool(String name, BasicDataSource pool) {
+        pools.put(name, pool);
+        peakActive.put(name, new AtomicInteger());
+        if (isEnabled() && sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "metrics-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sampler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    sample();
+                }
+            }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sample() {
+        for (Map.Entry<String, BasicDataSource> entry : pools.entrySet()) {
+            AtomicInteger peak = peakActive.get(entry.getKey());
+            int active = entry.getValue().getNumActive();
+            if (active > peak.get()) {
+                peak.set(active);
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of all metrics, in the layout of the JSON summary.
+     * @return metrics by name
+     */
+    public synchronized Map<String, Object> getSummary() {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("start", new Date(startTime));
+        summary.put("elapsedMillis", System.currentTimeMillis() - startTime);
+        List<Map<String, Object>> tableMetrics = new ArrayList<Map<String, Object>>();
+        for (LoadMetrics metrics : tables.values()) {
+            tableMetrics.add(metrics.toMap());
+        }
+        summary.put("tables", tableMetrics);
+        Map<String, Object> poolMetrics = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, BasicDataSource> entry : pools.entrySet()) {
+            Map<String, Object> pool = new LinkedHashMap<String, Object>();
+            pool.put("maxTotal", entry.getValue().getMaxTotal());
+            pool.put("active", entry.getValue().getNumActive());
+            pool.put("idle", entry.getValue().getNumIdle());
+            pool.put("peakActive", peakActive.get(entry.getKey()).get());
+            poolMetrics.put(entry.getKey(), pool);
+        }
+        summary.put("connectionPools", poolMetrics);
+        return summary;
+    }
+
+    /**
+     * Writes the JSON summary, if metrics are enabled. The summary is rewritten each time, so in watch mode it covers
+     * the run so far.
+     */
+    public void writeSummary() {
+        if (!isEnabled()) {
+            return;
+        }
+        sample();
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            mapper.enable(SerializationFeature.INDENT_OUTPUT);
+            mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+            mapper.writeValue(summaryFile, getSummary());
+            log.info("Wrote metrics summary to " + summaryFile.getPath());
+        } catch (IOException e) {
+            log.warn("Unable to write metrics summary to " + summaryFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Stops sampling and unregisters the MBeans.
+     */
+    public synchronized void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.debug("Unable to unregister " + name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(String properties, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            registered.add(name);
+        } catch (JMException e) {
+            log.warn("Unable to register metrics MBean " + properties, e);
+        }
+    }
+}
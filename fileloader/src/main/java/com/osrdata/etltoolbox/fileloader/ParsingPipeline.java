@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class loads a source file using a staged pipeline. A reader thread splits the file into chunks of raw lines at
+ * record boundaries, a pool of parser threads tokenize and map the chunks into record buffers, and the calling thread,
+ * which owns the load's transaction, adds the records to the load's batches in file order.
+ * <p/>
+ * The stages are linked by a bounded queue of pending chunk results, so the reader blocks when the parsers or the
+ * database fall behind. Record IDs are derived from each record's position in the file, which the reader assigns, so
+ * they are identical to those of a sequential load.
+ */
+public class ParsingPipeline {
+    private static final Logger log = LogManager.getLogger(ParsingPipeline.class);
+    private static final Future<Chunk> END = new FutureTask<Chunk>(new Callable<Chunk>() {
+        public Chunk call() {
+            return null;
+        }
+    });
+
+    private final FileSpecification spec;
+    private final LoadContext context;
+    private final int parserThreads;
+    private final int chunkSize;
+
+    public ParsingPipeline(FileSpecification spec, LoadContext context, int parserThreads, int chunkSize) {
+        this.spec = spec;
+        this.context = context;
+        this.parserThreads = parserThreads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Runs the pipeline, returning once every record in the source has been added to the load context.
+     *
+     * @param reader source to read
+     * @param skipRecords number of records at the start of the source to skip, which are scanned but not parsed
+     * @throws IOException on error reading source
+     * @throws InterruptedException if interrupted while waiting for the reader or parsers
+     */
+    public void run(final BufferedReader reader, final long skipRecords) throws IOException, InterruptedException {
+        final String name = Thread.currentThread().getName();
+        final BlockingQueue<Future<Chunk>> results = new ArrayBlockingQueue<Future<Chunk>>(parserThreads * 2);
+        final ExecutorService parsers = Executors.newFixedThreadPool(parserThreads, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-parser-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread readerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    read(reader, skipRecords, parsers, results);
+                    results.put(END);
+                } catch (InterruptedException e) {
+                    log.debug("\tReader of " + context.getSourceName() + " stopped");
+                } catch (final Throwable e) {
+                    FutureTask<Chunk> failure = new FutureTask<Chunk>(new Callable<Chunk>() {
+                        public Chunk call() throws Exception {
+                            if (e instanceof Exception) {
+                                throw (Exception) e;
+                            }
+                            throw (Error) e;
+                        }
+                    });
+                    failure.run();
+                    try {
+                        results.put(failure);
+                    } catch (InterruptedException ie) {
+                        log.debug("\tReader of " + context.getSourceName() + " stopped");
+                    }
+                }
+            }
+        }, name + "-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        try {
+            LoadMetrics metrics = spec.getMetrics();
+            Future<Chunk> result;
+            long waitStart = System.nanoTime();
+            while ((result = results.take()) != END) {
+                Chunk chunk = get(result);
+                metrics.addWaitNanos(System.nanoTime() - waitStart);
+                context.addAll(chunk.records);
+                // Records that were rejected, filtered or empty are counted, though not added
+                context.skip(chunk.numRecords - chunk.records.size());
+                context.addFiltered(chunk.numFiltered);
+                waitStart = System.nanoTime();
+            }
+        } finally {
+            readerThread.interrupt();
+            parsers.shutdownNow();
+            results.clear();
+        }
+    }
+
+    /**
+     * Reads the source, splitting it into chunks of whole records that are submitted to the parsers. Futures of the
+     * chunk results are queued in file order, blocking when the queue is full.
+     */
+    private void read(BufferedReader reader, long skipRecords, ExecutorService parsers,
+                      BlockingQueue<Future<Chunk>> results) throws IOException, InterruptedException {
+        DelimitedLineParser scanner = spec.newLineParser();
+        for (int i = 0; i < spec.getParserLine(); i++) {
+            reader.readLine();
+        }
+
+        boolean continued = false;
+        String line;
+        long skipped = 0l;
+        while (skipped < skipRecords && (line = reader.readLine()) != null) {
+            continued = scanner.scan(line, continued);
+            if (!continued) {
+                skipped++;
+            }
+        }
+
+        long firstRecord = skipped + 1l;
+        Chunk chunk = new Chunk(firstRecord, scanner.isInField());
+        int recordLines = 0;
+        while ((line = reader.readLine()) != null) {
+            continued = scanner.scan(line, continued);
+            chunk.lines.add(line);
+            recordLines++;
+            if (!continued) {
+                chunk.addRecord(recordLines);
+                recordLines = 0;
+                if (chunk.numRecords >= chunkSize) {
+                    results.put(parsers.submit(chunk));
+                    firstRecord += chunk.numRecords;
+                    chunk = new Chunk(firstRecord, scanner.isInField());
+                }
+            }
+        }
+        if (recordLines > 0) {
+            chunk.addRecord(recordLines);
+        }
+        if (chunk.numRecords > 0) {
+            results.put(parsers.submit(chunk));
+        }
+    }
+
+    /**
+     * Waits for a chunk result, unwrapping any exception thrown by the reader or parsers.
+     */
+    private Chunk get(Future<Chunk> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A chunk of consecutive records read from the source, which parses and maps its records when called.
+     */
+    private class Chunk implements Callable<Chunk> {
+        private final long firstRecord;
+        private final boolean inField;
+        private List<String> lines = new ArrayList<String>();
+        private int[] recordLines = new int[Math.max(chunkSize, 1)];
+        private int numRecords = 0;
+        private int numFiltered = 0;
+        private RecordBuffer records;
+
+        private Chunk(long firstRecord, boolean inField) {
+            this.firstRecord = firstRecord;
+            this.inField = inField;
+        }
+
+        private void addRecord(int numLines) {
+            if (numRecords == recordLines.length) {
+                int[] grown = new int[numRecords * 2];
+                System.arraycopy(recordLines, 0, grown, 0, numRecords);
+                recordLines = grown;
+            }
+            recordLines[numRecords++] = numLines;
+        }
+
+        public Chunk call() {
+            DelimitedLineParser parser = spec.newLineParser();
+            parser.setInField(inField);
+            records = spec.newRecordBuffer(numRecords);
+            int[] sourceIndexes = spec.getSourceIndexes();
+            Expression filter = spec.getFilter();
+            String[] groups = context.getGroups();
+            LoadMetrics metrics = spec.getMetrics();
+            boolean timed = metrics.isTimed();
+            long parseNanos = 0l;
+            long convertNanos = 0l;
+            int offset = 0;
+            for (int i = 0; i < numRecords; i++) {
+                long start = timed ? System.nanoTime() : 0l;
+                String[] values = parser.parseRecord(lines, offset, recordLines[i]);
+                offset += recordLines[i];
+                long parsed = timed ? System.nanoTime() : 0l;
+                if (values != null) {
+                    try {
+                        if (filter != null && !filter.test(values, groups)) {
+                            numFiltered++;
+                        } else {
+                            records.add(values, sourceIndexes, groups, context.getRecordId(firstRecord + i));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        if (!spec.isSkipErrors()) {
+                            throw e;
+                        }
+                        context.reject(firstRecord + i, e.getMessage(), values);
+                    }
+                }
+                if (timed) {
+                    long converted = System.nanoTime();
+                    parseNanos += parsed - start;
+                    convertNanos += converted - parsed;
+                }
+            }
+            if (timed) {
+                metrics.addParseNanos(parseNanos);
+                metrics.addConvertNanos(convertNanos);
+            }
+            lines = null;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class loads a single source file as several partitions in parallel. The file is first scanned to split it into
+ * byte ranges of about equal size that start at record boundaries, counting the records before each range, so records
+ * are tokenized and numbered exactly as in a sequential load. Each partition is then loaded by its own thread, on its
+ * own connection and in its own transaction.
+ * <p/>
+ * Partitions commit together: each partition waits once its records are inserted, and only when every partition has
+ * succeeded are their transactions committed; otherwise all are rolled back. A commit that fails after other
+ * partitions have committed is reported through {@link #getCommitted}, so that the caller can remove the records
+ * that were committed.
+ */
+public class PartitionedLoad {
+    private static final Logger log = LogManager.getLogger(PartitionedLoad.class);
+
+    private final FileSpecification spec;
+    private final LoadContext context;
+    private final int numPartitions;
+    private final PlatformTransactionManager txManager;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final CountDownLatch decided = new CountDownLatch(1);
+    private volatile boolean aborted = false;
+    private volatile boolean commit = false;
+    private int committed = 0;
+
+    public PartitionedLoad(FileSpecification spec, LoadContext context, int numPartitions,
+                           PlatformTransactionManager txManager) {
+        this.spec = spec;
+        this.context = context;
+        this.numPartitions = numPartitions;
+        this.txManager = txManager;
+    }
+
+    /**
+     * Runs the load, returning once every partition has committed.
+     *
+     * @throws Exception the first exception thrown by a partition, or by a partition's commit
+     */
+    public void run() throws Exception {
+        List<Partition> partitions = split(context.getSourceFile());
+        log.info("\tLoading " + LoadContext.getCount(context.getNumRecords() + getNumRecords(partitions))
+                + " records in " + partitions.size() + " partitions");
+
+        final String name = Thread.currentThread().getName();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-partition-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CountDownLatch loaded = new CountDownLatch(partitions.size());
+        List<Future<LoadContext>> futures = new ArrayList<Future<LoadContext>>();
+        try {
+            for (Partition partition : partitions) {
+                futures.add(executor.submit(new PartitionLoader(partition, loaded)));
+            }
+            loaded.await();
+            commit = failure.get() == null;
+            decided.countDown();
+
+            Exception commitFailure = null;
+            for (Future<LoadContext> future : futures) {
+                try {
+                    LoadContext partitionContext = future.get();
+                    if (partitionContext != null) {
+                        context.addPartition(partitionContext);
+                        committed++;
+                    }
+                } catch (ExecutionException e) {
+                    if (commitFailure == null) {
+                        commitFailure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure.get() != null) {
+                Throwable cause = failure.get();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            } else if (commitFailure != null) {
+                throw commitFailure;
+            }
+        } finally {
+            aborted = true;
+            decided.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Scans the file, splitting it into partitions at the first record boundary following each multiple of the
+     * partition size.
+     */
+    private List<Partition> split(File sourceFile) throws IOException {
+        List<Partition> partitions = new ArrayList<Partition>();
+        MappedDelimitedReader reader = spec.openMappedReader(sourceFile, true);
+        try {
+            long start = reader.getPosition();
+            long partitionSize = Math.max((sourceFile.length() - start) / numPartitions, 1l);
+            long records = context.getNumRecords();
+            Partition partition = new Partition(start, records, reader.isInField());
+            long next = start + partitionSize;
+            while (reader.readNext() != null) {
+                records++;
+                long position = reader.getPosition();
+                if (position >= next && partitions.size() < numPartitions - 1) {
+                    partition.numRecords = records - partition.firstRecord;
+                    partitions.add(partition);
+                    partition = new Partition(position, records, reader.isInField());
+                    next = position + partitionSize;
+                }
+            }
+            partition.numRecords = records - partition.firstRecord;
+            if (partition.numRecords > 0 || partitions.isEmpty()) {
+                partitions.add(partition);
+            }
+        } finally {
+            reader.close();
+        }
+        return partitions;
+    }
+
+    private long getNumRecords(List<Partition> partitions) {
+        long numRecords = 0l;
+        for (Partition partition : partitions) {
+            numRecords += partition.numRecords;
+        }
+        return numRecords;
+    }
+
+    /**
+     * Gets the number of partitions that committed, which may be greater than zero when the load failed if a partition
+     * failed to commit after others had committed.
+     * @return number of partitions committed
+     */
+    public int getCommitted() {
+        return committed;
+    }
+
+    /**
+     * A range of records in the file.
+     */
+    private static class Partition {
+        private final long start;
+        private final long firstRecord;
+        private final boolean inField;
+        private long numRecords;
+
+        private Partition(long start, long firstRecord, boolean inField) {
+            this.start = start;
+            this.firstRecord = firstRecord;
+            this.inField = inField;
+        }
+    }
+
+    /**
+     * Loads a partition in its own transaction, then waits for the decision to commit or roll back. Returns the
+     * partition's context if committed, or null if rolled back.
+     */
+    private class PartitionLoader implements Callable<LoadContext> {
+        private final Partition partition;
+        private final CountDownLatch loaded;
+
+        private PartitionLoader(Partition partition, CountDownLatch loaded) {
+            this.partition = partition;
+            this.loaded = loaded;
+        }
+
+        public LoadContext call() throws Exception {
+            LoadContext partitionContext = new LoadContext(spec, context.getSource(), context.getEtlDate(),
+                    context.getEtlType(), context.getRejects());
+            partitionContext.setFileId(context.getFileId());
+            partitionContext.setGroups(context.getGroups());
+            partitionContext.setDelta(context.getDelta());
+            partitionContext.setLoadAll(context.isLoadAll());
+            partitionContext.resume(new Checkpoint(context.getFileId(), partition.firstRecord,
+                    context.getRecordId(partition.firstRecord), partition.start, partition.inField));
+            TransactionStatus status;
+            try {
+                status = txManager.getTransaction(new DefaultTransactionDefinition());
+            } catch (RuntimeException e) {
+                fail(e);
+                loaded.countDown();
+                return null;
+            }
+
+            boolean inserted = false;
+            try {
+                partitionContext.setTransaction(status);
+                partitionContext.start();
+                load(partitionContext);
+                inserted = true;
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                partitionContext.close();
+                loaded.countDown();
+            }
+
+            if (inserted) {
+                decided.await();
+            }
+            if (inserted && commit) {
+                txManager.commit(status);
+                log.debug("\tCommitted " + LoadContext.getCount(partition.numRecords) + " records from offset "
+                        + partition.start);
+                return partitionContext;
+            }
+            txManager.rollback(status);
+            return null;
+        }
+
+        private void load(LoadContext partitionContext) throws IOException {
+            MappedDelimitedReader reader = spec.openMappedReader(context.getSourceFile(), false);
+            try {
+                reader.seek(partition.start, partition.inField);
+                LoadMetrics metrics = spec.getMetrics();
+                for (long i = 0; i < partition.numRecords; i++) {
+                    if (aborted) {
+                        throw new CancellationException("Partition at offset " + partition.start + " cancelled");
+                    }
+                    long parseStart = metrics.isTimed() ? System.nanoTime() : 0l;
+                    String[] values = reader.readNext();
+                    if (metrics.isTimed()) {
+                        metrics.addParseNanos(System.nanoTime() - parseStart);
+                    }
+                    if (values == null) {
+                        throw new IOException("Unexpected end of file in partition at offset " + partition.start);
+                    }
+                    partitionContext.add(values);
+                }
+            } finally {
+                reader.close();
+            }
+            partitionContext.finish();
+        }
+
+        /**
+         * Records the first failure and stops the other partitions.
+         */
+        private void fail(Throwable e) {
+            if (!(e instanceof CancellationException)) {
+                failure.compareAndSet(null, e);
+            }
+            aborted = true;
+        }
+    }
+}
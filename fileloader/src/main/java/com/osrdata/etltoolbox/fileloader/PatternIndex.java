@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This class indexes file name patterns by the literal prefix and suffix every matching name must have, so that a
+ * name is tested only against the patterns whose literals it contains rather than against every pattern. Prefixes are
+ * held in a trie, which a name is walked through once, and each candidate's suffix is compared before its pattern is
+ * run. Patterns without a literal prefix are held at the root of the trie and are candidates for every name.
+ * <p/>
+ * Literals are extracted conservatively, stopping at the first construct that is not a plain or escaped character, and
+ * are compared ignoring case, so the candidates of a name always include every pattern that matches it. Candidates
+ * must still be matched against the name.
+ *
+ * @param <T> type of value indexed by pattern
+ */
+public class PatternIndex<T> {
+    private static final String METACHARACTERS = "\\[](){}.*+?^$|";
+
+    private final Node<T> root = new Node<T>();
+    private int size = 0;
+
+    /**
+     * Adds a pattern to the index.
+     *
+     * @param pattern pattern names are matched against in full
+     * @param value value returned for names that may match the pattern
+     */
+    public void add(Pattern pattern, T value) {
+        String regex = pattern.pattern();
+        String prefix = "";
+        String suffix = "";
+        // Literal patterns and patterns with comments, canonical equivalence or inline flags are not parsed, so they are
+        // candidates for every name.
+        if ((pattern.flags() & (Pattern.LITERAL | Pattern.COMMENTS | Pattern.CANON_EQ)) == 0
+                && !hasInlineFlags(regex)) {
+            prefix = getLiteralPrefix(regex);
+            suffix = getLiteralSuffix(regex);
+        }
+        Node<T> node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.child(Character.toLowerCase(prefix.charAt(i)));
+        }
+        node.entries.add(new Entry<T>(size++, suffix, value));
+    }
+
+    /**
+     * Gets the values of the patterns that may match a name, in the order they were added.
+     *
+     * @param name name to match
+     * @return values of candidate patterns
+     */
+    public List<T> candidates(String name) {
+        List<Entry<T>> found = new ArrayList<Entry<T>>();
+        Node<T> node = root;
+        int i = 0;
+        while (node != null) {
+            for (Entry<T> entry : node.entries) {
+                int start = name.length() - entry.suffix.length();
+                if (start >= 0 && name.regionMatches(true, start, entry.suffix, 0, entry.suffix.length())) {
+                    found.add(entry);
+                }
+            }
+            node = i < name.length() && node.children != null
+                    ? node.children.get(Character.toLowerCase(name.charAt(i))) : null;
+            i++;
+        }
+        if (found.size() > 1) {
+            Collections.sort(found);
+        }
+        List<T> values = new ArrayList<T>(found.size());
+        for (Entry<T> entry : found) {
+            values.add(entry.value);
+        }
+        return values;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the literal text every string matching a regular expression must start with.
+     *
+     * @param regex regular expression
+     * @return literal prefix, which is empty if there is none
+     */
+    public static String getLiteralPrefix(String regex) {
+        if (hasAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                c = regex.charAt(i + 1);
+                i += 2;
+            } else if (METACHARACTERS.indexOf(c) != -1) {
+                break;
+            } else {
+                i++;
+            }
+            if (i < regex.length() && "?*{".indexOf(regex.charAt(i)) != -1) {
+                // The character is optional or repeated an unknown number of times.
+                break;
+            }
+            prefix.append(c);
+            if (i < regex.length() && regex.charAt(i) == '+') {
+                break;
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Gets the literal text every string matching a regular expression must end with.
+     *
+     * @param regex regular expression
+     * @return literal suffix, which is empty if there is none
+     */
+    public static String getLiteralSuffix(String regex) {
+        if (hasAlternation(regex)) {
+            return "";
+        }
+        int end = regex.length();
+        if (end > 0 && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+            end--;
+        }
+        // The expression is read forwards, since a character read backwards may belong to an escape sequence such as
+        // \x41 or \cA, or to a character class.
+        StringBuilder suffix = new StringBuilder();
+        int i = 0;
+        while (i < end) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    suffix.setLength(0);
+                    i = skipEscape(regex, i, end);
+                } else {
+                    suffix.append(regex.charAt(i + 1));
+                    i += 2;
+                }
+            } else if (c == '[') {
+                suffix.setLength(0);
+                i = skipClass(regex, i, end);
+            } else if (METACHARACTERS.indexOf(c) != -1) {
+                // A quantifier makes the characters before it optional or repeated, and other metacharacters match
+                // characters that are not known.
+                suffix.setLength(0);
+                i++;
+            } else {
+                suffix.append(c);
+                i++;
+            }
+        }
+        return suffix.toString();
+    }
+
+    /**
+     * Skips an escape sequence starting with a letter or digit, returning the index following it. A sequence whose
+     * length is not fixed, such as a back reference, may be taken to be longer than it is, which only shortens the
+     * suffix.
+     */
+    private static int skipEscape(String regex, int start, int end) {
+        if (start + 1 >= end) {
+            return end;
+        }
+        char c = regex.charAt(start + 1);
+        int i = start + 2;
+        if (c == 'Q') {
+            int quoteEnd = regex.indexOf("\\E", i);
+            return quoteEnd < 0 || quoteEnd + 2 > end ? end : quoteEnd + 2;
+        } else if ((c == 'x' || c == 'p' || c == 'P') && i < end && regex.charAt(i) == '{') {
+            int close = regex.indexOf('}', i);
+            return close < 0 || close + 1 > end ? end : close + 1;
+        } else if (c == 'k' && i < end && regex.charAt(i) == '<') {
+            int close = regex.indexOf('>', i);
+            return close < 0 || close + 1 > end ? end : close + 1;
+        } else if (c == 'x') {
+            i += 2;
+        } else if (c == 'u') {
+            i += 4;
+        } else if (c == 'c' || c == 'p' || c == 'P') {
+            i++;
+        } else if (c == '0') {
+            for (int n = 0; n < 3 && i < end && regex.charAt(i) >= '0' && regex.charAt(i) <= '7'; n++) {
+                i++;
+            }
+        } else if (Character.isDigit(c)) {
+            while (i < end && Character.isDigit(regex.charAt(i))) {
+                i++;
+            }
+        }
+        return Math.min(i, end);
+    }
+
+    /**
+     * Skips a character class, which may contain nested classes, returning the index following it.
+     */
+    private static int skipClass(String regex, int start, int end) {
+        int depth = 0;
+        int i = start;
+        while (i < end) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            } else if (c == '[') {
+                depth++;
+                // A closing bracket first in a class is literal.
+                if (i + 1 < end && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < end && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return end;
+    }
+
+    /**
+     * Determines whether the character at an index is escaped by an odd number of backslashes.
+     */
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Determines whether a regular expression has alternatives outside of any group, which prevents extracting
+     * literals. Alternatives inside a group do not, as literals end at the first group.
+     */
+    private static boolean hasAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+                // A closing bracket first in a class is literal.
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a regular expression has an inline flag group, such as (?x), which may change how the rest of
+     * the expression is read.
+     */
+    private static boolean hasInlineFlags(String regex) {
+        for (int i = 0; i < regex.length() - 2; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '(' && regex.charAt(i + 1) == '?' && "idmsuxU-".indexOf(regex.charAt(i + 2)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A node of the prefix trie, holding the patterns whose prefix ends at the node.
+     */
+    private static class Node<T> {
+        private final List<Entry<T>> entries = new ArrayList<Entry<T>>(1);
+        private Map<Character, Node<T>> children;
+
+        private Node<T> child(char c) {
+            if (children == null) {
+                children = new HashMap<Character, Node<T>>();
+            }
+            Node<T> child = children.get(c);
+            if (child == null) {
+                child = new Node<T>();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * An indexed pattern, ordered by when it was added.
+     */
+    private static class Entry<T> implements Comparable<Entry<T>> {
+        private final int order;
+        private final String suffix;
+        private final T value;
+
+        private Entry(int order, String suffix, T value) {
+            this.order = order;
+            this.suffix = suffix;
+            this.value = value;
+        }
+
+        public int compareTo(Entry<T> other) {
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Writes records by streaming them in CSV format to a PostgreSQL COPY ... FROM STDIN command. If the connection is
+ * not a PostgreSQL driver connection the records are written with the fallback writer instead.
+ */
+public class PostgresCopyWriter implements BulkWriter {
+    private static final int BUFFER_SIZE = 65536;
+    private final String copySql;
+    private final BulkWriter fallback;
+
+    /**
+     * @param table target table
+     * @param columns insert columns
+     * @param fallback writer used when the connection does not support COPY
+     */
+    public PostgresCopyWriter(String table, List<String> columns, BulkWriter fallback) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("copy ").append(table).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns.get(i));
+        }
+        sb.append(") from stdin with csv");
+        this.copySql = sb.toString();
+        this.fallback = fallback;
+    }
+
+    public void write(JdbcTemplate template, final RecordBuffer records) {
+        boolean copied = template.execute(new ConnectionCallback<Boolean>() {
+            public Boolean doInConnection(Connection connection) throws SQLException, DataAccessException {
+                if (!connection.isWrapperFor(PGConnection.class)) {
+                    return false;
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                PGCopyOutputStream out = new PGCopyOutputStream(pgConnection, copySql, BUFFER_SIZE);
+                try {
+                    // The driver always sets client_encoding to UTF8.
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+                    int numColumns = records.getNumColumns();
+                    for (int row = 0; row < records.size(); row++) {
+                        writeRecord(writer, records, numColumns, row);
+                    }
+                    writer.close();
+                } catch (IOException e) {
+                    if (out.isActive()) {
+                        out.cancelCopy();
+                    }
+                    if (e.getCause() instanceof SQLException) {
+                        // Rethrow the server's error, so that its SQL state is translated
+                        throw (SQLException) e.getCause();
+                    }
+                    throw new SQLException("Error copying records to PostgreSQL", e);
+                }
+                return true;
+            }
+        });
+        if (!copied) {
+            fallback.write(template, records);
+        }
+    }
+
+    /**
+     * Writes a record as a CSV line. Null values are written unquoted, which COPY reads as NULL, and all other values
+     * are quoted so that empty strings remain empty strings.
+     */
+    private void writeRecord(Writer writer, RecordBuffer records, int numColumns, int row) throws IOException {
+        int numDataColumns = records.getNumDataColumns();
+        for (int i = 0; i < numDataColumns; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = records.getColumn(i)[row];
+            if (value != null) {
+                String text = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString();
+                writer.write('"');
+                for (int j = 0; j < text.length(); j++) {
+                    char c = text.charAt(j);
+                    if (c == '"') {
+                        writer.write('"');
+                    }
+                    writer.write(c);
+                }
+                writer.write('"');
+            }
+        }
+        if (numColumns > numDataColumns) {
+            if (numDataColumns > 0) {
+                writer.write(',');
+            }
+            writer.write(records.getSourceId().toString());
+            writer.write(',');
+            writer.write(records.getFileId().toString());
+            writer.write(',');
+            writer.write(Long.toString(records.getRecordId(row)));
+        }
+        writer.write('\n');
+    }
+
+    public void close() {
+        fallback.close();
+    }
+
+    public String getCopySql() {
+        return copySql;
+    }
+}
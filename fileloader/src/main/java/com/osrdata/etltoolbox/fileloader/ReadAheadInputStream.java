@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads another stream on a separate thread, ahead of the caller, through a fixed set of reused
+ * buffers. It is used to decompress sources on their own thread while the caller parses and inserts records.
+ * <p/>
+ * The underlying stream is read and closed only by the read-ahead thread. Errors reading it are thrown to the caller
+ * once the data read before the error has been consumed.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final int NUM_BUFFERS = 4;
+
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(NUM_BUFFERS);
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(NUM_BUFFERS + 1);
+    private final Thread thread;
+    private volatile IOException error;
+    private Chunk current;
+    private int position = 0;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    /**
+     * Starts reading the stream.
+     *
+     * @param in stream to read
+     * @param bufferSize size of each read-ahead buffer
+     * @param name name of the read-ahead thread
+     */
+    public ReadAheadInputStream(final InputStream in, int bufferSize, String name) {
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            free.add(new Chunk(new byte[bufferSize]));
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    readAhead(in);
+                } catch (InterruptedException e) {
+                    // Closed by the caller before the end of the stream
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Fills free buffers from the stream, queueing them for the caller. An empty chunk marks the end of the stream or
+     * an error.
+     */
+    private void readAhead(InputStream in) throws InterruptedException {
+        try {
+            while (true) {
+                Chunk chunk = free.take();
+                int length = 0;
+                int count = 0;
+                while (length < chunk.data.length && (count = in.read(chunk.data, length,
+                        chunk.data.length - length)) >= 0) {
+                    length += count;
+                }
+                if (length > 0) {
+                    chunk.length = length;
+                    filled.put(chunk);
+                }
+                if (count < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        filled.put(new Chunk(null));
+    }
+
+    /**
+     * Makes the next filled buffer current, returning false at the end of the stream.
+     */
+    private boolean next() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        Chunk chunk;
+        try {
+            chunk = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + thread.getName());
+        }
+        if (chunk.data == null) {
+            ended = true;
+            if (error != null) {
+                throw error;
+            }
+            return false;
+        }
+        current = chunk;
+        position = 0;
+        return true;
+    }
+
+    public int read() throws IOException {
+        if (!next()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    public int available() throws IOException {
+        return current != null && !closed ? current.length - position : 0;
+    }
+
+    /**
+     * Stops the read-ahead thread, which closes the underlying stream, and waits for it to finish.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current = null;
+        free.clear();
+        filled.clear();
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * A reusable, column oriented buffer of records waiting to be written to a target table. Values of each mapped column
+ * are held in an array preallocated to the buffer's capacity and record IDs in a long array, while source ID and file
+ * ID, which are the same for every record of a load, are held once. Clearing the buffer keeps its arrays, so a load
+ * allocates nothing per record beyond the values themselves.
+ * <p/>
+ * Values of typed columns are converted as records are added, so conversion is done by the parser threads of a
+ * {@link ParsingPipeline}; other values are held as read.
+ */
+public class RecordBuffer {
+    /** Value used for mapped columns that are missing from a record. */
+    public static final String EMPTY = "";
+
+    private final int numDataColumns;
+    private int capacity;
+    private int limit;
+    private final Object[][] columns;
+    private long[] recordIds;
+    private final ColumnConverter[] converters;
+    private final Expression[] expressions;
+    private final Integer sourceId;
+    private Integer fileId;
+    private int size = 0;
+
+    /**
+     * @param numDataColumns number of mapped columns
+     * @param capacity maximum number of records
+     * @param sourceId source ID of the records, or null if source ID, file ID and record ID are not inserted
+     */
+    public RecordBuffer(int numDataColumns, int capacity, Integer sourceId) {
+        this(numDataColumns, capacity, sourceId, new ColumnConverter[numDataColumns]);
+    }
+
+    /**
+     * @param numDataColumns number of mapped columns
+     * @param capacity maximum number of records
+     * @param sourceId source ID of the records, or null if source ID, file ID and record ID are not inserted
+     * @param converters converter of each mapped column, null for columns whose values are held as read
+     */
+    public RecordBuffer(int numDataColumns, int capacity, Integer sourceId, ColumnConverter[] converters) {
+        this(numDataColumns, capacity, sourceId, converters, null);
+    }
+
+    /**
+     * @param numDataColumns number of mapped and derived columns
+     * @param capacity maximum number of records
+     * @param sourceId source ID of the records, or null if source ID, file ID and record ID are not inserted
+     * @param converters converter of each column, null for columns whose values are held as read
+     * @param expressions expression of each derived column, null for mapped columns, or null if no columns are
+     *                    derived
+     */
+    public RecordBuffer(int numDataColumns, int capacity, Integer sourceId, ColumnConverter[] converters,
+                        Expression[] expressions) {
+        this.numDataColumns = numDataColumns;
+        this.capacity = capacity;
+        limit = capacity;
+        this.sourceId = sourceId;
+        this.converters = converters;
+        this.expressions = expressions;
+        columns = new Object[numDataColumns][capacity];
+        recordIds = new long[capacity];
+    }
+
+    /**
+     * Adds a record, taking the value of each mapped column from the values read from the source file and converting
+     * it to the column's type.
+     *
+     * @param values values read from the source file
+     * @param sourceIndexes index into values of each mapped column
+     * @param recordId record ID of the record
+     * @throws IllegalArgumentException if a value cannot be converted, in which case the record is not added
+     */
+    public void add(String[] values, int[] sourceIndexes, long recordId) {
+        add(values, sourceIndexes, null, recordId);
+    }
+
+    /**
+     * Adds a record, taking the value of each mapped column from the values read from the source file and evaluating
+     * the expression of each derived column, and converting each value to the column's type.
+     *
+     * @param values values read from the source file
+     * @param sourceIndexes index into values of each mapped column
+     * @param groups name of the source followed by the groups of sourcePattern it matched, used by expressions
+     * @param recordId record ID of the record
+     * @throws IllegalArgumentException if a value cannot be converted, in which case the record is not added
+     */
+    public void add(String[] values, int[] sourceIndexes, String[] groups, long recordId) {
+        int row = size;
+        int c = 0;
+        try {
+            for (; c < numDataColumns; c++) {
+                int i = sourceIndexes[c];
+                String value;
+                if (i < 0) {
+                    value = expressions[c].eval(values, groups);
+                } else {
+                    value = i < values.length ? values[i] : EMPTY;
+                }
+                ColumnConverter converter = converters[c];
+                columns[c][row] = converter == null ? value : converter.convert(value);
+            }
+        } catch (IllegalArgumentException e) {
+            for (int j = 0; j < c; j++) {
+                columns[j][row] = null;
+            }
+            throw e;
+        }
+        recordIds[row] = recordId;
+        size++;
+    }
+
+    /**
+     * Adds a record whose values have already been converted, such as a record read back from a sort run.
+     *
+     * @param values value of each mapped and derived column, which are copied
+     * @param recordId record ID of the record
+     */
+    public void add(Object[] values, long recordId) {
+        for (int c = 0; c < numDataColumns; c++) {
+            columns[c][size] = values[c];
+        }
+        recordIds[size] = recordId;
+        size++;
+    }
+
+    /**
+     * Removes the last record added.
+     */
+    public void removeLast() {
+        size--;
+        for (int c = 0; c < numDataColumns; c++) {
+            columns[c][size] = null;
+        }
+    }
+
+    /**
+     * Adds records copied from another buffer.
+     *
+     * @param other buffer to copy from
+     * @param from index of first record to copy
+     * @param count number of records to copy
+     */
+    public void addAll(RecordBuffer other, int from, int count) {
+        for (int c = 0; c < numDataColumns; c++) {
+            System.arraycopy(other.columns[c], from, columns[c], size, count);
+        }
+        System.arraycopy(other.recordIds, from, recordIds, size, count);
+        size += count;
+    }
+
+    /**
+     * Gets the value of an insert column, mapped columns being followed by source ID, file ID and record ID.
+     *
+     * @param column zero based insert column
+     * @param row zero based record
+     * @return value
+     */
+    public Object getValue(int column, int row) {
+        if (column < numDataColumns) {
+            return columns[column][row];
+        } else if (column == numDataColumns) {
+            return sourceId;
+        } else if (column == numDataColumns + 1) {
+            return fileId;
+        }
+        return recordIds[row];
+    }
+
+    /**
+     * Clears the buffer, releasing references to its values but keeping its arrays for reuse.
+     */
+    public void clear() {
+        for (int c = 0; c < numDataColumns; c++) {
+            Arrays.fill(columns[c], 0, size, null);
+        }
+        size = 0;
+    }
+
+    public boolean isFull() {
+        return size >= limit;
+    }
+
+    /**
+     * Gets the number of records at which the buffer is full.
+     * @return limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the number of records at which the buffer is full, growing its arrays if the limit exceeds their capacity.
+     * A limit below the number of records held makes the buffer full until it is cleared.
+     *
+     * @param limit number of records
+     */
+    public void setLimit(int limit) {
+        if (limit > capacity) {
+            for (int c = 0; c < numDataColumns; c++) {
+                columns[c] = Arrays.copyOf(columns[c], limit);
+            }
+            recordIds = Arrays.copyOf(recordIds, limit);
+            capacity = limit;
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Estimates the heap taken by the values of a record, used to limit the bytes of a batch. Strings are counted as
+     * an object holding an array of two byte characters, and other values as a small object.
+     *
+     * @param row zero based record
+     * @return estimated bytes
+     */
+    public long estimateBytes(int row) {
+        long bytes = 8l;
+        for (int c = 0; c < numDataColumns; c++) {
+            Object value = columns[c][row];
+            if (value instanceof String) {
+                bytes += 64l + 2l * ((String) value).length();
+            } else if (value != null) {
+                bytes += 32l;
+            } else {
+                bytes += 8l;
+            }
+        }
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getNumDataColumns() {
+        return numDataColumns;
+    }
+
+    /**
+     * Gets the number of insert columns, which includes source ID, file ID and record ID when a source ID is defined.
+     * @return number of insert columns
+     */
+    public int getNumColumns() {
+        return sourceId != null ? numDataColumns + 3 : numDataColumns;
+    }
+
+    /**
+     * Gets the type of a mapped column, used to bind its null values.
+     * @param column zero based mapped column
+     * @return SQL type, as defined by {@link Types}
+     */
+    public int getSqlType(int column) {
+        ColumnConverter converter = converters[column];
+        return converter == null ? Types.VARCHAR : converter.getSqlType();
+    }
+
+    /**
+     * Gets the values of the mapped columns of a record.
+     * @param row zero based record
+     * @return values
+     */
+    public Object[] getValues(int row) {
+        Object[] values = new Object[numDataColumns];
+        for (int c = 0; c < numDataColumns; c++) {
+            values[c] = columns[c][row];
+        }
+        return values;
+    }
+
+    public Object[] getColumn(int column) {
+        return columns[column];
+    }
+
+    public long getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    public Integer getSourceId() {
+        return sourceId;
+    }
+
+    public Integer getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(Integer fileId) {
+        this.fileId = fileId;
+    }
+}
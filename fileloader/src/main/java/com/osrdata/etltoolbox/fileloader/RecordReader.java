@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the records of a source file as arrays of values.
+ */
+public interface RecordReader extends Closeable {
+    /**
+     * Reads the next record. The returned array may be reused by the next call, so callers must not keep it.
+     *
+     * @return values of the next record, or null at end of file
+     * @throws IOException on error reading file
+     */
+    String[] readNext() throws IOException;
+
+    /**
+     * Gets the byte offset in the source file of the next record to be read, used to resume a load.
+     * @return byte offset, or -1 if the reader does not track offsets
+     */
+    long getPosition();
+}
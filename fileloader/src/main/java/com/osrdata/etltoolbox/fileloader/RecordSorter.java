@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class sorts the records of a load by the sort columns of its specification before they are written, so records
+ * are inserted in the order of the target table's clustered index or primary key rather than the order of the source.
+ * Records are added once converted, with their record IDs already assigned in source file order, and records with
+ * equal sort columns keep that order.
+ * <p/>
+ * Records are held in memory until their estimated size reaches the sort's memory budget, when they are sorted and
+ * written to a temporary run file in a compact binary format, so the heap used does not depend on the size of the
+ * source. Once all records have been added, the runs are merged, at most as many at a time as fit the budget's read
+ * buffers, merging in several passes if there are more runs than that. A load whose records fit the budget is sorted
+ * in memory without writing any files. A sorter is used by a single load, and its files are deleted when it is closed.
+ */
+public class RecordSorter {
+    private static final Logger log = LogManager.getLogger(RecordSorter.class);
+    /** Maximum estimated bytes of records held in memory, unless defined by a mapping. */
+    public static final long DEFAULT_MAX_BYTES = 64l * 1024l * 1024l;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MERGE_RUNS = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte TIMESTAMP = 5;
+    private static final byte DATE = 6;
+    private static final byte BOOLEAN = 7;
+
+    private final FileSpecification spec;
+    private final int[] sortIndexes;
+    private final long maxBytes;
+    private final File directory;
+    private final int numColumns;
+    private final List<File> runs = new ArrayList<File>();
+    private RecordBuffer records;
+    private long recordBytes = 0l;
+    private long numRecords = 0l;
+    private int[] order;
+    private int next = 0;
+    private PriorityQueue<Run> merge;
+    private final List<Run> readers = new ArrayList<Run>();
+
+    /**
+     * @param spec specification of the load, which creates the buffer records are held in
+     * @param sortIndexes index of each sort column among the mapped and derived columns
+     * @param maxBytes maximum estimated bytes of records held in memory
+     * @param directory directory of run files, or null for the default temporary directory
+     */
+    public RecordSorter(FileSpecification spec, int[] sortIndexes, long maxBytes, File directory) {
+        this.spec = spec;
+        this.sortIndexes = sortIndexes;
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        records = spec.newRecordBuffer(INITIAL_CAPACITY);
+        numColumns = records.getNumDataColumns();
+    }
+
+    /**
+     * Adds records to be sorted, writing the records held in memory to a run file once they reach the memory budget.
+     *
+     * @param batch records to add, which are copied
+     * @throws IOException on error writing a run file
+     */
+    public void add(RecordBuffer batch) throws IOException {
+        int count = batch.size();
+        if (count == 0) {
+            return;
+        }
+        if (records.size() + count > records.getCapacity()) {
+            records.setLimit(Math.max(records.getCapacity() * 2, records.size() + count));
+        }
+        for (int row = 0; row < count; row++) {
+            recordBytes += batch.estimateBytes(row);
+        }
+        records.addAll(batch, 0, count);
+        numRecords += count;
+        if (recordBytes >= maxBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * Sorts the records held in memory and writes them to a new run file.
+     */
+    private void spill() throws IOException {
+        int[] sorted = sort();
+        File file = newRunFile();
+        DataOutputStream out = openRun(file, records.size());
+        try {
+            Object[] values = new Object[numColumns];
+            for (int row : sorted) {
+                for (int c = 0; c < numColumns; c++) {
+                    values[c] = records.getValue(c, row);
+                }
+                writeRecord(out, values, records.getRecordId(row));
+            }
+        } finally {
+            out.close();
+        }
+        log.debug("\tSpilled " + LoadContext.getCount(records.size()) + " sorted records of "
+                + spec.getTargetTable() + " to " + file);
+        records.clear();
+        recordBytes = 0l;
+    }
+
+    /**
+     * Completes adding records, preparing to read them in order. Records held in memory are sorted in memory if no
+     * run file was written; otherwise they are written to a final run, and runs are merged until no more remain than
+     * are merged at once.
+     *
+     * @throws IOException on error writing or reading run files
+     */
+    public void finish() throws IOException {
+        if (runs.isEmpty()) {
+            order = sort();
+            return;
+        }
+        if (records.size() > 0) {
+            spill();
+        }
+        // Memory is now used by the read buffers of the runs being merged
+        records = null;
+        int maxRuns = (int) Math.max(2l, Math.min(MAX_MERGE_RUNS, maxBytes / BUFFER_SIZE));
+        log.info("\tMerging " + LoadContext.getCount(numRecords) + " records sorted in " + runs.size()
+                + " runs written to disk");
+        while (runs.size() > maxRuns) {
+            mergeRuns(new ArrayList<File>(runs.subList(0, maxRuns)));
+        }
+        merge = openMerge(runs);
+    }
+
+    /**
+     * Merges runs into a single new run, which is added after the remaining runs, deleting the runs merged.
+     */
+    private void mergeRuns(List<File> files) throws IOException {
+        PriorityQueue<Run> queue = openMerge(files);
+        long count = 0l;
+        for (Run run : queue) {
+            count += run.numRecords;
+        }
+        File file = newRunFile();
+        DataOutputStream out = openRun(file, count);
+        try {
+            Run run;
+            while ((run = queue.poll()) != null) {
+                writeRecord(out, run.values, run.recordId);
+                if (run.readNext()) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            out.close();
+            closeReaders();
+        }
+        for (File merged : files) {
+            delete(merged);
+            runs.remove(merged);
+        }
+    }
+
+    private PriorityQueue<Run> openMerge(List<File> files) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size(), new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return compareRecords(a.values, a.recordId, b.values, b.recordId);
+            }
+        });
+        for (File file : files) {
+            Run run = new Run(file);
+            readers.add(run);
+            if (run.readNext()) {
+                queue.add(run);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Adds sorted records to a buffer until it is full or no records remain, after {@link #finish}.
+     *
+     * @param batch buffer to add records to
+     * @return true, if any records were added; false, if no records remain
+     * @throws IOException on error reading run files
+     */
+    public boolean next(RecordBuffer batch) throws IOException {
+        int added = 0;
+        if (merge == null) {
+            while (next < order.length && !batch.isFull()) {
+                batch.addAll(records, order[next++], 1);
+                added++;
+            }
+            return added > 0;
+        }
+        Run run;
+        while (!batch.isFull() && (run = merge.poll()) != null) {
+            batch.add(run.values, run.recordId);
+            added++;
+            if (run.readNext()) {
+                merge.add(run);
+            }
+        }
+        return added > 0;
+    }
+
+    /**
+     * Sorts the records held in memory by merge sort of their indexes, which keeps records with equal sort columns in
+     * the order they were added.
+     *
+     * @return index of each record in sorted order
+     */
+    private int[] sort() {
+        int size = records.size();
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = i;
+        }
+        int[] work = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int from = 0; from < size; from += 2 * width) {
+                int middle = Math.min(from + width, size);
+                int to = Math.min(from + 2 * width, size);
+                int i = from;
+                int j = middle;
+                int k = from;
+                while (i < middle && j < to) {
+                    work[k++] = compareRows(sorted[j], sorted[i]) < 0 ? sorted[j++] : sorted[i++];
+                }
+                while (i < middle) {
+                    work[k++] = sorted[i++];
+                }
+                while (j < to) {
+                    work[k++] = sorted[j++];
+                }
+            }
+            int[] swap = sorted;
+            sorted = work;
+            work = swap;
+        }
+        return sorted;
+    }
+
+    private int compareRows(int a, int b) {
+        for (int c : sortIndexes) {
+            int result = compareValues(records.getValue(c, a), records.getValue(c, b));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Long.compare(records.getRecordId(a), records.getRecordId(b));
+    }
+
+    private int compareRecords(Object[] a, long recordIdA, Object[] b, long recordIdB) {
+        for (int c : sortIndexes) {
+            int result = compareValues(a[c], b[c]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Long.compare(recordIdA, recordIdB);
+    }
+
+    /**
+     * Compares values of a sort column, nulls first. Strings are compared by character, and other values by their
+     * natural order.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a.getClass() == b.getClass() && a instanceof Comparable) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private File newRunFile() throws IOException {
+        File file = File.createTempFile("fileloader-" + spec.getTargetTable().toLowerCase() + "-", ".run", directory);
+        runs.add(file);
+        return file;
+    }
+
+    /**
+     * Opens a run file for writing, starting with its number of records.
+     */
+    private DataOutputStream openRun(File file, long count) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        out.writeLong(count);
+        return out;
+    }
+
+    /**
+     * Writes a record as its record ID followed by each value, a value being a type byte followed by the value in the
+     * type's binary form.
+     */
+    private static void writeRecord(DataOutputStream out, Object[] values, long recordId) throws IOException {
+        out.writeLong(recordId);
+        for (Object value : values) {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof BigDecimal) {
+                byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+                out.writeByte(DECIMAL);
+                out.writeInt(((BigDecimal) value).scale());
+                out.writeInt(unscaled.length);
+                out.write(unscaled);
+            } else if (value instanceof Timestamp) {
+                out.writeByte(TIMESTAMP);
+                out.writeLong(((Timestamp) value).getTime());
+                out.writeInt(((Timestamp) value).getNanos());
+            } else if (value instanceof java.sql.Date) {
+                out.writeByte(DATE);
+                out.writeLong(((java.sql.Date) value).getTime());
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                throw new IllegalStateException("Unable to write value of type " + value.getClass().getName()
+                        + " to a sort run");
+            }
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DECIMAL:
+                int scale = in.readInt();
+                byte[] unscaled = new byte[in.readInt()];
+                in.readFully(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case DATE:
+                return new java.sql.Date(in.readLong());
+            case BOOLEAN:
+                return in.readBoolean();
+            default:
+                throw new IOException("Invalid value type " + type + " in sort run");
+        }
+    }
+
+    /**
+     * Closes the run files being read and deletes all run files.
+     */
+    public void close() {
+        closeReaders();
+        for (File file : runs) {
+            delete(file);
+        }
+        runs.clear();
+        merge = null;
+    }
+
+    private void closeReaders() {
+        for (Run run : readers) {
+            try {
+                run.in.close();
+            } catch (IOException e) {
+                log.warn("\tError closing sort run " + run.file, e);
+            }
+        }
+        readers.clear();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("\tUnable to delete sort run " + file);
+        }
+    }
+
+    /**
+     * Reader of a run file, holding the record read last.
+     */
+    private class Run {
+        private final File file;
+        private final DataInputStream in;
+        private final long numRecords;
+        private long numRead = 0l;
+        private Object[] values = new Object[numColumns];
+        private long recordId;
+
+        private Run(File file) throws IOException {
+            this.file = file;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            numRecords = in.readLong();
+        }
+
+        private boolean readNext() throws IOException {
+            if (numRead == numRecords) {
+                return false;
+            }
+            recordId = in.readLong();
+            for (int c = 0; c < numColumns; c++) {
+                values[c] = readValue(in);
+            }
+            numRead++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.osrdata.etltoolbox.fileloader;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+
+/**
+ * Records rejected by a load whose specification skips records in error. Each rejected record is written as a CSV
+ * line holding its record number, the reason it was rejected and its values: the values read from the source when it
+ * could not be converted, or its converted values when the database rejected it. Record numbers are one based
+ * positions in the source file after any header lines, as used for record IDs.
+ * <p/>
+ * The file is only created once a record is rejected. A reject file is shared by the partitions and parser threads of
+ * a load, so its methods are synchronized.
+ */
+public class RejectFile {
+    private static final Logger log = LogManager.getLogger(RejectFile.class);
+    private final File file;
+    private final Charset charset;
+    private final long maxErrors;
+    private CSVWriter writer;
+    private long count = 0l;
+    private boolean closed = false;
+
+    /**
+     * @param file file to write rejected records to
+     * @param charset charset of the file
+     * @param maxErrors number of records that may be rejected before the load fails, or -1 if unlimited
+     */
+    public RejectFile(File file, Charset charset, long maxErrors) {
+        this.file = file;
+        this.charset = charset;
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Writes a rejected record.
+     *
+     * @param recordNumber one based position of the record in the source file
+     * @param reason reason the record was rejected
+     * @param values values of the record
+     * @throws IllegalStateException if more than maxErrors records have been rejected, which fails the load
+     */
+    public synchronized void reject(long recordNumber, String reason, Object[] values) {
+        if (closed) {
+            return;
+        }
+        count++;
+        try {
+            if (writer == null) {
+                // Records rejected before a resumed load's checkpoint remain in the file
+                writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        charset)));
+            }
+            String[] line = new String[values.length + 2];
+            line[0] = Long.toString(recordNumber);
+            line[1] = reason;
+            for (int i = 0; i < values.length; i++) {
+                Object value = values[i];
+                line[i + 2] = value == null ? "" : value instanceof BigDecimal
+                        ? ((BigDecimal) value).toPlainString() : value.toString();
+            }
+            writer.writeNext(line);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write reject file " + file, e);
+        }
+        if (maxErrors >= 0 && count > maxErrors) {
+            throw new IllegalStateException("Rejected more than " + maxErrors + " records, the maximum allowed");
+        }
+    }
+
+    /**
+     * Deletes the reject file of an earlier load of the same source, called when a load starts from the first record.
+     */
+    public synchronized void reset() {
+        if (writer == null && file.exists() && !file.delete()) {
+            log.warn("\tUnable to delete reject file " + file);
+        }
+    }
+
+    /**
+     * Removes the records rejected after the checkpoint a load resumes from, which were written by the failed load but
+     * are read again, and so may be rejected again, by the resumed load. Records rejected before the checkpoint remain
+     * in the file.
+     *
+     * @param recordNumber number of records committed before the checkpoint
+     * @throws IOException on error rewriting the file
+     */
+    public synchronized void resume(long recordNumber) throws IOException {
+        if (writer != null || !file.exists()) {
+            return;
+        }
+        File kept = new File(file.getPath() + ".tmp");
+        long removed = 0l;
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(file), charset),
+                CSVWriter.DEFAULT_SEPARATOR, CSVWriter.DEFAULT_QUOTE_CHARACTER, CSVWriter.NO_ESCAPE_CHARACTER);
+        try {
+            CSVWriter out = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(kept),
+                    charset)));
+            try {
+                String[] line;
+                while ((line = reader.readNext()) != null) {
+                    if (Long.parseLong(line[0]) <= recordNumber) {
+                        out.writeNext(line);
+                    } else {
+                        removed++;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            reader.close();
+        }
+        if (removed == 0l) {
+            kept.delete();
+        } else if (!file.delete() || !kept.renameTo(file)) {
+            throw new IOException("Unable to replace reject file " + file);
+        } else {
+            log.info("\tRemoved " + LoadContext.getCount(removed) + " records rejected after the checkpoint from "
+                    + file);
+        }
+    }
+
+    /**
+     * Closes the file. Records rejected after the file is closed, by parser threads still running when a load failed,
+     * are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (writer != null) {
+            try {
+                if (writer.checkError()) {
+                    log.warn("\tError writing reject file " + file);
+                }
+                writer.close();
+            } catch (IOException e) {
+                log.warn("\tError closing reject file " + file, e);
+            }
+            writer = null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of records rejected by this load.
+     * @return number of records rejected
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+}
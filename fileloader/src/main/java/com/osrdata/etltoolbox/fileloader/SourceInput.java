@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A source of records to load: a plain file, a gzip compressed file or an entry of a zip archive. The name of a source
+ * is the name matched against a specification's source pattern and recorded in the audit_file table; it is the file
+ * name without its .gz extension for gzip files and the entry's file name for zip entries, so compressed files are
+ * loaded exactly as if they had been decompressed first.
+ */
+public class SourceInput {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final String name;
+    private final String entryName;
+    private final boolean gzip;
+    private final long size;
+
+    private SourceInput(File file, String name, String entryName, boolean gzip, long size) {
+        this.file = file;
+        this.name = name;
+        this.entryName = entryName;
+        this.gzip = gzip;
+        this.size = size;
+    }
+
+    /**
+     * Creates the source of a plain or gzip compressed file.
+     * @param file file
+     * @return source
+     */
+    public static SourceInput forFile(File file) {
+        String fileName = file.getName();
+        if (isGzip(file)) {
+            return new SourceInput(file, fileName.substring(0, fileName.lastIndexOf('.')), null, true, file.length());
+        }
+        return new SourceInput(file, fileName, null, false, file.length());
+    }
+
+    /**
+     * Creates the sources of the file entries of a zip archive, in the order they are stored.
+     * @param file zip archive
+     * @return sources
+     * @throws IOException on error reading the archive's directory
+     */
+    public static List<SourceInput> forZip(File file) throws IOException {
+        List<SourceInput> sources = new ArrayList<SourceInput>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    String entryName = entry.getName();
+                    String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+                    sources.add(new SourceInput(file, name, entryName, false, entry.getCompressedSize()));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return sources;
+    }
+
+    public static boolean isGzip(File file) {
+        String fileName = file.getName().toLowerCase();
+        return fileName.endsWith(".gz") || fileName.endsWith(".gzip");
+    }
+
+    public static boolean isZip(File file) {
+        return file.getName().toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Opens the source for reading. Compressed sources are decompressed on a separate thread, which reads ahead of
+     * the caller, so decompression overlaps with parsing and inserting records.
+     *
+     * @return input stream of the source's uncompressed content
+     * @throws IOException on error opening the source
+     */
+    public InputStream open() throws IOException {
+        if (gzip) {
+            InputStream in = new FileInputStream(file);
+            try {
+                return new ReadAheadInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE,
+                        "gunzip-" + name);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        } else if (entryName != null) {
+            final ZipFile zip = new ZipFile(file);
+            try {
+                ZipEntry entry = zip.getEntry(entryName);
+                if (entry == null) {
+                    throw new IOException("Entry " + entryName + " not found in " + file.getName());
+                }
+                // Closing the entry's stream closes the archive
+                InputStream in = new FilterInputStream(zip.getInputStream(entry)) {
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            zip.close();
+                        }
+                    }
+                };
+                return new ReadAheadInputStream(in, BUFFER_SIZE, "unzip-" + name);
+            } catch (IOException e) {
+                zip.close();
+                throw e;
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Determines whether the source is compressed, in which case it can only be read as a stream.
+     * @return true, if compressed; otherwise, false
+     */
+    public boolean isCompressed() {
+        return gzip || entryName != null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /**
+     * Gets the number of bytes read from disk to load the source, which for compressed sources is their compressed
+     * size.
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public String toString() {
+        return entryName != null ? file.getName() + ":" + entryName : file.getName();
+    }
+}
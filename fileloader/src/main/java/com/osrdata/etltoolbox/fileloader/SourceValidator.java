@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+
+/**
+ * This class validates a source against the target table of its specification without loading it. The source is read
+ * as a load would read it, but nothing is written: the target table's columns are looked up in its JDBC metadata, and
+ * every value of a mapped or derived column is checked against its column's definition by a {@link ColumnProfile},
+ * which also gathers the column's statistics. Records whose number of columns differs from the specification's target
+ * columns are reported as well, so a source that would fail to load is found before a long transaction is started.
+ * Records the specification's filter skips are counted but not checked.
+ * <p/>
+ * Sources with several layouts are validated against the target table of each layout. Targets of file sinks have no
+ * table, so their values are only profiled and checked against their types.
+ */
+public class SourceValidator {
+    private static final Logger log = LogManager.getLogger(SourceValidator.class);
+    private static final int MAX_LOGGED = 10;
+
+    private final FileSpecification spec;
+    private final List<Map<String, Object>> profiles = new ArrayList<Map<String, Object>>();
+
+    public SourceValidator(FileSpecification spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Validates a file. Each entry of a zip archive that matches the specification's sourcePattern is validated as a
+     * separate source.
+     *
+     * @param sourceFile file to validate
+     * @return true, if every source in the file is valid; otherwise, false
+     * @throws IOException on error reading file
+     */
+    public boolean validate(File sourceFile) throws IOException {
+        if (SourceInput.isZip(sourceFile)) {
+            boolean valid = true;
+            for (SourceInput source : SourceInput.forZip(sourceFile)) {
+                if (spec.getSourcePattern().matcher(source.getName()).matches()) {
+                    valid &= validate(source);
+                }
+            }
+            return valid;
+        }
+        return validate(SourceInput.forFile(sourceFile));
+    }
+
+    /**
+     * Validates a source, logging the statistics of each mapped column and the first records that would fail to load.
+     *
+     * @param source source to validate
+     * @return true, if the target tables and columns exist and every record is valid; otherwise, false
+     * @throws IOException on error reading source
+     */
+    public boolean validate(SourceInput source) throws IOException {
+        List<FileSpecification> targets = spec.getLayouts() != null ? spec.getLayouts()
+                : Collections.singletonList(spec);
+        ColumnProfile[][] columns = new ColumnProfile[targets.size()][];
+        boolean[] described = new boolean[targets.size()];
+        long[] numRecords = new long[targets.size()];
+        long[] numViolations = new long[targets.size()];
+        long[] numFiltered = new long[targets.size()];
+        Matcher matcher = spec.getSourcePattern().matcher(source.getName());
+        String[] groups = spec.getGroups(source, matcher.find() ? matcher : null);
+        List<Map<Integer, Long>> columnCounts = new ArrayList<Map<Integer, Long>>();
+        for (int i = 0; i < targets.size(); i++) {
+            FileSpecification target = targets.get(i);
+            List<String> insertColumns = target.getInsertColumns();
+            ColumnConverter[] converters = target.getConverters();
+            columns[i] = new ColumnProfile[converters.length];
+            for (int c = 0; c < converters.length; c++) {
+                columns[i][c] = new ColumnProfile(insertColumns.get(c), converters[c]);
+            }
+            described[i] = describe(target, columns[i]);
+            columnCounts.add(new TreeMap<Integer, Long>());
+        }
+
+        log.info("Validating source file " + source);
+        long startTime = System.currentTimeMillis();
+        long recordNumber = 0l;
+        long logged = 0l;
+        RecordReader reader = spec.openReader(source);
+        try {
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                recordNumber++;
+                int layout = reader instanceof FixedWidthReader ? ((FixedWidthReader) reader).getLayout() : 0;
+                FileSpecification target = targets.get(layout);
+                numRecords[layout]++;
+                List<String> reasons = null;
+                try {
+                    if (target.getFilter() != null && !target.getFilter().test(values, groups)) {
+                        numFiltered[layout]++;
+                        continue;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // The record would be rejected before any of its values are converted
+                    reasons = new ArrayList<String>();
+                    reasons.add(e.getMessage());
+                }
+                if (reasons == null) {
+                    reasons = profile(target, columns[layout], columnCounts.get(layout), values, groups);
+                }
+                if (reasons != null) {
+                    numViolations[layout]++;
+                    if (logged++ < MAX_LOGGED) {
+                        log.warn("\tRecord " + recordNumber + " of " + source.getName() + ": " + reasons);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        boolean valid = true;
+        for (int i = 0; i < targets.size(); i++) {
+            FileSpecification target = targets.get(i);
+            boolean targetValid = described[i] && numViolations[i] == 0l;
+            valid &= targetValid;
+            String message = "\tValidated " + LoadContext.getCount(numRecords[i]) + " records of " + source.getName()
+                    + " against " + target.getTargetTable() + ": " + LoadContext.getCount(numViolations[i])
+                    + " would fail to load";
+            if (targetValid) {
+                log.info(message);
+            } else {
+                log.error(message);
+            }
+            if (numFiltered[i] > 0l) {
+                log.info("\t\t" + LoadContext.getCount(numFiltered[i]) + " records would be filtered");
+            }
+            for (Map.Entry<Integer, Long> entry : columnCounts.get(i).entrySet()) {
+                log.warn("\t\t" + LoadContext.getCount(entry.getValue()) + " records have " + entry.getKey()
+                        + " columns");
+            }
+            for (ColumnProfile column : columns[i]) {
+                log.info("\t\t" + column.getSummary());
+            }
+
+            Map<String, Object> profile = new LinkedHashMap<String, Object>();
+            profile.put("source", source.getName());
+            profile.put("targetTable", target.getTargetTable());
+            profile.put("valid", targetValid);
+            profile.put("records", numRecords[i]);
+            profile.put("invalidRecords", numViolations[i]);
+            profile.put("filteredRecords", numFiltered[i]);
+            profile.put("columnCounts", columnCounts.get(i));
+            List<Map<String, Object>> columnProfiles = new ArrayList<Map<String, Object>>();
+            for (ColumnProfile column : columns[i]) {
+                columnProfiles.add(column.toMap());
+            }
+            profile.put("columns", columnProfiles);
+            profiles.add(profile);
+        }
+        log.info("\tCompleted validation of " + LoadContext.getCount(recordNumber) + " records in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return valid;
+    }
+
+    /**
+     * Gets the profile of each target of the sources validated, in the layout of the JSON profile.
+     * @return profiles
+     */
+    public List<Map<String, Object>> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Adds the values of a record to the profiles of a target's columns, evaluating its derived columns. A derived
+     * column that cannot be evaluated fails the record as a value that cannot be converted does.
+     *
+     * @return reasons the record would fail to load, or null if it would load
+     */
+    private List<String> profile(FileSpecification target, ColumnProfile[] profiles, Map<Integer, Long> counts,
+                                 String[] values, String[] groups) {
+        List<String> reasons = null;
+        int expected = target.getTargetColumns().size();
+        if (values.length != expected) {
+            Long count = counts.get(values.length);
+            counts.put(values.length, count == null ? 1l : count + 1l);
+            reasons = new ArrayList<String>();
+            reasons.add("Record has " + values.length + " columns, " + expected + " expected");
+        }
+        int[] sourceIndexes = target.getSourceIndexes();
+        Expression[] expressions = target.getExpressions();
+        for (int c = 0; c < profiles.length; c++) {
+            int i = sourceIndexes[c];
+            String reason;
+            if (i < 0) {
+                try {
+                    reason = profiles[c].add(expressions[c].eval(values, groups));
+                } catch (IllegalArgumentException e) {
+                    reason = e.getMessage();
+                }
+            } else {
+                reason = profiles[c].add(i < values.length ? values[i] : null);
+            }
+            if (reason != null) {
+                if (reasons == null) {
+                    reasons = new ArrayList<String>();
+                }
+                reasons.add(reason);
+            }
+        }
+        return reasons;
+    }
+
+    /**
+     * Looks up the columns of a target table in its JDBC metadata, setting the definition of each column's profile.
+     * The table is looked up by its name as given and then in upper and lower case, since databases differ in the
+     * case of unquoted names.
+     *
+     * @return true, if the table and all of its insert columns exist; otherwise, false
+     */
+    private boolean describe(final FileSpecification target, final ColumnProfile[] profiles) {
+        if (target.isFileSink()) {
+            return true;
+        }
+        return target.getTargetTemplate().execute(new ConnectionCallback<Boolean>() {
+            public Boolean doInConnection(Connection connection) throws SQLException {
+                DatabaseMetaData metaData = connection.getMetaData();
+                Map<String, ColumnProfile> byName = new HashMap<String, ColumnProfile>();
+                for (ColumnProfile profile : profiles) {
+                    byName.put(profile.getName().toLowerCase(), profile);
+                }
+                String table = target.getTargetTable();
+                String schema = null;
+                int dot = table.lastIndexOf('.');
+                if (dot >= 0) {
+                    schema = table.substring(0, dot);
+                    table = table.substring(dot + 1);
+                }
+                String escape = metaData.getSearchStringEscape();
+                Set<String> found = new HashSet<String>();
+                for (int i = 0; i < 3 && found.isEmpty(); i++) {
+                    String schemaName = schema == null ? null : i == 1 ? schema.toUpperCase()
+                            : i == 2 ? schema.toLowerCase() : schema;
+                    String tableName = i == 1 ? table.toUpperCase() : i == 2 ? table.toLowerCase() : table;
+                    if (escape != null) {
+                        tableName = tableName.replace("_", escape + "_").replace("%", escape + "%");
+                    }
+                    ResultSet rs = metaData.getColumns(null, schemaName, tableName, null);
+                    try {
+                        while (rs.next()) {
+                            String column = rs.getString("COLUMN_NAME").toLowerCase();
+                            found.add(column);
+                            ColumnProfile profile = byName.get(column);
+                            if (profile != null) {
+                                profile.setDefinition(rs.getString("TYPE_NAME"), rs.getInt("DATA_TYPE"),
+                                        rs.getInt("COLUMN_SIZE"), rs.getInt("DECIMAL_DIGITS"), rs.getInt("NULLABLE"));
+                            }
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                }
+                if (found.isEmpty()) {
+                    log.error("\tTarget table " + target.getTargetTable() + " was not found");
+                    return false;
+                }
+                boolean valid = true;
+                for (String column : target.getInsertColumns()) {
+                    if (!found.contains(column.toLowerCase())) {
+                        log.error("\tColumn " + column + " was not found in " + target.getTargetTable());
+                        valid = false;
+                    }
+                }
+                return valid;
+            }
+        });
+    }
+}
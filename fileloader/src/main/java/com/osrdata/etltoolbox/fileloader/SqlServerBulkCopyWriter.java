@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkRecord;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+import com.microsoft.sqlserver.jdbc.SQLServerException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes records using the bulk copy API of Microsoft's SQL Server JDBC driver. If the connection is not a Microsoft
+ * driver connection, for example when the jTDS driver is used, the records are written with the fallback writer
+ * instead.
+ */
+public class SqlServerBulkCopyWriter implements BulkWriter {
+    private final String table;
+    private final List<String> columns;
+    private final BulkWriter fallback;
+
+    /**
+     * @param table target table
+     * @param columns insert columns
+     * @param fallback writer used when the connection does not support bulk copy
+     */
+    public SqlServerBulkCopyWriter(String table, List<String> columns, BulkWriter fallback) {
+        this.table = table;
+        this.columns = columns;
+        this.fallback = fallback;
+    }
+
+    public void write(JdbcTemplate template, final RecordBuffer records) {
+        boolean copied = template.execute(new ConnectionCallback<Boolean>() {
+            public Boolean doInConnection(Connection connection) throws SQLException, DataAccessException {
+                if (!connection.isWrapperFor(SQLServerConnection.class)) {
+                    return false;
+                }
+                SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(connection.unwrap(SQLServerConnection.class));
+                try {
+                    SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+                    options.setBatchSize(records.size());
+                    options.setKeepNulls(true);
+                    bulkCopy.setBulkCopyOptions(options);
+                    bulkCopy.setDestinationTableName(table);
+                    for (int i = 0; i < columns.size(); i++) {
+                        bulkCopy.addColumnMapping(i + 1, columns.get(i));
+                    }
+                    bulkCopy.writeToServer(new RecordList(records));
+                } finally {
+                    bulkCopy.close();
+                }
+                return true;
+            }
+        });
+        if (!copied) {
+            fallback.write(template, records);
+        }
+    }
+
+    public void close() {
+        fallback.close();
+    }
+
+    /**
+     * Exposes a buffer of records to the bulk copy API, describing each column by the type of its values.
+     */
+    private class RecordList implements ISQLServerBulkRecord {
+        private final RecordBuffer records;
+        private final Object[] row;
+        private final int[] types;
+        private final int[] precisions;
+        private final int[] scales;
+        private int index = -1;
+
+        private RecordList(RecordBuffer records) {
+            this.records = records;
+            int numColumns = columns.size();
+            row = new Object[numColumns];
+            types = new int[numColumns];
+            precisions = new int[numColumns];
+            scales = new int[numColumns];
+            for (int i = 0; i < numColumns; i++) {
+                types[i] = Types.NVARCHAR;
+                precisions[i] = 1;
+            }
+            for (int r = 0; r < records.size(); r++) {
+                for (int i = 0; i < numColumns; i++) {
+                    describe(i, records.getValue(i, r));
+                }
+            }
+        }
+
+        private void describe(int column, Object value) {
+            if (value == null) {
+                return;
+            }
+            if (value instanceof String) {
+                types[column] = Types.NVARCHAR;
+                precisions[column] = Math.max(precisions[column], ((String) value).length());
+            } else if (value instanceof Integer) {
+                types[column] = Types.INTEGER;
+                precisions[column] = 10;
+            } else if (value instanceof Long) {
+                types[column] = Types.BIGINT;
+                precisions[column] = 19;
+            } else if (value instanceof BigDecimal) {
+                types[column] = Types.DECIMAL;
+                precisions[column] = 38;
+                scales[column] = Math.max(scales[column], ((BigDecimal) value).scale());
+            } else if (value instanceof Boolean) {
+                types[column] = Types.BIT;
+                precisions[column] = 1;
+            } else if (value instanceof java.sql.Timestamp) {
+                types[column] = Types.TIMESTAMP;
+                precisions[column] = 27;
+                scales[column] = 7;
+            } else if (value instanceof java.sql.Date) {
+                types[column] = Types.DATE;
+                precisions[column] = 10;
+            } else {
+                types[column] = Types.NVARCHAR;
+                precisions[column] = Math.max(precisions[column], value.toString().length());
+            }
+        }
+
+        public Set<Integer> getColumnOrdinals() {
+            Set<Integer> ordinals = new LinkedHashSet<Integer>();
+            for (int i = 1; i <= columns.size(); i++) {
+                ordinals.add(i);
+            }
+            return ordinals;
+        }
+
+        public String getColumnName(int column) {
+            return columns.get(column - 1);
+        }
+
+        public int getColumnType(int column) {
+            return types[column - 1];
+        }
+
+        public int getPrecision(int column) {
+            return precisions[column - 1];
+        }
+
+        public int getScale(int column) {
+            return scales[column - 1];
+        }
+
+        public boolean isAutoIncrement(int column) {
+            return false;
+        }
+
+        public Object[] getRowData() throws SQLServerException {
+            // The driver consumes the row before calling next, so one array serves every row.
+            for (int i = 0; i < row.length; i++) {
+                row[i] = records.getValue(i, index);
+            }
+            return row;
+        }
+
+        public boolean next() throws SQLServerException {
+            return ++index < records.size();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads a file into an embedded H2 database, which has no native bulk load path, to verify that records are written
+ * with batch inserts.
+ */
+public class BatchInsertWriterTest {
+    private static final String TARGET_TABLE = "src_test";
+    private static final int ROWS = 2500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate template;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:batchinsert;DB_CLOSE_DELAY=-1", "sa", "", true);
+        template = new JdbcTemplate(dataSource);
+        template.execute("create table audit_file (file_id bigint auto_increment primary key, "
+                + "source_id bigint not null, file_name varchar(50) not null, table_name varchar(50) not null, "
+                + "etl_type char(1) not null, etl_date timestamp not null, processed_flag char(1) not null)");
+        template.execute("create table " + TARGET_TABLE + " (test_id varchar(50), test_value varchar(50), "
+                + "source_id bigint, file_id bigint, record_id numeric(28,0))");
+
+        file = folder.newFile("TEST_01042015_Update.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write("test_id,test_value\n");
+            for (int i = 1; i <= ROWS; i++) {
+                writer.write(i + ",\"value " + i + "\"\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        template.execute("drop all objects");
+        dataSource.destroy();
+    }
+
+    @Test
+    public void autoResolvesToBatchInsertsOnH2() throws Exception {
+        FileSpecification spec = newSpecification("auto");
+        LoadContext context = newLoadContext(spec);
+        try {
+            assertTrue(spec.newBulkWriter(context) instanceof BatchInsertWriter);
+        } finally {
+            context.close();
+        }
+
+        assertTrue(spec.load(file));
+        assertLoaded();
+    }
+
+    @Test
+    public void copyFallsBackToBatchInsertsWithoutPostgres() throws Exception {
+        FileSpecification spec = newSpecification("copy");
+        LoadContext context = newLoadContext(spec);
+        try {
+            assertTrue(spec.newBulkWriter(context) instanceof PostgresCopyWriter);
+        } finally {
+            context.close();
+        }
+
+        assertTrue(spec.load(file));
+        assertLoaded();
+    }
+
+    private FileSpecification newSpecification(String bulkWriter) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("sourcePattern", "TEST_(\\d{8})_(\\w+)\\.txt");
+        map.put("dateGroup", 1);
+        map.put("dateFormat", "MMddyyyy");
+        map.put("typeGroup", 2);
+        map.put("sourceId", 1);
+        map.put("targetTable", TARGET_TABLE);
+        map.put("targetColumns", Arrays.asList("test_id", "test_value"));
+        map.put("parserLine", 1);
+        map.put("bulkWriter", bulkWriter);
+        // A threshold below the number of rows writes several batches through the same prepared statement
+        return new FileSpecification(map, dataSource, new AuditCache(dataSource), dataSource, 1000, false, false, 0l,
+                null, null, DatabaseType.forUrl(dataSource.getUrl()));
+    }
+
+    private LoadContext newLoadContext(FileSpecification spec) throws Exception {
+        SourceInput source = SourceInput.forFile(file);
+        Matcher matcher = spec.getSourcePattern().matcher(file.getName());
+        assertTrue(matcher.matches());
+        return spec.newLoadContext(source, matcher);
+    }
+
+    private void assertLoaded() {
+        assertEquals(ROWS, (int) template.queryForObject("select count(*) from " + TARGET_TABLE, Integer.class));
+        assertEquals(ROWS, (int) template.queryForObject("select count(distinct record_id) from " + TARGET_TABLE
+                + " where source_id = 1 and file_id is not null", Integer.class));
+        assertEquals("value " + ROWS, template.queryForObject("select test_value from " + TARGET_TABLE
+                + " where test_id = '" + ROWS + "'", String.class));
+    }
+}
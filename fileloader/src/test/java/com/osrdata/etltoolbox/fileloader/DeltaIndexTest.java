@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the delta index against a map of the keys it should hold, around clusters of keys that wrap from the end of
+ * the table to its start, across a rollback of a load that grew the table, and when reopened after a load that did not
+ * complete.
+ */
+public class DeltaIndexTest {
+    private static final long CAPACITY = 1l << 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "delta/src_test.idx");
+    }
+
+    @After
+    public void tearDown() {
+        DeltaIndex.closeAll();
+    }
+
+    @Test
+    public void findsKeysAfterRemovingFromWrappedClusters() throws Exception {
+        DeltaIndex index = DeltaIndex.open(file);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(1l);
+        for (int i = 0; i < 20000; i++) {
+            // Keys whose home slots are the last and first few of the table form clusters that wrap around its end
+            long home = (CAPACITY - 3l + random.nextInt(6)) & (CAPACITY - 1l);
+            long key = (1l + random.nextInt(64)) << 16 | home;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, index.remove(key));
+            } else {
+                long record = random.nextInt(4);
+                Long previous = expected.put(key, record);
+                assertEquals(previous == null || previous != record, index.put(key, record));
+            }
+            assertEquals(expected.size(), index.size());
+            if (i % 1000 == 0) {
+                assertContains(index, expected);
+            }
+        }
+        assertContains(index, expected);
+    }
+
+    @Test
+    public void rollsBackLoadThatGrewIndex() throws Exception {
+        DeltaIndex index = DeltaIndex.open(file);
+        index.begin();
+        Map<Long, Long> expected = load(index, 0l, 1000);
+        index.commit();
+
+        index.begin();
+        changeAndRemove(index);
+        // More keys than three quarters of the initial capacity, so the index is rehashed into a larger file
+        load(index, 1000000l, (int) CAPACITY);
+        assertTrue(index.size() > CAPACITY);
+        index.rollback();
+
+        assertEquals(expected.size(), index.size());
+        assertContains(index, expected);
+        assertFalse(index.remove(1000000l));
+        assertEquals(expected.size(), index.size());
+
+        DeltaIndex.closeAll();
+        index = DeltaIndex.open(file);
+        assertEquals(expected.size(), index.size());
+        assertContains(index, expected);
+    }
+
+    @Test
+    public void undoesLoadThatDidNotComplete() throws Exception {
+        DeltaIndex index = DeltaIndex.open(file);
+        index.begin();
+        Map<Long, Long> expected = load(index, 0l, 1000);
+        index.commit();
+
+        index.begin();
+        changeAndRemove(index);
+        load(index, 1000000l, 500);
+        // Closing without a commit or rollback leaves the undo file as a process that stopped during a load would
+        DeltaIndex.closeAll();
+        File undoFile = new File(file.getPath() + ".undo");
+        assertTrue(undoFile.exists());
+
+        index = DeltaIndex.open(file);
+        assertFalse(undoFile.exists());
+        assertEquals(expected.size(), index.size());
+        assertContains(index, expected);
+        assertFalse(index.remove(1000000l));
+    }
+
+    /**
+     * Puts sequential keys, returning the keys and records put.
+     */
+    private Map<Long, Long> load(DeltaIndex index, long firstKey, int numKeys) throws Exception {
+        Map<Long, Long> keys = new HashMap<Long, Long>();
+        for (long key = firstKey + 1l; key <= firstKey + numKeys; key++) {
+            assertTrue(index.put(key * 7919l, key));
+            keys.put(key * 7919l, key);
+        }
+        return keys;
+    }
+
+    /**
+     * Changes the records of the first hundred keys put by {@link #load} and removes the next hundred.
+     */
+    private void changeAndRemove(DeltaIndex index) throws Exception {
+        for (long key = 1l; key <= 100l; key++) {
+            assertTrue(index.put(key * 7919l, -1l));
+            assertTrue(index.remove((key + 100l) * 7919l));
+        }
+    }
+
+    /**
+     * Asserts that every key is found with its record, putting each with its current record, which changes nothing.
+     */
+    private void assertContains(DeltaIndex index, Map<Long, Long> expected) throws Exception {
+        List<Long> missing = new ArrayList<Long>();
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            if (index.put(entry.getKey(), entry.getValue())) {
+                missing.add(entry.getKey());
+            }
+        }
+        assertEquals("keys not found or with a different record", new ArrayList<Long>(), missing);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Evaluates expressions against records, comparing numbers against their exact values.
+ */
+public class ExpressionTest {
+    private static final List<String> COLUMNS = Arrays.asList("a", "b");
+    private static final String[] OPERATORS = {"=", "!=", "<", "<=", ">", ">="};
+
+    @Test
+    public void comparesLongNumbersExactly() {
+        assertComparison("12345678901234567", "12345678901234568", -1);
+        assertComparison("9007199254740993", "9007199254740992", 1);
+        assertComparison("-12345678901234567", "-12345678901234568", 1);
+        assertComparison("0.10000000000000000001", "0.1", 1);
+    }
+
+    @Test
+    public void comparesEqualNumbersWrittenDifferently() {
+        assertComparison("007", "7", 0);
+        assertComparison("7.50", "+7.5", 0);
+        assertComparison("-0", "0.000", 0);
+        assertComparison(".5", "0.5", 0);
+        assertComparison("-.5", "-0.50", 0);
+        assertComparison("10", "9.99", 1);
+        assertComparison("-10", "-9.99", -1);
+        assertComparison("-1", "0", -1);
+    }
+
+    @Test
+    public void comparesRandomNumbersAsBigDecimal() {
+        Random random = new Random(17);
+        for (int i = 0; i < 10000; i++) {
+            String a = randomNumber(random);
+            String b = random.nextInt(4) == 0 ? a : randomNumber(random);
+            assertComparison(a, b, Integer.signum(new BigDecimal(a).compareTo(new BigDecimal(b))));
+        }
+    }
+
+    @Test
+    public void comparesOtherValuesAsStrings() {
+        assertComparison("10", "9a", -1);
+        assertComparison("abc", "abd", -1);
+        assertComparison("", "0", -1);
+    }
+
+    @Test
+    public void evaluatesFunctions() {
+        String[] values = {" Abc-123 ", "", "7"};
+        String[] groups = {"FEED_20150104.txt", "20150104"};
+        List<String> columns = Arrays.asList("a", "b", "c");
+        assertEval("Abc", "substr(trim(a), 1, 3)", values, groups, columns);
+        assertEval("23 ", "substr(a, c)", values, groups, columns);
+        assertEval("Abc-123 ", "ltrim(a)", values, groups, columns);
+        assertEval(" Abc-123", "rtrim(a)", values, groups, columns);
+        assertEval(" ABC-123 ", "upper(a)", values, groups, columns);
+        assertEval(" abc-123 ", "lower(a)", values, groups, columns);
+        assertEval("9", "length(a)", values, groups, columns);
+        assertEval("x7y", "concat('x', c, 'y')", values, groups, columns);
+        assertEval("7", "coalesce(b, c)", values, groups, columns);
+        assertEval(" Abc+123 ", "replace(a, '-', '+')", values, groups, columns);
+        assertEval("empty", "if(b = '', 'empty', 'set')", values, groups, columns);
+        assertEval("true", "starts(file(), 'FEED_') and ends(file(), '.txt')", values, groups, columns);
+        assertEval("true", "contains(a, 'c-1') and matches(trim(a), '[A-Za-z]+-\\d+')", values, groups, columns);
+        assertEval("false", "not matches(group(1), '\\d{8}')", values, groups, columns);
+        assertEval("true", "$3 >= 7 or $1 = ''", values, groups, columns);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFunctions() {
+        Expression.compile("pad($1)", COLUMNS);
+    }
+
+    private static void assertEval(String expected, String text, String[] values, String[] groups,
+                                   List<String> columns) {
+        Expression expression = Expression.compile(text, columns);
+        assertEquals(text, expected, expression.eval(values, groups));
+        assertEquals(text, !expected.isEmpty() && !expected.equals("false"), expression.test(values, groups));
+    }
+
+    /**
+     * Asserts the result of every comparison operator, with the values read from columns and as constants.
+     */
+    private static void assertComparison(String a, String b, int expected) {
+        boolean[] results = {expected == 0, expected != 0, expected < 0, expected <= 0, expected > 0, expected >= 0};
+        for (int i = 0; i < OPERATORS.length; i++) {
+            Expression columns = Expression.compile("a " + OPERATORS[i] + " b", COLUMNS);
+            assertEquals(a + " " + OPERATORS[i] + " " + b, results[i], columns.test(new String[]{a, b}, null));
+            Expression constants = Expression.compile("'" + a + "' " + OPERATORS[i] + " '" + b + "'",
+                    Collections.<String>emptyList());
+            assertEquals(a + " " + OPERATORS[i] + " " + b, results[i], constants.test(new String[0], null));
+        }
+    }
+
+    private static String randomNumber(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int sign = random.nextInt(3);
+        sb.append(sign == 0 ? "-" : sign == 1 ? "+" : "");
+        int digits = random.nextInt(22);
+        for (int i = 0; i < digits; i++) {
+            sb.append((char) ('0' + (i == 0 ? random.nextInt(3) : random.nextInt(10))));
+        }
+        if (digits == 0 || random.nextBoolean()) {
+            sb.append('.');
+            int fraction = 1 + random.nextInt(6);
+            for (int i = 0; i < fraction; i++) {
+                sb.append((char) ('0' + (random.nextBoolean() ? 0 : random.nextInt(10))));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import au.com.bytecode.opencsv.CSVReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads generated files with both opencsv's CSVReader and the memory-mapped reader, which must tokenize them the same
+ * way for every combination of parser options, whether the file fits in one mapping window or is read through windows
+ * smaller than a few records.
+ */
+public class MappedDelimitedReaderTest {
+    private static final int RECORDS = 2000;
+    private static final char SEPARATOR = ',';
+    private static final char QUOTECHAR = '"';
+    private static final char ESCAPE = '\\';
+    private static final String PLAIN = "ab1 \u00e9";
+    private static final String SPECIAL = "ab ,\"\\\n";
+    private static final boolean[] ALL_MAPPED = new boolean[64];
+
+    static {
+        Arrays.fill(ALL_MAPPED, true);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsQuotedFieldsAsOpencsv() throws Exception {
+        assertSameRecords(generate(new Random(1l), "\n", false));
+    }
+
+    @Test
+    public void readsCarriageReturnLineEndingsAsOpencsv() throws Exception {
+        assertSameRecords(generate(new Random(2l), "\r\n", false));
+    }
+
+    @Test
+    public void readsMalformedQuotesAsOpencsv() throws Exception {
+        // Stray quotes and escapes toggle the field state that opencsv carries over from one record to the next
+        assertSameRecords(generate(new Random(3l), "\n", true));
+    }
+
+    @Test
+    public void skipsLinesAsOpencsv() throws Exception {
+        File file = generate(new Random(4l), "\n", false);
+        for (boolean strictQuotes : new boolean[] {false, true}) {
+            List<String[]> expected = readOpencsv(file, 3, strictQuotes, false);
+            assertRecords("strictQuotes=" + strictQuotes, expected, readMapped(file, 3, strictQuotes, false,
+                    MappedDelimitedReader.DEFAULT_WINDOW_SIZE));
+        }
+    }
+
+    @Test
+    public void seeksWithFieldState() throws Exception {
+        File file = generate(new Random(5l), "\n", true);
+        for (boolean strictQuotes : new boolean[] {false, true}) {
+            List<String[]> expected = readOpencsv(file, 0, strictQuotes, false);
+            List<Long> positions = new ArrayList<Long>();
+            List<Boolean> inFields = new ArrayList<Boolean>();
+            MappedDelimitedReader reader = newReader(file, 0, strictQuotes, false,
+                    MappedDelimitedReader.DEFAULT_WINDOW_SIZE);
+            try {
+                while (reader.readNext() != null) {
+                    positions.add(reader.getPosition());
+                    inFields.add(reader.isInField());
+                }
+            } finally {
+                reader.close();
+            }
+
+            for (int i = 0; i < positions.size(); i += 97) {
+                reader = newReader(file, 0, strictQuotes, false, MappedDelimitedReader.DEFAULT_WINDOW_SIZE);
+                try {
+                    reader.seek(positions.get(i), inFields.get(i));
+                    String[] values;
+                    int j = i + 1;
+                    while ((values = reader.readNext()) != null) {
+                        assertArrayEquals("record " + (j + 1), expected.get(j++), values);
+                    }
+                    assertEquals(expected.size(), j);
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsRecordLargerThanWindow() throws Exception {
+        File file = folder.newFile("large.csv");
+        write(file, "a,b\n\"" + new String(new char[100]).replace('\0', 'x') + "\",c\n");
+        MappedDelimitedReader reader = newReader(file, 0, false, false, 32);
+        try {
+            assertArrayEquals(new String[] {"a", "b"}, reader.readNext());
+            try {
+                reader.readNext();
+                throw new AssertionError("record larger than window was read");
+            } catch (IOException e) {
+                assertEquals("Record at offset 4 is larger than mapping window of 32 bytes", e.getMessage());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertSameRecords(File file) throws Exception {
+        int windowSize = getMaxRecordSize(file) + 2;
+        for (boolean strictQuotes : new boolean[] {false, true}) {
+            for (boolean ignoreLeadingWhiteSpace : new boolean[] {false, true}) {
+                List<String[]> expected = readOpencsv(file, 0, strictQuotes, ignoreLeadingWhiteSpace);
+                String options = "strictQuotes=" + strictQuotes + ", ignoreLeadingWhiteSpace="
+                        + ignoreLeadingWhiteSpace;
+                assertRecords(options, expected, readMapped(file, 0, strictQuotes, ignoreLeadingWhiteSpace,
+                        MappedDelimitedReader.DEFAULT_WINDOW_SIZE));
+                assertRecords(options + ", windowSize=" + windowSize, expected, readMapped(file, 0, strictQuotes,
+                        ignoreLeadingWhiteSpace, windowSize));
+            }
+        }
+    }
+
+    private void assertRecords(String options, List<String[]> expected, List<String[]> actual) {
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            assertArrayEquals(options + ", record " + (i + 1), expected.get(i), actual.get(i));
+        }
+        assertEquals(options, expected.size(), actual.size());
+    }
+
+    /**
+     * Generates a file of records whose fields are plain, quoted or, if malformed, random runs of special characters.
+     */
+    private File generate(Random random, String lineEnding, boolean malformed) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < RECORDS; r++) {
+            int numFields = 1 + random.nextInt(6);
+            for (int f = 0; f < numFields; f++) {
+                if (f > 0) {
+                    sb.append(SEPARATOR);
+                }
+                int kind = random.nextInt(malformed ? 6 : 5);
+                if (kind == 0) {
+                    // Empty field, quoted or not
+                    sb.append(random.nextBoolean() ? "" : "\"\"");
+                } else if (kind <= 2) {
+                    if (random.nextInt(4) == 0) {
+                        sb.append("  ");
+                    }
+                    append(sb, random, PLAIN, 8);
+                } else if (kind <= 4) {
+                    if (random.nextInt(4) == 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(QUOTECHAR);
+                    for (int i = random.nextInt(10); i > 0; i--) {
+                        int c = random.nextInt(8);
+                        if (c == 0) {
+                            sb.append("\"\"");
+                        } else if (c == 1) {
+                            sb.append(ESCAPE).append(random.nextBoolean() ? QUOTECHAR : ESCAPE);
+                        } else if (c == 2) {
+                            sb.append(random.nextBoolean() ? SEPARATOR : '\n');
+                        } else {
+                            sb.append(PLAIN.charAt(random.nextInt(PLAIN.length())));
+                        }
+                    }
+                    sb.append(QUOTECHAR);
+                } else {
+                    append(sb, random, SPECIAL, 6);
+                }
+            }
+            sb.append(lineEnding);
+        }
+        File file = folder.newFile();
+        write(file, sb.toString());
+        return file;
+    }
+
+    private void append(StringBuilder sb, Random random, String chars, int maxLength) {
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+    }
+
+    private void write(File file, String content) throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Gets the size in bytes of the largest record, so the test can use a window that is as small as possible.
+     */
+    private int getMaxRecordSize(File file) throws Exception {
+        MappedDelimitedReader reader = newReader(file, 0, false, false, MappedDelimitedReader.DEFAULT_WINDOW_SIZE);
+        try {
+            long max = 0l;
+            long start = 0l;
+            while (reader.readNext() != null) {
+                max = Math.max(max, reader.getPosition() - start);
+                start = reader.getPosition();
+            }
+            return (int) max;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private List<String[]> readOpencsv(File file, int skipLines, boolean strictQuotes,
+                                       boolean ignoreLeadingWhiteSpace) throws Exception {
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+                SEPARATOR, QUOTECHAR, ESCAPE, skipLines, strictQuotes, ignoreLeadingWhiteSpace);
+        try {
+            List<String[]> records = new ArrayList<String[]>();
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                records.add(values);
+            }
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private List<String[]> readMapped(File file, int skipLines, boolean strictQuotes, boolean ignoreLeadingWhiteSpace,
+                                      int windowSize) throws Exception {
+        MappedDelimitedReader reader = newReader(file, skipLines, strictQuotes, ignoreLeadingWhiteSpace, windowSize);
+        try {
+            List<String[]> records = new ArrayList<String[]>();
+            String[] values;
+            while ((values = reader.readNext()) != null) {
+                // The reader reuses its result array
+                records.add(values.clone());
+            }
+            assertNull(reader.readNext());
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private MappedDelimitedReader newReader(File file, int skipLines, boolean strictQuotes,
+                                            boolean ignoreLeadingWhiteSpace, int windowSize) throws Exception {
+        return new MappedDelimitedReader(file, StandardCharsets.UTF_8, ALL_MAPPED, SEPARATOR, QUOTECHAR, ESCAPE,
+                skipLines, strictQuotes, ignoreLeadingWhiteSpace, windowSize);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads a file of quoted, multi-line records into an embedded H2 database sequentially, with parserThreads and in
+ * partitions, each into its own table, and verifies that every load assigns the same record IDs to the same values.
+ */
+public class ParallelLoadTest {
+    private static final String URL = "jdbc:h2:mem:parallelload;DB_CLOSE_DELAY=-1";
+    private static final int ROWS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate template;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        // Partitions are loaded on connections of their own, so each request for a connection opens a new one
+        dataSource = new DriverManagerDataSource(URL, "sa", "");
+        template = new JdbcTemplate(dataSource);
+        template.execute("create table audit_file (file_id bigint auto_increment primary key, "
+                + "source_id bigint not null, file_name varchar(50) not null, table_name varchar(50) not null, "
+                + "etl_type char(1) not null, etl_date timestamp not null, processed_flag char(1) not null)");
+        for (String table : new String[] {"src_sequential", "src_threads", "src_partitions"}) {
+            template.execute("create table " + table + " (test_id varchar(50), test_value varchar(200), "
+                    + "source_id bigint, file_id bigint, record_id numeric(28,0))");
+        }
+
+        file = folder.newFile("TEST_01042015_Update.txt");
+        Random random = new Random(1l);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write("test_id,test_value\n");
+            for (int i = 1; i <= ROWS; i++) {
+                writer.write(i + ",\"value " + i);
+                for (int j = random.nextInt(4); j > 0; j--) {
+                    // Line breaks in quoted values must not be taken as record boundaries when splitting the file
+                    writer.write(random.nextBoolean() ? "\n" : random.nextBoolean() ? ", \"\"" : "\\\"");
+                    writer.write(Integer.toString(random.nextInt(1000)));
+                }
+                writer.write("\"\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        template.execute("drop all objects");
+    }
+
+    @Test
+    public void loadsSameRecordsInParallel() throws Exception {
+        assertTrue(newSpecification("src_sequential", null).load(file));
+        assertTrue(newSpecification("src_threads", "parserThreads").load(file));
+        assertTrue(newSpecification("src_partitions", "partitions").load(file));
+
+        List<Map<String, Object>> expected = selectRecords("src_sequential");
+        assertEquals(ROWS, expected.size());
+        assertEquals("value 1", expected.get(0).get("test_value").toString().substring(0, 7));
+        assertEquals(expected, selectRecords("src_threads"));
+        assertEquals(expected, selectRecords("src_partitions"));
+        assertEquals(3, (int) template.queryForObject("select count(*) from audit_file", Integer.class));
+    }
+
+    private FileSpecification newSpecification(String targetTable, String parallelism) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("sourcePattern", "TEST_(\\d{8})_(\\w+)\\.txt");
+        map.put("dateGroup", 1);
+        map.put("dateFormat", "MMddyyyy");
+        map.put("typeGroup", 2);
+        map.put("sourceId", 1);
+        map.put("targetTable", targetTable);
+        map.put("targetColumns", Arrays.asList("test_id", "test_value"));
+        map.put("parserLine", 1);
+        if (parallelism != null) {
+            map.put(parallelism, 4);
+        }
+        if ("parserThreads".equals(parallelism)) {
+            // Chunks smaller than the file hand records to the parsing threads in several batches
+            map.put("parserChunkSize", 100);
+        }
+        return new FileSpecification(map, dataSource, new AuditCache(dataSource), dataSource, 1000, false, false, 0l,
+                null, null, DatabaseType.forUrl(URL));
+    }
+
+    private List<Map<String, Object>> selectRecords(String table) {
+        return template.queryForList("select record_id, test_id, test_value from " + table + " order by record_id");
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the candidates the pattern index returns for a name include every pattern that matches the name, as
+ * found by matching the name against each pattern in turn.
+ */
+public class PatternIndexTest {
+    private static final List<Pattern> PATTERNS = Arrays.asList(
+            Pattern.compile("TEST_(\\d{8})_(\\w+)\\.txt"),
+            Pattern.compile("^TEST_(\\d{8})_(\\w+)\\.txt$"),
+            Pattern.compile("TEST_.*"),
+            Pattern.compile(".*\\.csv"),
+            Pattern.compile("ORDERS_\\d+\\.csv"),
+            Pattern.compile("ORDERS\\.\\d{4}\\.dat"),
+            Pattern.compile("a+b*c?\\.txt"),
+            Pattern.compile("ab{2,3}c\\.txt"),
+            Pattern.compile("DATA\\$\\d\\.txt\\$"),
+            Pattern.compile("back\\\\slash\\\\\\d\\.txt"),
+            Pattern.compile("\\QLITERAL.txt\\E"),
+            Pattern.compile("HEX_\\x41\\u0042\\0103\\.txt"),
+            Pattern.compile("CTRL_\\cA\\.txt"),
+            Pattern.compile("(A)\\1\\.txt"),
+            Pattern.compile("(?<p>B)\\k<p>\\.txt"),
+            Pattern.compile("CLASS_[\\].]\\.txt"),
+            Pattern.compile("CLASS_[a-z&&[^x]]+"),
+            Pattern.compile("NAMED_\\p{Alpha}+\\.txt"),
+            Pattern.compile("NAMED_\\p{L}X\\.txt"),
+            Pattern.compile("INVOICE|RECEIPT_\\d+\\.txt"),
+            Pattern.compile("(INVOICE|RECEIPT)_\\d+\\.txt"),
+            Pattern.compile("STATEMENT_(\\d+|NONE)"),
+            Pattern.compile("(?i)test_(\\d{8})_(\\w+)\\.TXT"),
+            Pattern.compile("mixed_(?i:case)\\.txt"),
+            Pattern.compile("upper_case\\.txt", Pattern.CASE_INSENSITIVE),
+            Pattern.compile("TEST_ # comment\n\\d+", Pattern.COMMENTS),
+            Pattern.compile("TEST_.txt", Pattern.LITERAL),
+            Pattern.compile("caf\u00e9\\.txt", Pattern.CANON_EQ));
+
+    private static final List<String> NAMES = Arrays.asList(
+            "TEST_01042015_Update.txt", "TEST_01042015_Update.TXT", "test_01042015_update.txt", "TEST_", "TEST_x",
+            "TEST_.txt", "TEST_123", "orders.csv", "ORDERS_42.csv", "ORDERS_.csv", "ORDERS.2015.dat", "ORDERS.15.dat",
+            "abc.txt", "a.txt", "c.txt", "aaab.txt", "abbc.txt", "abbbc.txt", "abc.txt", "DATA$1.txt$", "DATA$1.txt",
+            "back\\slash\\1.txt", "LITERAL.txt", "LITERALXtxt", "HEX_ABC.txt", "HEX_AB.txt", "CTRL_\u0001.txt",
+            "AA.txt", "BB.txt", "CLASS_].txt", "CLASS_..txt", "CLASS_abc", "CLASS_x", "NAMED_abc.txt", "NAMED_eX.txt",
+            "INVOICE", "RECEIPT_1.txt", "INVOICE_1.txt", "STATEMENT_12", "STATEMENT_NONE", "mixed_CASE.txt",
+            "MIXED_case.txt", "UPPER_CASE.TXT", "upper_case.txt", "TEST_99", "caf\u00e9.txt", "cafe\u0301.txt", "");
+
+    @Test
+    public void candidatesIncludeEveryMatch() {
+        PatternIndex<Pattern> index = new PatternIndex<Pattern>();
+        for (Pattern pattern : PATTERNS) {
+            index.add(pattern, pattern);
+        }
+        assertEquals(PATTERNS.size(), index.size());
+
+        int numCandidates = 0;
+        for (String name : NAMES) {
+            List<Pattern> candidates = index.candidates(name);
+            List<Pattern> matched = new ArrayList<Pattern>();
+            for (Pattern pattern : PATTERNS) {
+                if (pattern.matcher(name).matches()) {
+                    matched.add(pattern);
+                }
+            }
+            List<Pattern> missing = new ArrayList<Pattern>(matched);
+            missing.removeAll(candidates);
+            assertEquals("Patterns matching " + name + " that are not candidates", new ArrayList<Pattern>(), missing);
+            assertEquals("Candidates of " + name + " out of order", order(candidates), candidates);
+            numCandidates += candidates.size();
+        }
+        // The index only helps if names are tested against fewer patterns than all of them
+        assertTrue(numCandidates < NAMES.size() * PATTERNS.size() / 2);
+    }
+
+    @Test
+    public void extractsLiterals() {
+        assertEquals("TEST_", PatternIndex.getLiteralPrefix("TEST_(\\d{8})_(\\w+)\\.txt"));
+        assertEquals(".txt", PatternIndex.getLiteralSuffix("TEST_(\\d{8})_(\\w+)\\.txt"));
+        assertEquals("TEST_", PatternIndex.getLiteralPrefix("^TEST_\\d+$"));
+        assertEquals("", PatternIndex.getLiteralSuffix("^TEST_\\d+$"));
+        assertEquals("a", PatternIndex.getLiteralPrefix("a+b*c?\\.txt"));
+        assertEquals("a", PatternIndex.getLiteralPrefix("ab{2,3}c"));
+        assertEquals("c", PatternIndex.getLiteralSuffix("ab{2,3}c"));
+        assertEquals(".txt$", PatternIndex.getLiteralSuffix("DATA\\$\\d\\.txt\\$"));
+        assertEquals("", PatternIndex.getLiteralSuffix("HEX_\\x41"));
+        assertEquals(".txt", PatternIndex.getLiteralSuffix("HEX_\\x41\\u0042\\0103\\.txt"));
+        assertEquals("", PatternIndex.getLiteralSuffix("CTRL_\\cA"));
+        assertEquals("", PatternIndex.getLiteralSuffix("(A)\\12"));
+        assertEquals("", PatternIndex.getLiteralSuffix("CLASS_[\\].]"));
+        assertEquals("", PatternIndex.getLiteralPrefix("INVOICE|RECEIPT_\\d+\\.txt"));
+        assertEquals("", PatternIndex.getLiteralSuffix("INVOICE|RECEIPT_\\d+\\.txt"));
+        assertEquals(".txt", PatternIndex.getLiteralSuffix("(INVOICE|RECEIPT)_\\d+\\.txt"));
+    }
+
+    /**
+     * Orders patterns as they were added to the index.
+     */
+    private List<Pattern> order(List<Pattern> patterns) {
+        List<Pattern> ordered = new ArrayList<Pattern>();
+        for (Pattern pattern : PATTERNS) {
+            if (patterns.contains(pattern)) {
+                ordered.add(pattern);
+            }
+        }
+        return ordered;
+    }
+}
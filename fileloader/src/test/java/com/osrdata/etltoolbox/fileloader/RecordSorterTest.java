@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015. OSR Data Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osrdata.etltoolbox.fileloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sorts records with a memory budget small enough that they are spilled to many more run files than are merged at
+ * once, and verifies that the merged records are in order, that records with equal sort columns keep the order they
+ * were added in, and that every record keeps its record ID.
+ */
+public class RecordSorterTest {
+    private static final int ROWS = 3000;
+    private static final String[] KEYS = {null, "apple", "banana", "cherry", "date", "elderberry", "fig"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SingleConnectionDataSource dataSource;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        dataSource = new SingleConnectionDataSource("jdbc:h2:mem:recordsorter;DB_CLOSE_DELAY=-1", "sa", "", true);
+        directory = folder.newFolder("sort");
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.destroy();
+    }
+
+    @Test
+    public void mergesManyRunsInOrder() throws Exception {
+        FileSpecification spec = newSpecification(1000l);
+        RecordSorter sorter = spec.newRecordSorter();
+        try {
+            Random random = new Random(1l);
+            RecordBuffer batch = spec.newRecordBuffer(10);
+            for (int i = 1; i <= ROWS; i++) {
+                // The record ID is that of a record in source file order, and test_id repeats it
+                batch.add(new Object[] {Integer.toString(i), KEYS[random.nextInt(KEYS.length)]}, i);
+                if (batch.isFull()) {
+                    sorter.add(batch);
+                    batch.clear();
+                }
+            }
+            sorter.add(batch);
+            batch.clear();
+            // More than twice the 64 runs merged at most at once, so runs are merged in several passes
+            assertTrue(directory.list().length > 128);
+            sorter.finish();
+
+            Object previousKey = null;
+            long previousId = 0l;
+            int count = 0;
+            while (sorter.next(batch)) {
+                for (int row = 0; row < batch.size(); row++) {
+                    Object key = batch.getValue(1, row);
+                    long recordId = batch.getRecordId(row);
+                    assertEquals(Long.toString(recordId), batch.getValue(0, row));
+                    if (count > 0) {
+                        int order = compare(previousKey, key);
+                        assertTrue("record " + recordId + " sorted after " + previousId, order < 0
+                                || order == 0 && previousId < recordId);
+                    }
+                    previousKey = key;
+                    previousId = recordId;
+                    count++;
+                }
+                batch.clear();
+            }
+            assertEquals(ROWS, count);
+        } finally {
+            sorter.close();
+        }
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void sortsInMemoryWithinBudget() throws Exception {
+        FileSpecification spec = newSpecification(RecordSorter.DEFAULT_MAX_BYTES);
+        RecordSorter sorter = spec.newRecordSorter();
+        try {
+            RecordBuffer batch = spec.newRecordBuffer(10);
+            for (int i = 1; i <= 10; i++) {
+                batch.add(new Object[] {Integer.toString(i), KEYS[i % 3]}, i);
+            }
+            sorter.add(batch);
+            batch.clear();
+            sorter.finish();
+            assertEquals(0, directory.list().length);
+
+            assertTrue(sorter.next(batch));
+            long[] recordIds = new long[batch.size()];
+            for (int row = 0; row < batch.size(); row++) {
+                recordIds[row] = batch.getRecordId(row);
+            }
+            // Nulls first, then apple and banana, each in the order added
+            assertArrayEquals(new long[] {3, 6, 9, 1, 4, 7, 10, 2, 5, 8}, recordIds);
+            batch.clear();
+            assertFalse(sorter.next(batch));
+        } finally {
+            sorter.close();
+        }
+    }
+
+    private FileSpecification newSpecification(long sortMaxBytes) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("sourcePattern", "TEST_(\\d{8})_(\\w+)\\.txt");
+        map.put("dateGroup", 1);
+        map.put("dateFormat", "MMddyyyy");
+        map.put("typeGroup", 2);
+        map.put("sourceId", 1);
+        map.put("targetTable", "src_test");
+        map.put("targetColumns", Arrays.asList("test_id", "test_value"));
+        map.put("sortColumns", Arrays.asList("test_value"));
+        map.put("sortMaxBytes", sortMaxBytes);
+        map.put("sortDirectory", directory.getPath());
+        return new FileSpecification(map, dataSource, new AuditCache(dataSource), dataSource, 1000, false, false, 0l,
+                null, null, DatabaseType.forUrl(dataSource.getUrl()));
+    }
+
+    private int compare(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((String) a).compareTo((String) b);
+    }
+}